@@ -0,0 +1,336 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cleargl.GLVector;
+import graphics.scenery.Camera;
+import graphics.scenery.Node;
+import util.ChunkGrid;
+import util.ChunkLevelSelector;
+import util.ChunkMeshGroup;
+import util.ChunkMeshResult;
+import util.ChunkMeshSubscriber;
+import util.ChunkMeshSubscription;
+import util.MeshExtractor;
+
+/**
+ * Chooses the refinement level of each chunk of a neuron from the camera: the
+ * chunks far away or out of the view use bigger cubes. The camera is read
+ * periodically and a chunk is generated again only when its level changes.
+ *
+ * The level of a chunk is the coarsest one whose cubes take at most
+ * {@link #setPixelError(float)} pixels on the screen. To avoid generating a
+ * chunk again and again when the camera moves a little, a chunk only goes
+ * back to a coarser level when its cubes take {@value #HYSTERESIS} times less
+ * than that, or when it is out of a view {@value #HYSTERESIS} times wider.
+ *
+ * It receives the meshes of the extraction (see
+ * {@link MeshExtractor#subscribe(ChunkMeshSubscriber)}) and shows them with a
+ * {@link ChunkMeshGroup}.
+ *
+ * @author vleite
+ *
+ */
+public class LodController implements ChunkLevelSelector, ChunkMeshSubscriber
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( LodController.class );
+
+	/** time between two readings of the camera, in milliseconds */
+	public static final long UPDATE_INTERVAL = 100;
+
+	public static final float DEFAULT_PIXEL_ERROR = 2;
+
+	private static final float HYSTERESIS = 1.5f;
+
+	private final Camera camera;
+
+	/** node of the neuron, gives the position and the scale of the meshes */
+	private final Node neuron;
+
+	private final MeshExtractor meshExtractor;
+
+	private final ChunkMeshGroup chunkMeshes;
+
+	/** level of the chunks requested by the extraction, by their key */
+	private final Map< Long, ChunkLevel > chunks;
+
+	/** maximum size of a cube on the screen, in pixels */
+	private volatile float pixelError;
+
+	private ScheduledExecutorService timer;
+
+	/** level of a chunk */
+	private static class ChunkLevel
+	{
+		final long[] offset;
+
+		/** index of the chunk, -1 until its first mesh arrives */
+		int index;
+
+		int level;
+
+		ChunkLevel( long[] offset, int index, int level )
+		{
+			this.offset = offset;
+			this.index = index;
+			this.level = level;
+		}
+	}
+
+	/**
+	 * @param camera
+	 *            camera of the scene
+	 * @param neuron
+	 *            node that has the meshes of the chunks as children
+	 * @param meshExtractor
+	 *            extraction of the neuron, with the refinement levels
+	 * @param chunkMeshes
+	 *            shows the meshes of the chunks
+	 */
+	public LodController( Camera camera, Node neuron, MeshExtractor meshExtractor, ChunkMeshGroup chunkMeshes )
+	{
+		this.camera = camera;
+		this.neuron = neuron;
+		this.meshExtractor = meshExtractor;
+		this.chunkMeshes = chunkMeshes;
+		this.chunks = new HashMap< Long, ChunkLevel >();
+		this.pixelError = DEFAULT_PIXEL_ERROR;
+		this.timer = null;
+	}
+
+	public void setPixelError( float pixelError )
+	{
+		this.pixelError = pixelError;
+	}
+
+	/**
+	 * Start reading the camera, every {@value #UPDATE_INTERVAL} milliseconds.
+	 * It stops by itself when the extraction is cancelled.
+	 */
+	public synchronized void start()
+	{
+		if ( timer != null )
+		{
+			return;
+		}
+
+		timer = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			final Thread thread = new Thread( runnable, "lod-controller" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		timer.scheduleWithFixedDelay( this::update, UPDATE_INTERVAL, UPDATE_INTERVAL, TimeUnit.MILLISECONDS );
+	}
+
+	public synchronized void stop()
+	{
+		if ( timer != null )
+		{
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Read the camera and request the chunks whose level changed.
+	 */
+	public void update()
+	{
+		if ( meshExtractor.isCancelled() )
+		{
+			stop();
+			return;
+		}
+
+		final int[][] levels = meshExtractor.getRefinementLevels();
+		final List< ChunkLevel > changed = new ArrayList< ChunkLevel >();
+		synchronized ( chunks )
+		{
+			for ( final ChunkLevel chunk : chunks.values() )
+			{
+				int level = getLevel( chunk.offset, pixelError, 1, levels );
+				if ( level < chunk.level )
+				{
+					// coarser only if it is clearly enough
+					level = Math.min( chunk.level, getLevel( chunk.offset, pixelError / HYSTERESIS, HYSTERESIS, levels ) );
+				}
+
+				if ( level != chunk.level )
+				{
+					chunk.level = level;
+					changed.add( new ChunkLevel( chunk.offset, chunk.index, level ) );
+				}
+			}
+		}
+
+		// the extraction calls getLevel() with its lock, so it is called
+		// without the lock of the chunks
+		for ( final ChunkLevel chunk : changed )
+		{
+			if ( chunk.index >= 0 )
+			{
+				chunkMeshes.setTargetLevel( chunk.index, chunk.level );
+			}
+			meshExtractor.requestLevel( chunk.offset, chunk.level );
+		}
+
+		if ( !changed.isEmpty() )
+		{
+			LOGGER.debug( "{} chunks changed their level", changed.size() );
+		}
+	}
+
+	/**
+	 * The level of a chunk is chosen the first time the extraction asks for
+	 * it, then it only changes in {@link #update()}.
+	 */
+	@Override
+	public int getLevel( long[] chunkOffset )
+	{
+		final int[][] levels = meshExtractor.getRefinementLevels();
+		final long key = ChunkGrid.key( chunkOffset[ 0 ], chunkOffset[ 1 ], chunkOffset[ 2 ] );
+		synchronized ( chunks )
+		{
+			ChunkLevel chunk = chunks.get( key );
+			if ( chunk == null )
+			{
+				chunk = new ChunkLevel( chunkOffset.clone(), -1, getLevel( chunkOffset, pixelError, 1, levels ) );
+				chunks.put( key, chunk );
+			}
+
+			return chunk.level;
+		}
+	}
+
+	@Override
+	public void onSubscribe( ChunkMeshSubscription subscription )
+	{
+		subscription.request( Long.MAX_VALUE );
+	}
+
+	@Override
+	public void onNext( ChunkMeshResult result )
+	{
+		final long[] offset = result.getChunkOffset();
+		final int level = getLevel( offset );
+		synchronized ( chunks )
+		{
+			final ChunkLevel chunk = chunks.get( ChunkGrid.key( offset[ 0 ], offset[ 1 ], offset[ 2 ] ) );
+			chunk.index = result.getChunk().getIndex();
+		}
+
+		chunkMeshes.setTargetLevel( result.getChunk().getIndex(), level );
+		chunkMeshes.show( result );
+	}
+
+	@Override
+	public void onComplete()
+	{
+		LOGGER.debug( "all the requested chunks were generated" );
+	}
+
+	/**
+	 * Return the coarsest level whose cubes are not bigger than the given size
+	 * on the screen. The chunks out of the view use the coarsest level.
+	 *
+	 * @param chunkOffset
+	 *            position of the chunk in the grid of chunks
+	 * @param maxPixels
+	 *            maximum size of a cube on the screen, in pixels
+	 * @param viewScale
+	 *            the view angle is multiplied by it to check if the chunk is
+	 *            in the view
+	 * @param levels
+	 *            cube sizes of the levels
+	 * @return refinement level
+	 */
+	private int getLevel( long[] chunkOffset, float maxPixels, float viewScale, int[][] levels )
+	{
+		final GLVector cameraPosition = camera.getPosition();
+		final GLVector forward = camera.getForward();
+		if ( cameraPosition == null || forward == null || camera.getHeight() <= 0 )
+		{
+			return levels.length - 1;
+		}
+
+		// box of the chunk in the scene
+		final float[] boundingBox = meshExtractor.getChunkBoundingBox( chunkOffset );
+		final float[] scale = getScale();
+		final GLVector position = neuron.getPosition();
+		final float[] center = new float[ 3 ];
+		float radius = 0;
+		for ( int i = 0; i < 3; i++ )
+		{
+			final float translation = position == null ? 0 : position.get( i );
+			final float min = boundingBox[ i ] * scale[ i ] + translation;
+			final float max = boundingBox[ i + 3 ] * scale[ i ] + translation;
+			center[ i ] = ( min + max ) / 2;
+			radius += ( max - min ) * ( max - min ) / 4;
+		}
+		radius = ( float ) Math.sqrt( radius );
+
+		final float dx = center[ 0 ] - cameraPosition.x();
+		final float dy = center[ 1 ] - cameraPosition.y();
+		final float dz = center[ 2 ] - cameraPosition.z();
+		final float distance = ( float ) Math.sqrt( dx * dx + dy * dy + dz * dz );
+		if ( distance <= radius )
+		{
+			// the camera is in the chunk
+			return levels.length - 1;
+		}
+
+		// the view is a cone around the forward direction, wide enough to
+		// contain the corners of the screen
+		final double forwardLength = Math.sqrt( forward.x() * forward.x() + forward.y() * forward.y() + forward.z() * forward.z() );
+		final double cosine = ( dx * forward.x() + dy * forward.y() + dz * forward.z() ) / ( distance * forwardLength );
+		final double halfHeight = Math.tan( Math.toRadians( camera.getFov() ) / 2 );
+		final double halfWidth = halfHeight * camera.getWidth() / camera.getHeight();
+		final double viewAngle = Math.atan( Math.sqrt( halfWidth * halfWidth + halfHeight * halfHeight ) ) * viewScale;
+		final double chunkAngle = Math.asin( radius / distance );
+		if ( Math.acos( Math.max( -1, Math.min( 1, cosine ) ) ) - chunkAngle > viewAngle )
+		{
+			return 0;
+		}
+
+		// size of a cube of each level on the screen, at the closest point of
+		// the chunk
+		final float normalization = meshExtractor.getNormalization();
+		final double pixelsPerUnit = camera.getHeight() / ( 2 * halfHeight * ( distance - radius ) );
+		for ( int level = 0; level < levels.length; level++ )
+		{
+			float cubeSize = 0;
+			for ( int i = 0; i < 3; i++ )
+			{
+				cubeSize = Math.max( cubeSize, levels[ level ][ i ] * scale[ i ] / normalization );
+			}
+
+			if ( cubeSize * pixelsPerUnit <= maxPixels )
+			{
+				return level;
+			}
+		}
+
+		return levels.length - 1;
+	}
+
+	private float[] getScale()
+	{
+		final GLVector scale = neuron.getScale();
+		if ( scale == null )
+		{
+			return new float[] { 1, 1, 1 };
+		}
+
+		return new float[] { scale.x(), scale.y(), scale.z() };
+	}
+}
@@ -34,6 +34,9 @@ public class MarchingCubesApplication extends SceneryBase
 
 	private final SceneryPanel scPanel;
 
+	/** camera of the scene, null until the initialization */
+	private Camera camera = null;
+
 	public MarchingCubesApplication( String applicationName, int windowWidth, int windowHeight, boolean wantREPL )
 	{
 		super( applicationName, windowWidth, windowHeight, wantREPL );
@@ -64,6 +67,7 @@ public class MarchingCubesApplication extends SceneryBase
 
 		cam.perspectiveCamera( 50f, getWindowWidth(), getWindowHeight(), 0.1f, 1000.0f );
 		cam.setActive( true );
+		camera = cam;
 		// TODO: camera position must be related with the mesh not with the
 		// whole volume
 		if ( volumeResolution == null )
@@ -117,6 +121,15 @@ public class MarchingCubesApplication extends SceneryBase
 		getScene().removeChild( child );
 	}
 
+	/**
+	 * @return the camera of the scene, or null if the scene was not
+	 *         initialized yet
+	 */
+	public Camera getCamera()
+	{
+		return camera;
+	}
+
 	public SceneryPanel getPanel()
 	{
 		return scPanel;
@@ -1,18 +1,22 @@
 package application;
 
-import java.nio.FloatBuffer;
-import java.util.Arrays;
-
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.labels.labelset.Multiset;
 import cleargl.GLVector;
+import graphics.scenery.Camera;
 import graphics.scenery.Material;
 import graphics.scenery.Mesh;
 import marchingCubes.MarchingCubes;
 import net.imglib2.Localizable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import util.ChunkMeshGroup;
+import util.ChunkMeshResult;
+import util.LabelBlockReader;
+import util.LabelBlockService;
+import util.LabelIndex;
+import util.MeshDiskCache;
 import util.MeshExtractor;
 
 /**
@@ -26,7 +30,8 @@ public class MarchingCubesController
 
 	private static int[] cubeSize = { 1, 1, 1 };
 
-	private static float[] verticesArray = new float[ 0 ];
+	/** cube sizes of the meshes, from the coarsest to the finest */
+	private int[][] refinementLevels;
 
 	private MarchingCubesApplication viewer3D;
 
@@ -34,6 +39,20 @@ public class MarchingCubesController
 
 	private double[] resolution;
 
+	private LabelIndex labelIndex;
+
+	private MeshDiskCache meshDiskCache;
+
+	private LabelBlockReader labelBlockReader;
+
+	private LabelBlockService labelBlockService;
+
+	/** extraction of the last neuron selected */
+	private MeshExtractor currentExtractor;
+
+	/** true if the level of each chunk depends on the camera */
+	private boolean viewDependentLod;
+
 	/**
 	 * Enum of the viewer modes. There are two types: ONLY_ONE_NEURON_VISIBLE:
 	 * Remove all previously rendered neurons and show only the most recent one.
@@ -49,6 +68,13 @@ public class MarchingCubesController
 	public MarchingCubesController()
 	{
 		viewer3D = null;
+		labelIndex = null;
+		meshDiskCache = null;
+		labelBlockReader = null;
+		labelBlockService = null;
+		currentExtractor = null;
+		refinementLevels = new int[][] { cubeSize };
+		viewDependentLod = false;
 	}
 
 	public void setViewer3D( MarchingCubesApplication viewer3D )
@@ -61,6 +87,83 @@ public class MarchingCubesController
 		this.mode = mode;
 	}
 
+	/**
+	 * Define the index of the labels of the volume, used to find the chunks
+	 * of each neuron. Without it, the chunks are searched from the selected
+	 * location.
+	 * 
+	 * @param labelIndex
+	 *            index of the labels, or null
+	 */
+	public void setLabelIndex( LabelIndex labelIndex )
+	{
+		this.labelIndex = labelIndex;
+	}
+
+	/**
+	 * Define the cache of the meshes on disk, so the meshes generated before
+	 * (by this or other process) are read instead of generated.
+	 * 
+	 * @param meshDiskCache
+	 *            cache of the dataset of the volume, or null
+	 */
+	public void setMeshDiskCache( MeshDiskCache meshDiskCache )
+	{
+		this.meshDiskCache = meshDiskCache;
+	}
+
+	/**
+	 * Define the reader of the label dataset, so the labels of the chunks are
+	 * read without converting each voxel of the volume.
+	 * 
+	 * @param labelBlockReader
+	 *            reader of the dataset of the volume, or null
+	 */
+	public void setLabelBlockReader( LabelBlockReader labelBlockReader )
+	{
+		this.labelBlockReader = labelBlockReader;
+	}
+
+	/**
+	 * Define the service that reads the label dataset, so the threads that
+	 * generate the meshes do not wait for the dataset. It is used instead of
+	 * the block reader.
+	 * 
+	 * @param labelBlockService
+	 *            service of the dataset of the volume, or null
+	 */
+	public void setLabelBlockService( LabelBlockService labelBlockService )
+	{
+		this.labelBlockService = labelBlockService;
+	}
+
+	/**
+	 * Define the cube sizes used to show the neurons, from the coarsest to
+	 * the finest. The coarse meshes are shown first and replaced by the finer
+	 * ones as they are generated, see
+	 * {@link MeshExtractor#setRefinementLevels(int[][])}.
+	 * 
+	 * @param refinementLevels
+	 *            cube sizes, the last one is the final resolution
+	 */
+	public void setRefinementLevels( int[]... refinementLevels )
+	{
+		this.refinementLevels = refinementLevels;
+	}
+
+	/**
+	 * Define if the refinement level of each chunk depends on the camera,
+	 * see {@link LodController}. In this case the meshes keep changing while
+	 * the camera moves, and {@link #generateMesh} does not wait for them.
+	 * 
+	 * @param viewDependentLod
+	 *            true to choose the levels from the camera
+	 */
+	public void setViewDependentLod( boolean viewDependentLod )
+	{
+		this.viewDependentLod = viewDependentLod;
+	}
+
 	public void setResolution( double[] resolution )
 	{
 		this.resolution = resolution;
@@ -69,15 +172,24 @@ public class MarchingCubesController
 
 	public void generateMesh( RandomAccessibleInterval< LabelMultisetType > volumeLabels, Localizable location )
 	{
-		if ( mode == ViewerMode.ONLY_ONE_NEURON_VISIBLE )
+		long foregroundValue = getForegroundValue( volumeLabels, location );
+		MeshExtractor meshExtractor = new MeshExtractor( volumeLabels, cubeSize, foregroundValue, criterion );
+
+		synchronized ( this )
 		{
-			viewer3D.removeAllNeurons();
+			// the previous neuron will not be visible, stop its extraction
+			if ( mode == ViewerMode.ONLY_ONE_NEURON_VISIBLE )
+			{
+				if ( currentExtractor != null )
+				{
+					currentExtractor.cancel();
+				}
+				viewer3D.removeAllNeurons();
+			}
+			currentExtractor = meshExtractor;
 		}
 
-		int foregroundValue = getForegroundValue( volumeLabels, location );
-		MeshExtractor meshExtractor = new MeshExtractor( volumeLabels, cubeSize, foregroundValue, criterion );
-
-		// use cube of size 1
+		// use cube of size 1, the meshes of the chunks are added to the neuron
 		Mesh completeNeuron = new Mesh();
 		final Material material = new Material();
 		material.setAmbient( new GLVector( 1f, 0.0f, 1f ) );
@@ -90,48 +202,51 @@ public class MarchingCubesController
 		completeNeuron.setScale( new GLVector( ( float ) resolution[ 0 ], ( float ) resolution[ 1 ], ( float ) resolution[ 2 ] ) );
 		viewer3D.addChild( completeNeuron );
 
-		meshExtractor.setCubeSize( cubeSize );
-		meshExtractor.createChunks( location );
+		meshExtractor.setRefinementLevels( refinementLevels );
+		meshExtractor.setLabelIndex( labelIndex );
+		meshExtractor.setDiskCache( meshDiskCache );
+		meshExtractor.setLabelBlockReader( labelBlockReader );
+		meshExtractor.setLabelBlockService( labelBlockService );
 
-		float[] completeNeuronVertices = new float[ 0 ];
-		int completeMeshSize = 0;
-		while ( meshExtractor.hasNext() )
+		// each chunk is a child of the neuron, its normals were calculated
+		// with the mesh. The finer meshes replace the coarser ones
+		final ChunkMeshGroup chunkMeshes = new ChunkMeshGroup( completeNeuron, material, meshExtractor );
+
+		final Camera camera = viewer3D.getCamera();
+		if ( viewDependentLod && camera != null )
 		{
-			Mesh neuron = new Mesh();
-			neuron = meshExtractor.next();
-			if ( neuron == null )
-			{
-				continue;
-			}
+			// the meshes are shown by the LOD controller, it stops when the
+			// extraction is cancelled
+			final LodController lodController = new LodController( camera, completeNeuron, meshExtractor, chunkMeshes );
+			meshExtractor.setLevelSelector( lodController );
+			meshExtractor.subscribe( lodController );
+			meshExtractor.createChunks( location );
+			lodController.start();
+			return;
+		}
 
-			if ( completeNeuron.getVertices().hasArray() )
+		meshExtractor.createChunks( location );
+		while ( meshExtractor.hasNext() )
+		{
+			ChunkMeshResult result = meshExtractor.nextResult();
+			if ( result != null )
 			{
-				completeNeuronVertices = completeNeuron.getVertices().array();
-				completeMeshSize = completeNeuronVertices.length;
+				chunkMeshes.show( result );
 			}
-
-			float[] neuronVertices = neuron.getVertices().array();
-			int meshSize = neuronVertices.length;
-			verticesArray = Arrays.copyOf( completeNeuronVertices, completeMeshSize + meshSize );
-			System.arraycopy( neuronVertices, 0, verticesArray, completeMeshSize, meshSize );
-
-			completeNeuron.setVertices( FloatBuffer.wrap( verticesArray ) );
-			completeNeuron.recalculateNormals();
-			completeNeuron.setDirty( true );
 		}
 	}
 
-	private int getForegroundValue( RandomAccessibleInterval< LabelMultisetType > input, Localizable location )
+	private long getForegroundValue( RandomAccessibleInterval< LabelMultisetType > input, Localizable location )
 	{
 		final RandomAccess< LabelMultisetType > access = input.randomAccess();
 		access.setPosition( location );
 
 		System.out.println( " location: " + location.getIntPosition( 0 ) + "x" + location.getIntPosition( 1 ) + "x" + location.getIntPosition( 2 ) );
 
-		int foregroundValue = -1;
+		long foregroundValue = -1;
 		for ( final Multiset.Entry< Label > e : access.get().entrySet() )
 		{
-			foregroundValue = ( int ) e.getElement().id();
+			foregroundValue = e.getElement().id();
 			System.out.println( "foregroundValue: " + foregroundValue );
 		}
 
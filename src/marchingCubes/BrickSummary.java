@@ -0,0 +1,217 @@
+package marchingCubes;
+
+import java.util.Arrays;
+
+/**
+ * Summary of the labels of a volume (given as an array, x first, then y and
+ * z) divided in bricks of {@link #BRICK_SIZE}^3 voxels. For each brick the
+ * smallest and the biggest label are kept, and a 64-bit mask with one bit
+ * set for each label in the brick (labels are hashed to the bits, so a bit
+ * set means the label may be there).
+ *
+ * The summary only depends on the labels, so the same summary is used for
+ * any cube size and foreground value of the volume: see
+ * {@link #state(int, int, int, MarchingCubes.ForegroundCriterion, long)}.
+ *
+ * @author vleite
+ */
+public class BrickSummary
+{
+	/** size of the bricks in each direction, in voxels */
+	public static final int BRICK_SIZE = 8;
+
+	/** log2 of {@link #BRICK_SIZE} */
+	private static final int BRICK_SHIFT = 3;
+
+	/** all the voxels of the brick are outside of the mesh */
+	public static final int OUTSIDE = 0;
+
+	/** all the voxels of the brick are inside of the mesh */
+	public static final int INSIDE = 1;
+
+	/** the brick may have voxels inside and outside of the mesh */
+	public static final int MIXED = 2;
+
+	/** number of bricks in each direction */
+	private int bricksX, bricksY, bricksZ;
+
+	/** smallest label of each brick */
+	private long[] min;
+
+	/** biggest label of each brick */
+	private long[] max;
+
+	/** hash of the labels of each brick */
+	private long[] mask;
+
+	public BrickSummary()
+	{
+		bricksX = 0;
+		bricksY = 0;
+		bricksZ = 0;
+		min = new long[ 0 ];
+		max = new long[ 0 ];
+		mask = new long[ 0 ];
+	}
+
+	/**
+	 * Prepare the summary for a new volume, the arrays are only reallocated
+	 * if they are smaller than needed. The bricks are filled by
+	 * {@link #addRow(long[], int, int, int, int)}.
+	 *
+	 * @param sizeX
+	 *            size of the volume on x, in voxels
+	 * @param sizeY
+	 *            size of the volume on y, in voxels
+	 * @param sizeZ
+	 *            size of the volume on z, in voxels
+	 */
+	public void reset( final int sizeX, final int sizeY, final int sizeZ )
+	{
+		bricksX = ( sizeX + BRICK_SIZE - 1 ) >> BRICK_SHIFT;
+		bricksY = ( sizeY + BRICK_SIZE - 1 ) >> BRICK_SHIFT;
+		bricksZ = ( sizeZ + BRICK_SIZE - 1 ) >> BRICK_SHIFT;
+
+		final int size = bricksX * bricksY * bricksZ;
+		if ( min.length < size )
+		{
+			min = new long[ size ];
+			max = new long[ size ];
+			mask = new long[ size ];
+		}
+
+		Arrays.fill( min, 0, size, Long.MAX_VALUE );
+		Arrays.fill( max, 0, size, Long.MIN_VALUE );
+		Arrays.fill( mask, 0, size, 0 );
+	}
+
+	/**
+	 * Add the labels of a row of voxels to the bricks it crosses.
+	 *
+	 * @param volume
+	 *            labels of the volume
+	 * @param rowBegin
+	 *            position of the first voxel of the row in the array
+	 * @param length
+	 *            number of voxels in the row
+	 * @param y
+	 *            position of the row on y
+	 * @param z
+	 *            position of the row on z
+	 */
+	public void addRow( final long[] volume, final int rowBegin, final int length, final int y, final int z )
+	{
+		int brick = ( ( z >> BRICK_SHIFT ) * bricksY + ( y >> BRICK_SHIFT ) ) * bricksX;
+		for ( int begin = 0; begin < length; begin += BRICK_SIZE, brick++ )
+		{
+			final int end = Math.min( begin + BRICK_SIZE, length );
+			long brickMin = min[ brick ];
+			long brickMax = max[ brick ];
+			long brickMask = mask[ brick ];
+			for ( int i = rowBegin + begin; i < rowBegin + end; i++ )
+			{
+				final long label = volume[ i ];
+				brickMin = Math.min( brickMin, label );
+				brickMax = Math.max( brickMax, label );
+				brickMask |= bit( label );
+			}
+			min[ brick ] = brickMin;
+			max[ brick ] = brickMax;
+			mask[ brick ] = brickMask;
+		}
+	}
+
+	/**
+	 * Summarizes a whole volume.
+	 *
+	 * @param volume
+	 *            labels of the volume, x first, then y and z
+	 * @param sizeX
+	 *            size of the volume on x, in voxels
+	 * @param sizeY
+	 *            size of the volume on y, in voxels
+	 * @param sizeZ
+	 *            size of the volume on z, in voxels
+	 */
+	public void build( final long[] volume, final int sizeX, final int sizeY, final int sizeZ )
+	{
+		reset( sizeX, sizeY, sizeZ );
+		for ( int z = 0; z < sizeZ; z++ )
+		{
+			for ( int y = 0; y < sizeY; y++ )
+			{
+				addRow( volume, ( z * sizeY + y ) * sizeX, sizeX, y, z );
+			}
+		}
+	}
+
+	/**
+	 * Tells if the voxels of a brick are inside or outside of the mesh
+	 * defined by the criterion and the foreground value.
+	 *
+	 * @param brickX
+	 *            position of the brick on x, in bricks
+	 * @param brickY
+	 *            position of the brick on y, in bricks
+	 * @param brickZ
+	 *            position of the brick on z, in bricks
+	 * @param criterion
+	 * @param foregroundValue
+	 * @return {@link #OUTSIDE}, {@link #INSIDE} or {@link #MIXED}
+	 */
+	public int state( final int brickX, final int brickY, final int brickZ, final MarchingCubes.ForegroundCriterion criterion,
+			final long foregroundValue )
+	{
+		final int brick = ( brickZ * bricksY + brickY ) * bricksX + brickX;
+		if ( criterion == MarchingCubes.ForegroundCriterion.EQUAL )
+		{
+			if ( min[ brick ] == foregroundValue && max[ brick ] == foregroundValue )
+			{
+				return INSIDE;
+			}
+
+			if ( foregroundValue < min[ brick ] || foregroundValue > max[ brick ] || ( mask[ brick ] & bit( foregroundValue ) ) == 0 )
+			{
+				return OUTSIDE;
+			}
+
+			return MIXED;
+		}
+
+		if ( min[ brick ] >= foregroundValue )
+		{
+			return INSIDE;
+		}
+
+		if ( max[ brick ] < foregroundValue )
+		{
+			return OUTSIDE;
+		}
+
+		return MIXED;
+	}
+
+	public int getBricksX()
+	{
+		return bricksX;
+	}
+
+	public int getBricksY()
+	{
+		return bricksY;
+	}
+
+	public int getBricksZ()
+	{
+		return bricksZ;
+	}
+
+	/**
+	 * Bit of the mask that represents the label. The label is mixed, so
+	 * labels that differ only in the high bits do not share the bit.
+	 */
+	private static long bit( final long label )
+	{
+		return 1L << ( ( label * 0x9E3779B97F4A7C15L ) >>> 58 );
+	}
+}
@@ -0,0 +1,225 @@
+package marchingCubes;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the index of the vertices already created on the edges of the
+ * current slab of cells (all the cells with the same z), so neighbor cells
+ * share the vertex of a common edge instead of creating it again.
+ *
+ * The edges are stored by the grid vertex where they begin: edges along x
+ * and y on the bottom and on the top plane of the slab, and edges along z
+ * between both planes. When the next slab starts, its bottom plane is the
+ * top plane of the previous one.
+ *
+ * In the multi-label extraction the same edge may have a vertex for each one
+ * of the labels of its two ends, so the cache has two sides: the vertex of
+ * the label of the first end of the edge (the grid vertex where it begins)
+ * and the vertex of the label of the other end. The cache is shared by all
+ * the labels, its size does not depend on the number of labels.
+ *
+ * @author vleite
+ */
+class EdgeIndexCache
+{
+	/** value used for edges without vertex */
+	static final int EMPTY = -1;
+
+	/** edges along x on the bottom plane */
+	private static final int X_BOTTOM = 0;
+
+	/** edges along x on the top plane */
+	private static final int X_TOP = 1;
+
+	/** edges along y on the bottom plane */
+	private static final int Y_BOTTOM = 2;
+
+	/** edges along y on the top plane */
+	private static final int Y_TOP = 3;
+
+	/** edges along z, between the bottom and the top plane */
+	private static final int Z = 4;
+
+	// @formatter:off
+	/**
+	 * For each one of the 12 edges of the cube (see
+	 * {@link MarchingCubes#triangulation}): the set of edges it belongs to
+	 * and the position (x, y) of the grid vertex where it begins, relative
+	 * to the cell.
+	 */
+	private static final int[][] EDGE_POSITION = {
+			{ Y_TOP, 1, 0 },
+			{ Z, 1, 1 },
+			{ Y_BOTTOM, 1, 0 },
+			{ Z, 1, 0 },
+			{ Y_TOP, 0, 0 },
+			{ Z, 0, 1 },
+			{ Y_BOTTOM, 0, 0 },
+			{ Z, 0, 0 },
+			{ X_TOP, 0, 0 },
+			{ X_TOP, 0, 1 },
+			{ X_BOTTOM, 0, 1 },
+			{ X_BOTTOM, 0, 0 } };
+	// @formatter:on
+
+	/** number of sets of edges of each side */
+	private static final int SETS = 5;
+
+	/**
+	 * vertex index of each edge, one array for each set of edges of each
+	 * side: the set s of the side k is at k * SETS + s
+	 */
+	private int[][] edges;
+
+	/** number of sides in use */
+	private int sides;
+
+	/** number of grid vertices in x */
+	private int width;
+
+	/** number of grid vertices in a plane */
+	private int size;
+
+	/** the slab the cached edges belong to */
+	private long slab;
+
+	public EdgeIndexCache()
+	{
+		edges = new int[ 0 ][ 0 ];
+		sides = 0;
+		width = 0;
+		size = 0;
+		slab = -1;
+	}
+
+	/**
+	 * Prepare the cache for a new volume, the arrays are only reallocated if
+	 * they are smaller than needed.
+	 *
+	 * @param nCellsX
+	 *            number of cells in x
+	 * @param nCellsY
+	 *            number of cells in y
+	 */
+	public void reset( final long nCellsX, final long nCellsY )
+	{
+		reset( nCellsX, nCellsY, 1 );
+	}
+
+	/**
+	 * Prepare the cache for a new volume, with the given number of sides for
+	 * each edge (1 for a single label, 2 for the multi-label extraction).
+	 *
+	 * @param nCellsX
+	 *            number of cells in x
+	 * @param nCellsY
+	 *            number of cells in y
+	 * @param sides
+	 *            number of vertices kept for each edge
+	 */
+	public void reset( final long nCellsX, final long nCellsY, final int sides )
+	{
+		this.sides = sides;
+		width = ( int ) nCellsX + 1;
+		size = width * ( ( int ) nCellsY + 1 );
+		if ( edges.length < sides * SETS )
+		{
+			final int[][] grown = new int[ sides * SETS ][];
+			for ( int i = 0; i < grown.length; i++ )
+			{
+				grown[ i ] = i < edges.length ? edges[ i ] : new int[ 0 ];
+			}
+			edges = grown;
+		}
+
+		for ( int i = 0; i < sides * SETS; i++ )
+		{
+			if ( edges[ i ].length < size )
+			{
+				edges[ i ] = new int[ size ];
+			}
+			Arrays.fill( edges[ i ], 0, size, EMPTY );
+		}
+		slab = -1;
+	}
+
+	/**
+	 * Return the index of the vertex on the given edge of the cell, or
+	 * {@link #EMPTY} if no vertex was created for this edge.
+	 */
+	public int get( final int cursorX, final int cursorY, final int cursorZ, final int edge )
+	{
+		return get( cursorX, cursorY, cursorZ, edge, 0 );
+	}
+
+	/**
+	 * Return the index of the vertex on the given side of the edge of the
+	 * cell, or {@link #EMPTY} if no vertex was created for it.
+	 */
+	public int get( final int cursorX, final int cursorY, final int cursorZ, final int edge, final int side )
+	{
+		moveToSlab( cursorZ );
+		final int[] position = EDGE_POSITION[ edge ];
+		return edges[ side * SETS + position[ 0 ] ][ ( cursorY + position[ 2 ] ) * width + cursorX + position[ 1 ] ];
+	}
+
+	/**
+	 * Store the index of the vertex created on the given edge of the cell.
+	 */
+	public void put( final int cursorX, final int cursorY, final int cursorZ, final int edge, final int vertexIndex )
+	{
+		put( cursorX, cursorY, cursorZ, edge, 0, vertexIndex );
+	}
+
+	/**
+	 * Store the index of the vertex created on the given side of the edge of
+	 * the cell.
+	 */
+	public void put( final int cursorX, final int cursorY, final int cursorZ, final int edge, final int side, final int vertexIndex )
+	{
+		moveToSlab( cursorZ );
+		final int[] position = EDGE_POSITION[ edge ];
+		edges[ side * SETS + position[ 0 ] ][ ( cursorY + position[ 2 ] ) * width + cursorX + position[ 1 ] ] = vertexIndex;
+	}
+
+	/**
+	 * When the cells of a new slab are being processed, the top plane becomes
+	 * the bottom plane and the other edges are cleaned. If the new slab is
+	 * not the next one, nothing can be reused.
+	 */
+	private void moveToSlab( final int cursorZ )
+	{
+		if ( cursorZ == slab )
+		{
+			return;
+		}
+
+		if ( cursorZ == slab + 1 )
+		{
+			for ( int side = 0; side < sides; side++ )
+			{
+				final int first = side * SETS;
+				int[] swap = edges[ first + X_BOTTOM ];
+				edges[ first + X_BOTTOM ] = edges[ first + X_TOP ];
+				edges[ first + X_TOP ] = swap;
+
+				swap = edges[ first + Y_BOTTOM ];
+				edges[ first + Y_BOTTOM ] = edges[ first + Y_TOP ];
+				edges[ first + Y_TOP ] = swap;
+
+				Arrays.fill( edges[ first + X_TOP ], 0, size, EMPTY );
+				Arrays.fill( edges[ first + Y_TOP ], 0, size, EMPTY );
+				Arrays.fill( edges[ first + Z ], 0, size, EMPTY );
+			}
+		}
+		else
+		{
+			for ( int i = 0; i < sides * SETS; i++ )
+			{
+				Arrays.fill( edges[ i ], 0, size, EMPTY );
+			}
+		}
+
+		slab = cursorZ;
+	}
+}
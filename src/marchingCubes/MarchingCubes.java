@@ -1,7 +1,11 @@
 package marchingCubes;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,10 +15,13 @@ import bdv.labels.labelset.LabelMultisetType;
 import bdv.labels.labelset.Multiset;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.Views;
 import util.SimpleMesh;
+import util.SimpleMeshSink;
+import util.VertexSink;
 
 /**
  * This class implements the marching cubes algorithm. Based on
@@ -34,7 +41,7 @@ public class MarchingCubes
 	private long nCellsX, nCellsY, nCellsZ;
 
 	/** The value (id) that we will use to create the mesh. */
-	private int foregroundValue;
+	private long foregroundValue;
 
 	/** Indicates which criterion is going to be applied */
 	private ForegroundCriterion criteria;
@@ -42,8 +49,101 @@ public class MarchingCubes
 	/** size of the cube */
 	private int[] cubeSize;
 
-	/** list of calculated vertices */
-	private ArrayList< float[] > vertices;
+	/** receives the calculated vertices and triangles */
+	private VertexSink vertexSink;
+
+	/** values of the eight vertices of the current cube */
+	private final long[] vertexValues;
+
+	/**
+	 * intersection point (x, y, z) on each one of the 12 edges of the cube,
+	 * in cubes
+	 */
+	private final float[] interpolationPoints;
+
+	/**
+	 * buffer where the chunk labels are copied, it is kept between calls and
+	 * only reallocated when a bigger chunk is given
+	 */
+	private long[] volumeArray;
+
+	/**
+	 * if true, the vertices are shared between the triangles and the mesh is
+	 * given as vertices plus triangle indices
+	 */
+	private boolean indexedOutput;
+
+	/** index of the vertices already created in the current slab */
+	private EdgeIndexCache edgeIndexCache;
+
+	/**
+	 * for each edge of the cell, the corner where it begins (the corner with
+	 * the smallest coordinates, see {@link MarchingCubesTables#MC_EDGE_VERTICES}).
+	 * In the multi-label extraction it gives the side of the edge in the
+	 * {@link EdgeIndexCache} of the label being triangulated.
+	 */
+	private static final int[] EDGE_FIRST_CORNER = { 0, 2, 3, 3, 4, 6, 7, 7, 4, 5, 6, 7 };
+
+	/**
+	 * ring buffer with the two z-planes (cubeSize[ 2 ] apart) used by the
+	 * streaming implementation. Only the cube vertices are stored.
+	 */
+	private long[][] planes;
+
+	/**
+	 * two planes of occupancy bits, one bit per cube vertex telling if it
+	 * is foreground, 64 vertices of a row per word
+	 */
+	private long[][] occupancy;
+
+	/** number of words of each row of {@link #occupancy} */
+	private int wordsPerRow;
+
+	/** summary of the labels copied to {@link #volumeArray} */
+	private BrickSummary brickSummary;
+
+	/** input copied to {@link #volumeArray}, null if none */
+	private RandomAccessibleInterval< LabelMultisetType > copiedInput;
+
+	/** dimensions of the copied input */
+	private int[] copiedDim;
+
+	/**
+	 * summary of the volume being triangulated, null if there is none and
+	 * all the voxels must be tested
+	 */
+	private BrickSummary volumeSummary;
+
+	/**
+	 * {@link BrickSummary#state} of each brick of {@link #volumeSummary} for
+	 * the current criterion and foreground value
+	 */
+	private byte[] brickStates;
+
+	/** creates the sinks of each label in the multi-label extraction */
+	private Supplier< VertexSink > vertexSinkFactory;
+
+	/**
+	 * meshes of each label being extracted by
+	 * {@link #generateMeshes(RandomAccessibleInterval, int[], int[], int[], Set)},
+	 * null when a single foreground value is used
+	 */
+	private Map< Long, LabelMesh > labelMeshes;
+
+	/**
+	 * if true, the multi-label extraction creates a mesh for each label
+	 * found in the volume (except the background)
+	 */
+	private boolean allLabels;
+
+	/**
+	 * faces of the volume touched by the mesh, see
+	 * {@link SimpleMesh#getBoundaryFaces()}
+	 */
+	private int boundaryFaces;
+
+	/** label of the voxels without label and of the voxels outside the volume */
+	public static final long BACKGROUND = 0;
 
 	/**
 	 * Enum of the available criteria. These criteria are used to evaluate if
@@ -67,7 +167,63 @@ public class MarchingCubes
 		this.foregroundValue = 0;
 		this.criteria = ForegroundCriterion.EQUAL;
 		this.cubeSize = new int[] { 1, 1, 1 };
-		this.vertices = new ArrayList<>();
+		this.vertexSink = new SimpleMeshSink();
+		this.vertexValues = new long[ 8 ];
+		this.interpolationPoints = new float[ 12 * 3 ];
+		this.volumeArray = new long[ 0 ];
+		this.planes = new long[][] { new long[ 0 ], new long[ 0 ] };
+		this.occupancy = new long[][] { new long[ 0 ], new long[ 0 ] };
+		this.wordsPerRow = 0;
+		this.brickSummary = new BrickSummary();
+		this.copiedInput = null;
+		this.copiedDim = null;
+		this.volumeSummary = null;
+		this.brickStates = new byte[ 0 ];
+		this.indexedOutput = false;
+		this.edgeIndexCache = new EdgeIndexCache();
+		this.vertexSinkFactory = SimpleMeshSink::new;
+		this.labelMeshes = null;
+		this.allLabels = false;
+		this.boundaryFaces = 0;
+	}
+
+	/**
+	 * Define where the vertices and triangles are written. By default a
+	 * {@link SimpleMeshSink} without normalization is used.
+	 * 
+	 * @param vertexSink
+	 *            receives the vertices and triangles of the next meshes
+	 */
+	public void setVertexSink( final VertexSink vertexSink )
+	{
+		this.vertexSink = vertexSink;
+	}
+
+	/**
+	 * Define how the sinks of the multi-label extraction are created, one
+	 * for each label. By default {@link SimpleMeshSink}s without
+	 * normalization are used.
+	 * 
+	 * @param vertexSinkFactory
+	 *            creates a new sink each time it is called
+	 */
+	public void setVertexSinkFactory( final Supplier< VertexSink > vertexSinkFactory )
+	{
+		this.vertexSinkFactory = vertexSinkFactory;
+	}
+
+	/**
+	 * Define if the generated meshes are indexed: each vertex is created only
+	 * once and the triangles are given as indices of the vertices (see
+	 * {@link SimpleMesh#getTriangles()}). Otherwise, each three vertices form
+	 * a triangle.
+	 * 
+	 * @param indexedOutput
+	 *            true to generate indexed meshes
+	 */
+	public void setIndexedOutput( final boolean indexedOutput )
+	{
+		this.indexedOutput = indexedOutput;
 	}
 
 	int[] offset;
@@ -84,7 +240,7 @@ public class MarchingCubes
 	 * @return
 	 */
 	public SimpleMesh generateMesh( final RandomAccessibleInterval< LabelMultisetType > input, final int[] volDim, final int[] offset,
-			final int[] cubeSize, final ForegroundCriterion foregroundCriteria, final int foregroundValue,
+			final int[] cubeSize, final ForegroundCriterion foregroundCriteria, final long foregroundValue,
 			final boolean copyToArray )
 	{
 		initializeVariables( volDim, offset, cubeSize, foregroundCriteria, foregroundValue );
@@ -101,12 +257,182 @@ public class MarchingCubes
 		return mesh;
 	}
 
-	private void initializeVariables( final int[] volDim, final int[] offset, final int[] cubeSize, final ForegroundCriterion foregroundCriteria, final int foregroundValue )
+	/**
+	 * Generates the mesh from labels that are already in an array.
+	 * 
+	 * @param volumeArray
+	 *            labels of the volume, x first, then y and z. The array must
+	 *            contain one voxel more than volDim in each side (the voxels
+	 *            outside of the volume), as the copy done when copyToArray is
+	 *            used
+	 * @param volDim
+	 * @param offset
+	 * @param cubeSize
+	 * @param foregroundCriteria
+	 * @param foregroundValue
+	 * @return
+	 */
+	public SimpleMesh generateMesh( final long[] volumeArray, final int[] volDim, final int[] offset,
+			final int[] cubeSize, final ForegroundCriterion foregroundCriteria, final long foregroundValue )
+	{
+		return generateMesh( volumeArray, null, volDim, offset, cubeSize, foregroundCriteria, foregroundValue );
+	}
+
+	/**
+	 * Generates the mesh from labels that are already in an array, skipping
+	 * the bricks of the volume that are completely inside or outside of the
+	 * mesh.
+	 * 
+	 * @param volumeArray
+	 *            labels of the volume, x first, then y and z, with one voxel
+	 *            more than volDim in each side
+	 * @param summary
+	 *            summary of volumeArray, built with
+	 *            {@link BrickSummary#build(long[], int, int, int)}. The same
+	 *            summary can be used for any cube size and foreground value.
+	 *            If null, all the voxels are tested.
+	 * @param volDim
+	 * @param offset
+	 * @param cubeSize
+	 * @param foregroundCriteria
+	 * @param foregroundValue
+	 * @return
+	 */
+	public SimpleMesh generateMesh( final long[] volumeArray, final BrickSummary summary, final int[] volDim, final int[] offset,
+			final int[] cubeSize, final ForegroundCriterion foregroundCriteria, final long foregroundValue )
+	{
+		initializeVariables( volDim, offset, cubeSize, foregroundCriteria, foregroundValue );
+		return generateMeshFromVolume( volumeArray, summary, volDim, cubeSize );
+	}
+
+	/**
+	 * The copy of the last input given with copyToArray is reused when the
+	 * same input is given again (for another cube size or foreground value).
+	 * This method discards the copy, it must be called if the labels of the
+	 * input changed.
+	 */
+	public void clearCopiedVolume()
+	{
+		copiedInput = null;
+		copiedDim = null;
+	}
+
+	/**
+	 * Generates the mesh reading the volume plane by plane. Only two z-planes
+	 * of cube vertices are kept in memory, so the memory used is proportional
+	 * to the xy size of the volume and does not depend on its depth.
+	 * 
+	 * @param input
+	 * @param volDim
+	 * @param offset
+	 * @param cubeSize
+	 * @param foregroundCriteria
+	 * @param foregroundValue
+	 * @return
+	 */
+	public SimpleMesh generateMeshStreaming( final RandomAccessibleInterval< LabelMultisetType > input, final int[] volDim, final int[] offset,
+			final int[] cubeSize, final ForegroundCriterion foregroundCriteria, final long foregroundValue )
+	{
+		initializeVariables( volDim, offset, cubeSize, foregroundCriteria, foregroundValue );
+		return generateMeshFromSlices( input, cubeSize );
+	}
+
+	/**
+	 * Generates one mesh for each label in a single pass over the volume. The
+	 * cells are read as in
+	 * {@link #generateMeshStreaming(RandomAccessibleInterval, int[], int[], int[], ForegroundCriterion, long)}
+	 * and only the cells with more than one label on their corners are
+	 * triangulated, once for each label present. The foreground criterion
+	 * is always {@link ForegroundCriterion#EQUAL}.
+	 * 
+	 * @param input
+	 * @param volDim
+	 * @param offset
+	 * @param cubeSize
+	 * @param labels
+	 *            labels to be extracted, or null to extract all the labels
+	 *            found in the volume except {@link #BACKGROUND}
+	 * @return the mesh of each label. When labels are given, all of them
+	 *         are in the map, even if the mesh is empty
+	 */
+	public Map< Long, SimpleMesh > generateMeshes( final RandomAccessibleInterval< LabelMultisetType > input, final int[] volDim, final int[] offset,
+			final int[] cubeSize, final Set< Long > labels )
+	{
+		this.offset = offset;
+		this.cubeSize = cubeSize;
+		this.criteria = ForegroundCriterion.EQUAL;
+		initializeCells( volDim, cubeSize );
+
+		allLabels = ( labels == null );
+		labelMeshes = new HashMap<>();
+		if ( !allLabels )
+		{
+			for ( final Long label : labels )
+			{
+				labelMeshes.put( label, createLabelMesh() );
+			}
+		}
+
+		// the triangulation of each label uses its own sink; the cache of
+		// vertices is shared, each edge keeps the vertices of the labels of
+		// its two ends
+		if ( indexedOutput )
+		{
+			edgeIndexCache.reset( nCellsX, nCellsY, 2 );
+		}
+
+		final VertexSink sink = vertexSink;
+		final Map< Long, SimpleMesh > meshes = new HashMap<>();
+		try
+		{
+			generateMeshesFromSlices( input, cubeSize );
+
+			for ( final Map.Entry< Long, LabelMesh > entry : labelMeshes.entrySet() )
+			{
+				final SimpleMesh labelMesh = entry.getValue().sink.end();
+				labelMesh.setBoundaryFaces( entry.getValue().boundaryFaces );
+				meshes.put( entry.getKey(), labelMesh );
+			}
+		}
+		finally
+		{
+			vertexSink = sink;
+			labelMeshes = null;
+		}
+
+		if ( LOGGER.isDebugEnabled() )
+		{
+			LOGGER.debug( "meshes generated for " + meshes.size() + " labels" );
+		}
+
+		return meshes;
+	}
+
+	private void initializeVariables( final int[] volDim, final int[] offset, final int[] cubeSize, final ForegroundCriterion foregroundCriteria, final long foregroundValue )
 	{
 		this.offset = offset;
 		this.cubeSize = cubeSize;
 		this.criteria = foregroundCriteria;
 		this.foregroundValue = foregroundValue;
+		this.mesh = new SimpleMesh();
+
+		initializeCells( volDim, cubeSize );
+
+		if ( indexedOutput )
+		{
+			edgeIndexCache.reset( nCellsX, nCellsY );
+		}
+
+		vertexSink.begin( offset, cubeSize, indexedOutput );
+	}
+
+	/**
+	 * Calculates the number of cells in each direction. The volume has one
+	 * voxel more in each side, the last cell must be complete.
+	 */
+	private void initializeCells( final int[] volDim, final int[] cubeSize )
+	{
+		boundaryFaces = 0;
 
 		nCellsX = ( long ) Math.ceil( ( volDim[ 0 ] + 2 ) / cubeSize[ 0 ] );
 		nCellsY = ( long ) Math.ceil( ( volDim[ 1 ] + 2 ) / cubeSize[ 1 ] );
@@ -121,330 +447,775 @@ public class MarchingCubes
 	}
 
 	/**
+	 * Generates the mesh sampling the corners of the cells directly from the
+	 * RAI. Four random accesses, one for each row of corners of the cell
+	 * (bottom and top plane, front and back row), walk along x in steps of
+	 * the cube size, so the cost depends on the number of cells and not on
+	 * the number of voxels. The corners on the right side of a cell are the
+	 * corners on the left side of the next one, so only four labels are read
+	 * per cell.
+	 * 
+	 * @param input
+	 * @param cubeSize
+	 * @return
+	 */
+	private SimpleMesh generateMeshFromRAI( final RandomAccessibleInterval< LabelMultisetType > input, final int[] cubeSize )
+	{
+		final ExtendedRandomAccessibleInterval< LabelMultisetType, RandomAccessibleInterval< LabelMultisetType > > extended =
+				Views.extendValue( input, new LabelMultisetType() );
+
+		// all the positions visited are inside of the volume plus one voxel
+		// in each side
+		final FinalInterval interval = new FinalInterval(
+				new long[] { input.min( 0 ) - 1, input.min( 1 ) - 1, input.min( 2 ) - 1 },
+				new long[] { input.max( 0 ) + 1, input.max( 1 ) + 1, input.max( 2 ) + 1 } );
+
+		// corners (y, z), (y + 1, z), (y, z + 1) and (y + 1, z + 1) of the cell
+		final RandomAccess< LabelMultisetType > access = extended.randomAccess( interval );
+		final RandomAccess< LabelMultisetType > accessY = extended.randomAccess( interval );
+		final RandomAccess< LabelMultisetType > accessZ = extended.randomAccess( interval );
+		final RandomAccess< LabelMultisetType > accessYZ = extended.randomAccess( interval );
+
+		final long beginX = interval.min( 0 );
+		final long beginY = interval.min( 1 );
+		final long beginZ = interval.min( 2 );
+
+		for ( int cursorZ = 0; cursorZ < nCellsZ; cursorZ++ )
+		{
+			checkInterrupted();
+			final long z = beginZ + ( long ) cubeSize[ 2 ] * cursorZ;
+			for ( int cursorY = 0; cursorY < nCellsY; cursorY++ )
+			{
+				final long y = beginY + ( long ) cubeSize[ 1 ] * cursorY;
+				setRowPosition( access, beginX, y, z );
+				setRowPosition( accessY, beginX, y + cubeSize[ 1 ], z );
+				setRowPosition( accessZ, beginX, y, z + cubeSize[ 2 ] );
+				setRowPosition( accessYZ, beginX, y + cubeSize[ 1 ], z + cubeSize[ 2 ] );
+
+				// left side of the first cell of the row
+				long left = getLabel( access.get() );
+				long leftY = getLabel( accessY.get() );
+				long leftZ = getLabel( accessZ.get() );
+				long leftYZ = getLabel( accessYZ.get() );
+
+				for ( int cursorX = 0; cursorX < nCellsX; cursorX++ )
+				{
+					access.move( cubeSize[ 0 ], 0 );
+					accessY.move( cubeSize[ 0 ], 0 );
+					accessZ.move( cubeSize[ 0 ], 0 );
+					accessYZ.move( cubeSize[ 0 ], 0 );
+
+					// same vertex order used by generateMeshFromArray
+					vertexValues[ 7 ] = left;
+					vertexValues[ 3 ] = left = getLabel( access.get() );
+					vertexValues[ 6 ] = leftY;
+					vertexValues[ 2 ] = leftY = getLabel( accessY.get() );
+					vertexValues[ 4 ] = leftZ;
+					vertexValues[ 0 ] = leftZ = getLabel( accessZ.get() );
+					vertexValues[ 5 ] = leftYZ;
+					vertexValues[ 1 ] = leftYZ = getLabel( accessYZ.get() );
+
+					if ( LOGGER.isTraceEnabled() )
+					{
+						// @formatter:off
+						LOGGER.trace( " " + vertexValues[ 4 ] + "------" + vertexValues[ 5 ] );
+						LOGGER.trace( " /|     /|" );
+						LOGGER.trace( " " + vertexValues[ 7 ] + "-----" + vertexValues[ 6 ] + " |" );
+						LOGGER.trace( " |" + vertexValues[ 0 ] + "----|-" + vertexValues[ 1 ] );
+						LOGGER.trace( " |/    |/" );
+						LOGGER.trace( " " + vertexValues[ 3 ] + "-----" + vertexValues[ 2 ] );
+						// @formatter:on
+					}
+
+					triangulation( vertexValues, cursorX, cursorY, cursorZ );
+				}
+			}
+		}
+
+		markUnsampledFaces( extended.randomAccess( interval ), beginX, beginY, beginZ, input );
+
+		mesh = vertexSink.end();
+		mesh.setBoundaryFaces( boundaryFaces );
+
+		return mesh;
+	}
+
+	/**
+	 * Place the random access on the beginning of a row of cells.
+	 */
+	private static void setRowPosition( final RandomAccess< LabelMultisetType > access, final long x, final long y, final long z )
+	{
+		access.setPosition( x, 0 );
+		access.setPosition( y, 1 );
+		access.setPosition( z, 2 );
+	}
+
+	/**
+	 * 
+	 * @param input
+	 * @param volDim
+	 * @param cubeSize
+	 * @return
+	 */
+	private SimpleMesh generateMeshFromArray( final RandomAccessibleInterval< LabelMultisetType > input, final int[] volDim, final int[] cubeSize )
+	{
+		// dimension on x direction, used to access the volume as an array
+		// two dimensions more: from 'min minus one' to 'max plus one'
+		final int xWidth = ( volDim[ 0 ] + 2 );
+
+		// dimension on xy direction, used to access the volume as an array
+		final int xyWidth = xWidth * ( volDim[ 1 ] + 2 );
+
+		final long volumeSize = ( long ) xyWidth * ( volDim[ 2 ] + 2 );
+		if ( volumeSize > Integer.MAX_VALUE )
+		{
+			throw new IllegalArgumentException( "chunk with " + volumeSize + " voxels does not fit in an array" );
+		}
+
+		// the same input was already copied
+		if ( input == copiedInput && Arrays.equals( volDim, copiedDim ) )
+		{
+			LOGGER.trace( "reusing the copied volume" );
+			return generateMeshFromVolume( volumeArray, brickSummary, volDim, cubeSize );
+		}
+
+		// array where the data will be copied, reuse the one from the previous
+		// call if it is big enough
+		if ( volumeArray.length < volumeSize )
+		{
+			volumeArray = new long[ ( int ) volumeSize ];
+		}
+
+		final ExtendedRandomAccessibleInterval< LabelMultisetType, RandomAccessibleInterval< LabelMultisetType > > extended =
+				Views.extendValue( input, new LabelMultisetType() );
+
+		final Cursor< LabelMultisetType > cursor = Views.flatIterable( Views.interval( extended,
+				new FinalInterval( new long[] { input.min( 0 ) - 1, input.min( 1 ) - 1, input.min( 2 ) - 1 },
+						new long[] { input.max( 0 ) + 1, input.max( 1 ) + 1, input.max( 2 ) + 1 } ) ) )
+				.cursor();
+
+		// the summary of the bricks is built while the rows are copied
+		final int ySize = volDim[ 1 ] + 2;
+		final int zSize = volDim[ 2 ] + 2;
+		copiedInput = null;
+		brickSummary.reset( xWidth, ySize, zSize );
+
+		int index = 0;
+		for ( int z = 0; z < zSize; z++ )
+		{
+			checkInterrupted();
+			for ( int y = 0; y < ySize; y++ )
+			{
+				final int rowBegin = index;
+				for ( int x = 0; x < xWidth; x++ )
+				{
+					volumeArray[ index++ ] = getLabel( cursor.next() );
+				}
+				brickSummary.addRow( volumeArray, rowBegin, xWidth, y, z );
+			}
+		}
+
+		copiedInput = input;
+		copiedDim = volDim.clone();
+
+		return generateMeshFromVolume( volumeArray, brickSummary, volDim, cubeSize );
+	}
+
+	/**
+	 * Generates the mesh from the labels of a volume given as an array
+	 * 
+	 * @param volumeArray
+	 *            labels of the volume, x first, then y and z. The array must
+	 *            contain one voxel more than the volume in each side
+	 * @param summary
+	 *            summary of the bricks of the volume, or null
+	 * @param volDim
+	 * @param cubeSize
+	 * @return
+	 */
+	private SimpleMesh generateMeshFromVolume( final long[] volumeArray, final BrickSummary summary, final int[] volDim, final int[] cubeSize )
+	{
+		// dimension on x direction, used to access the volume as an array
+		// two dimensions more: from 'min minus one' to 'max plus one'
+		final int xWidth = ( volDim[ 0 ] + 2 );
+
+		// dimension on xy direction, used to access the volume as an array
+		final int xyWidth = xWidth * ( volDim[ 1 ] + 2 );
+
+		if ( LOGGER.isDebugEnabled() )
+		{
+			LOGGER.debug( "volume size: " + volumeArray.length );
+			LOGGER.debug( "xWidth: " + xWidth + " xyWidth: " + xyWidth );
+			LOGGER.debug( "ncells - x, y, z: " + nCellsX + " " + nCellsY + " " + nCellsZ );
+			LOGGER.debug( "max position on array: "
+					+ ( ( ( int ) ( cubeSize[ 2 ] * nCellsZ ) * xyWidth
+							+ ( int ) ( cubeSize[ 1 ] * nCellsY ) * xWidth
+							+ ( int ) ( cubeSize[ 0 ] * nCellsX ) ) ) );
+		}
+
+		initializeOccupancy();
+		initializeBrickStates( summary );
+
+		for ( int row = 0; row <= nCellsY; row++ )
+		{
+			fillOccupancyRow( volumeArray, xWidth, xyWidth, occupancy[ 0 ], row, 0 );
+		}
+
+		for ( int cursorZ = 0; cursorZ < nCellsZ; cursorZ++ )
+		{
+			checkInterrupted();
+			final long[] bottom = occupancy[ cursorZ & 1 ];
+			final long[] top = occupancy[ ( cursorZ + 1 ) & 1 ];
+
+			for ( int row = 0; row <= nCellsY; row++ )
+			{
+				fillOccupancyRow( volumeArray, xWidth, xyWidth, top, row, cursorZ + 1 );
+			}
+
+			for ( int cursorY = 0; cursorY < nCellsY; cursorY++ )
+			{
+				triangulateOccupancyRow( bottom, top, cursorY, cursorZ );
+			}
+		}
+
+		markUnsampledFaces( ( x, y, z ) -> volumeArray[ z * xyWidth + y * xWidth + x ], volDim );
+
+		mesh = vertexSink.end();
+		mesh.setBoundaryFaces( boundaryFaces );
+
+		return mesh;
+	}
+
+	/**
+	 * Generates the mesh keeping only two planes of occupancy bits: the
+	 * plane at the bottom of the current slab of cells and the plane at its
+	 * top. While the cells of a row are triangulated, the next row of the top
+	 * plane is read from the volume, and when the slab is done the top plane
+	 * becomes the bottom of the next slab.
+	 * 
+	 * @param input
+	 * @param cubeSize
+	 * @return
+	 */
+	private SimpleMesh generateMeshFromSlices( final RandomAccessibleInterval< LabelMultisetType > input, final int[] cubeSize )
+	{
+		final ExtendedRandomAccessibleInterval< LabelMultisetType, RandomAccessibleInterval< LabelMultisetType > > extended =
+				Views.extendValue( input, new LabelMultisetType() );
+		final RandomAccess< LabelMultisetType > access = extended.randomAccess();
+
+		initializeOccupancy();
+
+		// the volume starts at 'min minus one'
+		final long beginX = input.min( 0 ) - 1;
+		final long beginY = input.min( 1 ) - 1;
+		final long beginZ = input.min( 2 ) - 1;
+
+		for ( int row = 0; row <= nCellsY; row++ )
+		{
+			fillOccupancyRow( access, occupancy[ 0 ], row, beginX, beginY, beginZ );
+		}
+
+		for ( int cursorZ = 0; cursorZ < nCellsZ; cursorZ++ )
+		{
+			checkInterrupted();
+			final long[] bottom = occupancy[ cursorZ & 1 ];
+			final long[] top = occupancy[ ( cursorZ + 1 ) & 1 ];
+			final long topZ = beginZ + cubeSize[ 2 ] * ( cursorZ + 1 );
+
+			fillOccupancyRow( access, top, 0, beginX, beginY, topZ );
+
+			for ( int cursorY = 0; cursorY < nCellsY; cursorY++ )
+			{
+				// the row cursorY + 1 of the top plane is needed by this row
+				// of cells
+				fillOccupancyRow( access, top, cursorY + 1, beginX, beginY, topZ );
+				triangulateOccupancyRow( bottom, top, cursorY, cursorZ );
+			}
+
+			LOGGER.trace( "slab {} done", cursorZ );
+		}
+
+		markUnsampledFaces( access, beginX, beginY, beginZ, input );
+
+		mesh = vertexSink.end();
+		mesh.setBoundaryFaces( boundaryFaces );
+
+		return mesh;
+	}
+
+	/**
+	 * Generates the meshes of the labels in {@link #labelMeshes} keeping
+	 * only two planes of cube vertices: the plane at the bottom of the
+	 * current slab of cells and the plane at its top. While the cells of a
+	 * row are triangulated, the next row of the top plane is read from the
+	 * volume, and when the slab is done the top plane becomes the bottom of
+	 * the next slab.
+	 * 
+	 * @param input
+	 * @param cubeSize
+	 */
+	private void generateMeshesFromSlices( final RandomAccessibleInterval< LabelMultisetType > input, final int[] cubeSize )
+	{
+		final ExtendedRandomAccessibleInterval< LabelMultisetType, RandomAccessibleInterval< LabelMultisetType > > extended =
+				Views.extendValue( input, new LabelMultisetType() );
+		final RandomAccess< LabelMultisetType > access = extended.randomAccess();
+
+		// one vertex more than the number of cells in each direction
+		final int planeWidth = ( int ) nCellsX + 1;
+		final int planeSize = planeWidth * ( ( int ) nCellsY + 1 );
+		for ( int i = 0; i < planes.length; i++ )
+		{
+			if ( planes[ i ].length < planeSize )
+			{
+				planes[ i ] = new long[ planeSize ];
+			}
+		}
+
+		// the volume starts at 'min minus one'
+		final long beginX = input.min( 0 ) - 1;
+		final long beginY = input.min( 1 ) - 1;
+		final long beginZ = input.min( 2 ) - 1;
+
+		for ( int row = 0; row <= nCellsY; row++ )
+		{
+			fillPlaneRow( access, planes[ 0 ], planeWidth, row, beginX, beginY, beginZ );
+		}
+
+		for ( int cursorZ = 0; cursorZ < nCellsZ; cursorZ++ )
+		{
+			checkInterrupted();
+			final long[] bottom = planes[ cursorZ & 1 ];
+			final long[] top = planes[ ( cursorZ + 1 ) & 1 ];
+			final long topZ = beginZ + cubeSize[ 2 ] * ( cursorZ + 1 );
+
+			fillPlaneRow( access, top, planeWidth, 0, beginX, beginY, topZ );
+
+			for ( int cursorY = 0; cursorY < nCellsY; cursorY++ )
+			{
+				// the row cursorY + 1 of the top plane is needed by this row
+				// of cells
+				fillPlaneRow( access, top, planeWidth, cursorY + 1, beginX, beginY, topZ );
+
+				final int row = cursorY * planeWidth;
+				final int nextRow = row + planeWidth;
+				for ( int cursorX = 0; cursorX < nCellsX; cursorX++ )
+				{
+					// same vertex order used by generateMeshFromArray
+					vertexValues[ 7 ] = bottom[ row + cursorX ];
+					vertexValues[ 3 ] = bottom[ row + cursorX + 1 ];
+					vertexValues[ 6 ] = bottom[ nextRow + cursorX ];
+					vertexValues[ 2 ] = bottom[ nextRow + cursorX + 1 ];
+					vertexValues[ 4 ] = top[ row + cursorX ];
+					vertexValues[ 0 ] = top[ row + cursorX + 1 ];
+					vertexValues[ 5 ] = top[ nextRow + cursorX ];
+					vertexValues[ 1 ] = top[ nextRow + cursorX + 1 ];
+
+					triangulateLabels( cursorX, cursorY, cursorZ );
+				}
+			}
+
+			LOGGER.trace( "slab {} done", cursorZ );
+		}
+
+		markUnsampledFaces( access, beginX, beginY, beginZ, input );
+	}
+
+	/**
+	 * Prepare the two planes of occupancy bits for the current number of
+	 * cells, the arrays are only reallocated if they are smaller than
+	 * needed.
+	 */
+	private void initializeOccupancy()
+	{
+		// one vertex more than the number of cells in each direction
+		wordsPerRow = ( ( int ) nCellsX + 1 + 63 ) >>> 6;
+		final int planeSize = wordsPerRow * ( ( int ) nCellsY + 1 );
+		for ( int i = 0; i < occupancy.length; i++ )
+		{
+			if ( occupancy[ i ].length < planeSize )
+			{
+				occupancy[ i ] = new long[ planeSize ];
+			}
+		}
+	}
+
+	/**
+	 * Reads one row of cube vertices of a plane from the volume and stores
+	 * if each one of them is foreground.
+	 * 
+	 * @param access
+	 *            random access on the extended volume
+	 * @param plane
+	 *            plane that receives the occupancy bits
+	 * @param row
+	 *            index of the row (in cells)
+	 * @param beginX
+	 *            position of the first vertex of the row on x
+	 * @param beginY
+	 *            position of the first row of the plane on y
+	 * @param z
+	 *            position of the plane on z
+	 */
+	private void fillOccupancyRow( final RandomAccess< LabelMultisetType > access, final long[] plane, final int row,
+			final long beginX, final long beginY, final long z )
+	{
+		access.setPosition( beginX, 0 );
+		access.setPosition( beginY + cubeSize[ 1 ] * row, 1 );
+		access.setPosition( z, 2 );
+
+		final int rowBegin = row * wordsPerRow;
+		final int planeWidth = ( int ) nCellsX + 1;
+		long word = 0;
+		for ( int i = 0; i < planeWidth; i++ )
+		{
+			if ( foregroundCriterionTest( getLabel( access.get() ) ) )
+			{
+				word |= 1L << ( i & 63 );
+			}
+
+			if ( ( i & 63 ) == 63 )
+			{
+				plane[ rowBegin + ( i >>> 6 ) ] = word;
+				word = 0;
+			}
+			access.move( cubeSize[ 0 ], 0 );
+		}
+
+		if ( ( planeWidth & 63 ) != 0 )
+		{
+			plane[ rowBegin + ( planeWidth >>> 6 ) ] = word;
+		}
+	}
+
+	/**
+	 * Same as {@link #fillOccupancyRow(RandomAccess, long[], int, long, long, long)}
+	 * but reading the labels from an array.
+	 * 
+	 * @param volumeArray
+	 *            labels of the volume, x first, then y and z
+	 * @param xWidth
+	 *            dimension of the array on x
+	 * @param xyWidth
+	 *            dimension of the array on xy
+	 * @param plane
+	 *            plane that receives the occupancy bits
+	 * @param row
+	 *            index of the row (in cells)
+	 * @param planeZ
+	 *            index of the plane (in cells)
+	 */
+	private void fillOccupancyRow( final long[] volumeArray, final int xWidth, final int xyWidth, final long[] plane, final int row,
+			final int planeZ )
+	{
+		final int begin = cubeSize[ 2 ] * planeZ * xyWidth + cubeSize[ 1 ] * row * xWidth;
+		final int rowBegin = row * wordsPerRow;
+		final int planeWidth = ( int ) nCellsX + 1;
+		Arrays.fill( plane, rowBegin, rowBegin + wordsPerRow, 0 );
+
+		if ( volumeSummary == null )
+		{
+			testVertices( volumeArray, begin, plane, rowBegin, 0, planeWidth );
+			return;
+		}
+
+		// only the vertices in mixed bricks are tested
+		final int bricksX = volumeSummary.getBricksX();
+		final int statesBegin = ( ( ( cubeSize[ 2 ] * planeZ ) / BrickSummary.BRICK_SIZE ) * volumeSummary.getBricksY()
+				+ ( cubeSize[ 1 ] * row ) / BrickSummary.BRICK_SIZE ) * bricksX;
+		int first = 0;
+		for ( int brickX = 0; brickX < bricksX && first < planeWidth; brickX++ )
+		{
+			// first vertex after the end of the brick
+			final int end = Math.min( planeWidth, ( ( brickX + 1 ) * BrickSummary.BRICK_SIZE + cubeSize[ 0 ] - 1 ) / cubeSize[ 0 ] );
+			switch ( brickStates[ statesBegin + brickX ] )
+			{
+			case BrickSummary.OUTSIDE:
+				break;
+			case BrickSummary.INSIDE:
+				setBits( plane, rowBegin, first, end );
+				break;
+			default:
+				testVertices( volumeArray, begin, plane, rowBegin, first, end );
+			}
+			first = Math.max( first, end );
+		}
+	}
+
+	/**
+	 * Set the occupancy bit of the vertices from first to end (exclusive) of
+	 * a row that are foreground.
+	 */
+	private void testVertices( final long[] volumeArray, final int begin, final long[] plane, final int rowBegin, final int first, final int end )
+	{
+		for ( int i = first; i < end; i++ )
+		{
+			if ( foregroundCriterionTest( volumeArray[ begin + i * cubeSize[ 0 ] ] ) )
+			{
+				plane[ rowBegin + ( i >>> 6 ) ] |= 1L << ( i & 63 );
+			}
+		}
+	}
+
+	/**
+	 * Set the occupancy bits of the vertices from first to end (exclusive) of
+	 * a row.
+	 */
+	private static void setBits( final long[] plane, final int rowBegin, int first, final int end )
+	{
+		while ( first < end )
+		{
+			final int wordEnd = Math.min( end, ( ( first >>> 6 ) + 1 ) << 6 );
+			final int count = wordEnd - first;
+			final long bits = count == 64 ? -1L : ( ( 1L << count ) - 1 ) << ( first & 63 );
+			plane[ rowBegin + ( first >>> 6 ) ] |= bits;
+			first = wordEnd;
+		}
+	}
+
+	/**
+	 * Calculates if each brick of the summary is inside or outside of the
+	 * mesh for the current criterion and foreground value.
 	 * 
-	 * @param input
-	 * @param cubeSize
-	 * @return
+	 * @param summary
+	 *            summary of the volume, or null if there is none
 	 */
-	private SimpleMesh generateMeshFromRAI( final RandomAccessibleInterval< LabelMultisetType > input, final int[] cubeSize )
+	private void initializeBrickStates( final BrickSummary summary )
 	{
-		final ExtendedRandomAccessibleInterval< LabelMultisetType, RandomAccessibleInterval< LabelMultisetType > > extended =
-				Views.extendValue( input, new LabelMultisetType() );
-
-		final Cursor< LabelMultisetType > cursor = Views.flatIterable( Views.interval( extended,
-				new FinalInterval( new long[] { input.min( 0 ) - 1, input.min( 1 ) - 1, input.min( 2 ) - 1 },
-						new long[] { input.max( 0 ) + 1, input.max( 1 ) + 1, input.max( 2 ) + 1 } ) ) )
-				.localizingCursor();
-
-		cursor.next();
-		int beginX = cursor.getIntPosition( 0 );
-
-		// how many cells we walked in x, y and z.
-		int xCells = 0;
-		int yCells = 0;
-		int zCells = 0;
-
-		while ( cursor.hasNext() )
+		volumeSummary = summary;
+		if ( summary == null )
 		{
-			int cursorX = cursor.getIntPosition( 0 );
-			int cursorY = cursor.getIntPosition( 1 );
-			int cursorZ = cursor.getIntPosition( 2 );
+			return;
+		}
 
-			if ( beginX != cursorX )
-			{
-				xCells++;
-			}
+		final int size = summary.getBricksX() * summary.getBricksY() * summary.getBricksZ();
+		if ( brickStates.length < size )
+		{
+			brickStates = new byte[ size ];
+		}
 
-			// get the 8 vertices of the cube taking into account the cube size
-			List< Cursor< LabelMultisetType > > verticesCursor = new ArrayList< Cursor< LabelMultisetType > >();
-			verticesCursor.add( getVertex( extended, cursorX, cursorY, cursorZ ) );
-			verticesCursor.add( getVertex( extended, cursorX + cubeSize[ 0 ], cursorY, cursorZ ) );
-			verticesCursor.add( getVertex( extended, cursorX, cursorY + cubeSize[ 1 ], cursorZ ) );
-			verticesCursor.add( getVertex( extended, cursorX + cubeSize[ 0 ], cursorY + cubeSize[ 1 ], cursorZ ) );
-			verticesCursor.add( getVertex( extended, cursorX, cursorY, cursorZ + cubeSize[ 2 ] ) );
-			verticesCursor.add( getVertex( extended, cursorX + cubeSize[ 0 ], cursorY, cursorZ + cubeSize[ 2 ] ) );
-			verticesCursor.add( getVertex( extended, cursorX, cursorY + cubeSize[ 1 ], cursorZ + cubeSize[ 2 ] ) );
-			verticesCursor.add( getVertex( extended, cursorX + cubeSize[ 0 ], cursorY + cubeSize[ 1 ], cursorZ + cubeSize[ 2 ] ) );
-
-			// for each one of the verticesCursor, get its value
-			double[] vertexValues = new double[ 8 ];
-			for ( int i = 0; i < verticesCursor.size(); i++ )
+		int brick = 0;
+		int skipped = 0;
+		for ( int z = 0; z < summary.getBricksZ(); z++ )
+		{
+			for ( int y = 0; y < summary.getBricksY(); y++ )
 			{
-				Cursor< LabelMultisetType > vertex = verticesCursor.get( i );
-				while ( vertex.hasNext() )
+				for ( int x = 0; x < summary.getBricksX(); x++ )
 				{
-					LabelMultisetType it = vertex.next();
-
-					for ( final Multiset.Entry< Label > e : it.entrySet() )
+					brickStates[ brick ] = ( byte ) summary.state( x, y, z, criteria, foregroundValue );
+					if ( brickStates[ brick++ ] != BrickSummary.MIXED )
 					{
-						vertexValues[ i ] = e.getElement().id();
+						skipped++;
 					}
 				}
 			}
+		}
+
+		if ( LOGGER.isDebugEnabled() )
+		{
+			LOGGER.debug( "bricks: " + size + " without surface: " + skipped );
+		}
+	}
 
-			if ( LOGGER.isDebugEnabled() )
+	/**
+	 * Triangulates a row of cells from the occupancy bits of its four rows
+	 * of vertices. For each word of 64 cells, the cells with all the
+	 * vertices inside or all outside are discarded together; the case index
+	 * of the remaining cells is assembled from the bits of their vertices.
+	 * 
+	 * @param bottom
+	 *            occupancy of the bottom plane of the slab
+	 * @param top
+	 *            occupancy of the top plane of the slab
+	 * @param cursorY
+	 *            position of the row on y
+	 * @param cursorZ
+	 *            position of the slab on z
+	 */
+	private void triangulateOccupancyRow( final long[] bottom, final long[] top, final int cursorY, final int cursorZ )
+	{
+		final int row = cursorY * wordsPerRow;
+		final int nextRow = row + wordsPerRow;
+		final int cellWords = ( int ) ( ( nCellsX + 63 ) >>> 6 );
+		final long lastWordMask = ( nCellsX & 63 ) == 0 ? -1L : ( 1L << ( nCellsX & 63 ) ) - 1;
+
+		for ( int word = 0; word < cellWords; word++ )
+		{
+			// bit i of each variable is a vertex of the cell i of the word:
+			// 0 for the vertices on the left of the cell, 1 on the right
+			final long a0 = bottom[ row + word ];
+			final long b0 = bottom[ nextRow + word ];
+			final long c0 = top[ row + word ];
+			final long d0 = top[ nextRow + word ];
+			final long a1 = rightVertices( bottom, row, word );
+			final long b1 = rightVertices( bottom, nextRow, word );
+			final long c1 = rightVertices( top, row, word );
+			final long d1 = rightVertices( top, nextRow, word );
+
+			final long inside = a0 & a1 & b0 & b1 & c0 & c1 & d0 & d1;
+			final long any = a0 | a1 | b0 | b1 | c0 | c1 | d0 | d1;
+			long mixed = any & ~inside;
+			if ( word == cellWords - 1 )
 			{
-				// @formatter:off
-				LOGGER.debug( " " + ( int ) vertexValues[ 4 ] + "------" + ( int ) vertexValues[ 5 ] );
-				LOGGER.debug( " /|     /|" );
-				LOGGER.debug( " " + ( int ) vertexValues[ 7 ] + "-----" + ( int ) vertexValues[ 6 ] + " |" );
-				LOGGER.debug( " |" + ( int ) vertexValues[ 0 ] + "----|-" + ( int ) vertexValues[ 1 ] );
-				LOGGER.debug( " |/    |/" );
-				LOGGER.debug( " " + ( int ) vertexValues[ 3 ] + "-----" + ( int ) vertexValues[ 2 ] );
-				// @formatter:on
+				mixed &= lastWordMask;
 			}
 
-			// @formatter:off
-			// the values from the cube are given first in z, then y, then x
-			// this way, the vertex_values (from getCube) are positioned in this
-			// way:
-			//
-			//
-			//  4------6
-			// /|     /|
-			// 0-----2 |
-			// |5----|-7
-			// |/    |/
-			// 1-----3
-			//
-			// this algorithm (based on
-			// http://paulbourke.net/geometry/polygonise/)
-			// considers the vertices of the cube in this order:
-			//
-			//  4------5
-			// /|     /|
-			// 7-----6 |
-			// |0----|-1
-			// |/    |/
-			// 3-----2
-			//
-			// This way, we need to remap the cube vertices:
-			// @formatter:on
-
-			vertexValues = remapCube( vertexValues );
-
-			if ( LOGGER.isDebugEnabled() )
+			while ( mixed != 0 )
 			{
-				// @formatter:off
-				LOGGER.debug( " " + ( int ) vertexValues[ 4 ] + "------" + ( int ) vertexValues[ 5 ] );
-				LOGGER.debug( " /|     /|" );
-				LOGGER.debug( " " + ( int ) vertexValues[ 7 ] + "-----" + ( int ) vertexValues[ 6 ] + " |" );
-				LOGGER.debug( " |" + ( int ) vertexValues[ 0 ] + "----|-" + ( int ) vertexValues[ 1 ] );
-				LOGGER.debug( " |/    |/" );
-				LOGGER.debug( " " + ( int ) vertexValues[ 3 ] + "-----" + ( int ) vertexValues[ 2 ] );
-				// @formatter:on
+				final int bit = Long.numberOfTrailingZeros( mixed );
+				mixed &= mixed - 1;
+
+				// same vertex order used by the triangulation
+				final int tableIndex = ( int ) ( ( c1 >>> bit ) & 1
+						| ( ( d1 >>> bit ) & 1 ) << 1
+						| ( ( b1 >>> bit ) & 1 ) << 2
+						| ( ( a1 >>> bit ) & 1 ) << 3
+						| ( ( c0 >>> bit ) & 1 ) << 4
+						| ( ( d0 >>> bit ) & 1 ) << 5
+						| ( ( b0 >>> bit ) & 1 ) << 6
+						| ( ( a0 >>> bit ) & 1 ) << 7 );
+
+				triangulation( tableIndex, ( word << 6 ) + bit, cursorY, cursorZ );
 			}
+		}
+	}
 
-			triangulation( vertexValues, xCells, yCells, zCells );
+	/**
+	 * @return the occupancy of the vertices one position to the right of the
+	 *         vertices in the given word, so the bit i is the vertex i + 1
+	 */
+	private long rightVertices( final long[] plane, final int rowBegin, final int word )
+	{
+		long bits = plane[ rowBegin + word ] >>> 1;
+		if ( word + 1 < wordsPerRow )
+		{
+			bits |= plane[ rowBegin + word + 1 ] << 63;
+		}
 
-			for ( int j = 0; j < cubeSize[ 0 ]; j++ )
-			{
-				cursor.next();
-			}
+		return bits;
+	}
+
+	/**
+	 * Triangulates the current cell once for each one of its labels. Cells
+	 * with the same label in all the corners are inside of a single label
+	 * and do not have any surface.
+	 */
+	private void triangulateLabels( final int cursorX, final int cursorY, final int cursorZ )
+	{
+		boolean uniform = true;
+		for ( int i = 1; i < 8 && uniform; i++ )
+		{
+			uniform = ( vertexValues[ i ] == vertexValues[ 0 ] );
+		}
 
-			if ( xCells == nCellsX - 1 )
+		if ( uniform )
+		{
+			return;
+		}
+
+		for ( int i = 0; i < 8; i++ )
+		{
+			final long label = vertexValues[ i ];
+
+			// each label only once
+			boolean repeated = false;
+			for ( int j = 0; j < i && !repeated; j++ )
 			{
-				int newY = cursorY + cubeSize[ 1 ];
-				while ( cursor.hasNext() )
-				{
-					cursor.next();
-					cursorX = cursor.getIntPosition( 0 );
-					cursorY = cursor.getIntPosition( 1 );
-					if ( cursorX == input.min( 0 ) - 1 && cursorY == newY )
-					{
-						break;
-					}
-				}
-				xCells = 0;
-				yCells++;
+				repeated = ( vertexValues[ j ] == label );
 			}
 
-			if ( yCells == nCellsY )
+			if ( repeated )
 			{
-				int newZ = cursorZ + cubeSize[ 2 ];
-				while ( cursor.hasNext() )
-				{
-					cursor.next();
-					cursorY = cursor.getIntPosition( 1 );
-					cursorZ = cursor.getIntPosition( 2 );
-					if ( cursorY == input.min( 1 ) - 1 && cursorZ == newZ )
-					{
-						break;
-					}
-				}
-				yCells = 0;
-				zCells++;
+				continue;
 			}
 
-			if ( zCells == nCellsZ )
+			LabelMesh labelMesh = labelMeshes.get( label );
+			if ( labelMesh == null )
 			{
-				while ( cursor.hasNext() )
+				if ( !allLabels || label == BACKGROUND )
 				{
-					cursor.next();
-					cursorZ = cursor.getIntPosition( 2 );
-					if ( cursorZ == input.min( 2 ) - 1 )
-					{
-						break;
-					}
+					continue;
 				}
-				zCells = 0;
+
+				labelMesh = createLabelMesh();
+				labelMeshes.put( label, labelMesh );
 			}
+
+			foregroundValue = label;
+			vertexSink = labelMesh.sink;
+			boundaryFaces = labelMesh.boundaryFaces;
+			triangulation( vertexValues, cursorX, cursorY, cursorZ );
+			labelMesh.boundaryFaces = boundaryFaces;
 		}
+	}
 
-		convertVerticesFormat();
+	/**
+	 * Creates the sink of a label of the multi-label extraction.
+	 */
+	private LabelMesh createLabelMesh()
+	{
+		final LabelMesh labelMesh = new LabelMesh( vertexSinkFactory.get() );
+		labelMesh.sink.begin( offset, cubeSize, indexedOutput );
 
-		return mesh;
+		return labelMesh;
 	}
 
 	/**
+	 * Reads one row of cube vertices of a plane from the volume.
 	 * 
-	 * @param input
-	 * @param volDim
-	 * @param cubeSize
-	 * @return
+	 * @param access
+	 *            random access on the extended volume
+	 * @param plane
+	 *            plane that receives the labels
+	 * @param planeWidth
+	 *            number of vertices in a row of the plane
+	 * @param row
+	 *            index of the row (in cells)
+	 * @param beginX
+	 *            position of the first vertex of the row on x
+	 * @param beginY
+	 *            position of the first row of the plane on y
+	 * @param z
+	 *            position of the plane on z
 	 */
-	private SimpleMesh generateMeshFromArray( final RandomAccessibleInterval< LabelMultisetType > input, final int[] volDim, final int[] cubeSize )
+	private void fillPlaneRow( final RandomAccess< LabelMultisetType > access, final long[] plane, final int planeWidth, final int row,
+			final long beginX, final long beginY, final long z )
 	{
-		// array where the data will be copied
-		final List< Long > volumeArray = new ArrayList< Long >();
-
-		// dimension on x direction, used to access the volume as an array
-		int xWidth = 0;
-
-		// dimension on xy direction, used to access the volume as an array
-		int xyWidth = 0;
-
-		final ExtendedRandomAccessibleInterval< LabelMultisetType, RandomAccessibleInterval< LabelMultisetType > > extended =
-				Views.extendValue( input, new LabelMultisetType() );
-
-		final Cursor< LabelMultisetType > cursor = Views.flatIterable( Views.interval( extended,
-				new FinalInterval( new long[] { input.min( 0 ) - 1, input.min( 1 ) - 1, input.min( 2 ) - 1 },
-						new long[] { input.max( 0 ) + 1, input.max( 1 ) + 1, input.max( 2 ) + 1 } ) ) )
-				.localizingCursor();
-
-		while ( cursor.hasNext() )
-		{
-			final LabelMultisetType iterator = cursor.next();
-
-			for ( final Multiset.Entry< Label > e : iterator.entrySet() )
-			{
-				volumeArray.add( e.getElement().id() );
-				LOGGER.trace( " {}", e.getElement().id() );
-			}
-		}
-
-		// two dimensions more: from 'min minus one' to 'max plus one'
-		xWidth = ( volDim[ 0 ] + 2 );
-		xyWidth = xWidth * ( volDim[ 1 ] + 2 );
+		access.setPosition( beginX, 0 );
+		access.setPosition( beginY + cubeSize[ 1 ] * row, 1 );
+		access.setPosition( z, 2 );
 
-		if ( LOGGER.isDebugEnabled() )
+		final int rowBegin = row * planeWidth;
+		for ( int i = 0; i < planeWidth; i++ )
 		{
-			LOGGER.debug( "volume size: " + volumeArray.size() );
-			LOGGER.debug( "xWidth: " + xWidth + " xyWidth: " + xyWidth );
-			LOGGER.debug( "ncells - x, y, z: " + nCellsX + " " + nCellsY + " " + nCellsZ );
-			LOGGER.debug( "max position on array: "
-					+ ( ( ( int ) ( cubeSize[ 2 ] * nCellsZ ) * xyWidth
-							+ ( int ) ( cubeSize[ 1 ] * nCellsY ) * xWidth
-							+ ( int ) ( cubeSize[ 0 ] * nCellsX ) ) ) );
+			plane[ rowBegin + i ] = getLabel( access.get() );
+			access.move( cubeSize[ 0 ], 0 );
 		}
+	}
 
-		double[] vertexValues = new double[ 8 ];
-
-		for ( int cursorZ = 0; cursorZ < nCellsZ; cursorZ++ )
+	/**
+	 * Return the id of the label in the given voxel. When the voxel has more
+	 * than one label, the last one is used; a voxel without label is
+	 * considered background (0).
+	 * 
+	 * @param voxel
+	 *            label multiset of the voxel
+	 * @return the label id
+	 */
+	private long getLabel( final LabelMultisetType voxel )
+	{
+		long label = 0;
+		for ( final Multiset.Entry< Label > e : voxel.entrySet() )
 		{
-			for ( int cursorY = 0; cursorY < nCellsY; cursorY++ )
-			{
-				for ( int cursorX = 0; cursorX < nCellsX; cursorX++ )
-				{
-					// @formatter:off
-					// the values from the cube are given first in y, then x, then z
-					// this way, the vertex_values (from getCube) are positioned in this
-					// way:
-					//
-					//  4------6
-					// /|     /|
-					// 0-----2 |
-					// |5----|-7
-					// |/    |/
-					// 1-----3
-					//
-					// this algorithm (based on
-					// http://paulbourke.net/geometry/polygonise/)
-					// considers the vertices of the cube in this order:
-					//
-					//  4------5
-					// /|     /|
-					// 7-----6 |
-					// |0----|-1
-					// |/    |/
-					// 3-----2
-					//
-					// This way, we need to remap the cube vertices:
-					// @formatter:on
-
-					if ( LOGGER.isTraceEnabled() )
-					{
-						LOGGER.trace( "position 7: " + ( ( int ) ( cubeSize[ 2 ] * cursorZ ) * xyWidth + ( int ) ( cubeSize[ 1 ] * cursorY ) * xWidth
-								+ ( int ) ( cursorX * cubeSize[ 0 ] ) ) );
-						LOGGER.trace( "position 6: " + ( ( int ) ( cubeSize[ 2 ] * cursorZ ) * xyWidth + ( int ) ( cubeSize[ 1 ] * cursorY ) * xWidth
-								+ ( int ) ( cubeSize[ 0 ] * ( cursorX + 1 ) ) ) );
-						LOGGER.trace( "position 3: " + ( ( int ) ( cubeSize[ 2 ] * cursorZ ) * xyWidth + ( int ) ( ( cubeSize[ 1 ] * ( cursorY + 1 ) ) ) * xWidth
-								+ ( int ) ( cubeSize[ 0 ] * cursorX ) ) );
-						LOGGER.trace( "position 2: " + ( ( int ) ( cubeSize[ 2 ] * cursorZ ) * xyWidth + ( int ) ( ( cubeSize[ 1 ] * ( cursorY + 1 ) ) ) * xWidth
-								+ ( int ) ( cubeSize[ 0 ] * ( cursorX + 1 ) ) ) );
-						LOGGER.trace( "position 4: " + ( ( ( int ) ( cubeSize[ 2 ] * ( cursorZ + 1 ) ) ) * xyWidth + ( int ) ( cubeSize[ 1 ] * cursorY ) * xWidth
-								+ ( int ) ( cubeSize[ 0 ] * cursorX ) ) );
-						LOGGER.trace( "position 0: " + ( ( ( int ) ( cubeSize[ 2 ] * ( cursorZ + 1 ) ) ) * xyWidth + ( int ) ( cubeSize[ 1 ] * cursorY ) * xWidth
-								+ ( int ) ( cubeSize[ 0 ] * ( cursorX + 1 ) ) ) );
-						LOGGER.trace( "position 5: " + ( ( ( int ) ( cubeSize[ 2 ] * ( cursorZ + 1 ) ) ) * xyWidth + ( int ) ( cubeSize[ 1 ] * ( cursorY + 1 ) ) * xWidth
-								+ ( int ) ( cubeSize[ 0 ] * cursorX ) ) );
-						LOGGER.trace( "position 1: " + ( ( ( int ) ( cubeSize[ 2 ] * ( cursorZ + 1 ) ) ) * xyWidth + ( int ) ( cubeSize[ 1 ] * ( cursorY + 1 ) ) * xWidth
-								+ ( int ) ( cubeSize[ 0 ] * ( cursorX + 1 ) ) ) );
-					}
-
-					vertexValues[ 7 ] = volumeArray.get( ( ( int ) ( cubeSize[ 2 ] * cursorZ ) * xyWidth + ( int ) ( cubeSize[ 1 ] * cursorY ) * xWidth
-							+ ( int ) ( cursorX * cubeSize[ 0 ] ) ) );
-					vertexValues[ 3 ] = volumeArray.get( ( ( int ) ( cubeSize[ 2 ] * cursorZ ) * xyWidth + ( int ) ( cubeSize[ 1 ] * cursorY ) * xWidth
-							+ ( int ) ( cubeSize[ 0 ] * ( cursorX + 1 ) ) ) );
-					vertexValues[ 6 ] = volumeArray.get( ( ( int ) ( cubeSize[ 2 ] * cursorZ ) * xyWidth + ( int ) ( ( cubeSize[ 1 ] * ( cursorY + 1 ) ) ) * xWidth
-							+ ( int ) ( cubeSize[ 0 ] * cursorX ) ) );
-					vertexValues[ 2 ] = volumeArray.get( ( ( int ) ( cubeSize[ 2 ] * cursorZ ) * xyWidth + ( int ) ( ( cubeSize[ 1 ] * ( cursorY + 1 ) ) ) * xWidth
-							+ ( int ) ( cubeSize[ 0 ] * ( cursorX + 1 ) ) ) );
-					vertexValues[ 4 ] = volumeArray.get( ( ( ( int ) ( cubeSize[ 2 ] * ( cursorZ + 1 ) ) ) * xyWidth + ( int ) ( cubeSize[ 1 ] * cursorY ) * xWidth
-							+ ( int ) ( cubeSize[ 0 ] * cursorX ) ) );
-					vertexValues[ 0 ] = volumeArray.get( ( ( ( int ) ( cubeSize[ 2 ] * ( cursorZ + 1 ) ) ) * xyWidth + ( int ) ( cubeSize[ 1 ] * cursorY ) * xWidth
-							+ ( int ) ( cubeSize[ 0 ] * ( cursorX + 1 ) ) ) );
-					vertexValues[ 5 ] = volumeArray.get( ( ( ( int ) ( cubeSize[ 2 ] * ( cursorZ + 1 ) ) ) * xyWidth + ( int ) ( cubeSize[ 1 ] * ( cursorY + 1 ) ) * xWidth
-							+ ( int ) ( cubeSize[ 0 ] * cursorX ) ) );
-					vertexValues[ 1 ] = volumeArray.get( ( ( ( int ) ( cubeSize[ 2 ] * ( cursorZ + 1 ) ) ) * xyWidth + ( int ) ( cubeSize[ 1 ] * ( cursorY + 1 ) ) * xWidth
-							+ ( int ) ( cubeSize[ 0 ] * ( cursorX + 1 ) ) ) );
-
-					if ( LOGGER.isDebugEnabled() )
-					{
-						// @formatter:off
-						LOGGER.debug( " " + ( int ) vertexValues[ 4 ] + "------" + ( int ) vertexValues[ 5 ] );
-						LOGGER.debug( " /|     /|" );
-						LOGGER.debug( " " + ( int ) vertexValues[ 7 ] + "-----" + ( int ) vertexValues[ 6 ] + " |" );
-						LOGGER.debug( " |" + ( int ) vertexValues[ 0 ] + "----|-" + ( int ) vertexValues[ 1 ] );
-						LOGGER.debug( " |/    |/" );
-						LOGGER.debug( " " + ( int ) vertexValues[ 3 ] + "-----" + ( int ) vertexValues[ 2 ] );
-						// @formatter:on
-					}
-
-					triangulation( vertexValues, cursorX, cursorY, cursorZ );
-				}
-			}
+			label = e.getElement().id();
 		}
 
-		convertVerticesFormat();
-
-		return mesh;
+		return label;
 	}
 
 	/**
 	 * Given the values of the vertices (in a specific order) identifies which
-	 * of them are inside the mesh. For each one of the points that form the
-	 * mesh, a triangulation is calculated.
+	 * of them are inside the mesh and triangulates the cell with
+	 * {@link #triangulation(int, int, int, int)}.
 	 * 
 	 * @param vertexValues
 	 *            the values of the eight vertices of the cube
@@ -455,7 +1226,7 @@ public class MarchingCubes
 	 * @param cursorZ
 	 *            position on z
 	 */
-	private void triangulation( final double[] vertexValues, final int cursorX, final int cursorY, final int cursorZ )
+	private void triangulation( final long[] vertexValues, final int cursorX, final int cursorY, final int cursorZ )
 	{
 		// @formatter:off
 		// this algorithm (based on http://paulbourke.net/geometry/polygonise/)
@@ -476,10 +1247,28 @@ public class MarchingCubes
 		{
 			if ( foregroundCriterionTest( vertexValues[ i ] ) )
 			{
-				tableIndex |= ( int ) Math.pow( 2, i );
+				tableIndex |= 1 << i;
 			}
 		}
 
+		triangulation( tableIndex, cursorX, cursorY, cursorZ );
+	}
+
+	/**
+	 * Creates the triangles of a cell given its case index. No memory is
+	 * allocated here, except when the vertex buffers must grow.
+	 * 
+	 * @param tableIndex
+	 *            bit i is set when the vertex i of the cube is foreground
+	 * @param cursorX
+	 *            position on x
+	 * @param cursorY
+	 *            position on y
+	 * @param cursorZ
+	 *            position on z
+	 */
+	private void triangulation( final int tableIndex, final int cursorX, final int cursorY, final int cursorZ )
+	{
 		// edge indexes:
 		// @formatter:off
 		//        4-----*4*----5
@@ -496,121 +1285,203 @@ public class MarchingCubes
 		//   3-----*2*----2
 		// @formatter: on
 
-		// Now create a triangulation of the isosurface in this cell.
-		float[][] interpolationPoints = new float[ 12 ][];
-		if (MarchingCubesTables.MC_EDGE_TABLE[tableIndex] != 0)
+		final int edges = MarchingCubesTables.MC_EDGE_TABLE[ tableIndex ];
+		if ( edges == 0 )
 		{
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 1) != 0)
-			{
-				interpolationPoints[ 0 ] = calculateIntersection(cursorX, cursorY, cursorZ, 0);
-			}
-
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 2) != 0)
-			{
-				interpolationPoints[ 1 ] = calculateIntersection(cursorX, cursorY, cursorZ, 1);
-			}
-
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 4) != 0)
-			{
-				interpolationPoints[ 2 ] = calculateIntersection(cursorX, cursorY, cursorZ, 2);
-			}
+			return;
+		}
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 8) != 0)
-			{
-				interpolationPoints[ 3 ] = calculateIntersection(cursorX, cursorY, cursorZ, 3);
-			}
+		markBoundaryFaces( cursorX, cursorY, cursorZ );
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 16) != 0)
-			{
-				interpolationPoints[ 4 ] = calculateIntersection(cursorX, cursorY, cursorZ, 4);
-			}
+		// Now create a triangulation of the isosurface in this cell.
+		final int first = tableIndex * MarchingCubesTables.MC_TRI_TABLE_ROW;
+		final int last = first + MarchingCubesTables.MC_TRI_COUNT[ tableIndex ] * 3;
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 32) != 0)
+		if ( indexedOutput )
+		{
+			for ( int i = first; i < last; i += 3 )
 			{
-				interpolationPoints[ 5 ] = calculateIntersection(cursorX, cursorY, cursorZ, 5);
+				vertexSink.addTriangle(
+						getVertexIndex( cursorX, cursorY, cursorZ, MarchingCubesTables.MC_TRI_TABLE_FLAT[ i ] ),
+						getVertexIndex( cursorX, cursorY, cursorZ, MarchingCubesTables.MC_TRI_TABLE_FLAT[ i + 1 ] ),
+						getVertexIndex( cursorX, cursorY, cursorZ, MarchingCubesTables.MC_TRI_TABLE_FLAT[ i + 2 ] ) );
 			}
+			return;
+		}
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 64) != 0)
+		for ( int edge = 0; edge < 12; edge++ )
+		{
+			if ( ( edges & ( 1 << edge ) ) != 0 )
 			{
-				interpolationPoints[ 6 ] = calculateIntersection(cursorX, cursorY, cursorZ, 6);
+				calculateIntersection( cursorX, cursorY, cursorZ, edge, interpolationPoints, edge * 3 );
 			}
+		}
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 128) != 0)
-			{
-				interpolationPoints[ 7 ] = calculateIntersection(cursorX, cursorY, cursorZ, 7);
-			}
+		for ( int i = first; i < last; i++ )
+		{
+			final int point = MarchingCubesTables.MC_TRI_TABLE_FLAT[ i ] * 3;
+			vertexSink.addVertex( interpolationPoints[ point ], interpolationPoints[ point + 1 ], interpolationPoints[ point + 2 ] );
+		}
+	}
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 256) != 0)
-			{
-				interpolationPoints[ 8 ] = calculateIntersection(cursorX, cursorY, cursorZ, 8);
-			}
+	/**
+	 * Stops the generation of the mesh when the thread was interrupted, e.g.
+	 * because the task was cancelled. It is checked once for each slab of
+	 * cells.
+	 */
+	private static void checkInterrupted()
+	{
+		if ( Thread.currentThread().isInterrupted() )
+		{
+			throw new CancellationException( "mesh generation interrupted" );
+		}
+	}
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 512) != 0)
-			{
-				interpolationPoints[ 9 ] = calculateIntersection(cursorX, cursorY, cursorZ, 9);
-			}
+	/**
+	 * The cells on the border of the volume include the voxels outside of
+	 * it, so a surface in one of them means that the foreground reaches that
+	 * face of the volume.
+	 */
+	private void markBoundaryFaces( final int cursorX, final int cursorY, final int cursorZ )
+	{
+		if ( cursorX == 0 )
+			boundaryFaces |= SimpleMesh.FACE_MIN_X;
+		if ( cursorX == nCellsX - 1 )
+			boundaryFaces |= SimpleMesh.FACE_MAX_X;
+		if ( cursorY == 0 )
+			boundaryFaces |= SimpleMesh.FACE_MIN_Y;
+		if ( cursorY == nCellsY - 1 )
+			boundaryFaces |= SimpleMesh.FACE_MAX_Y;
+		if ( cursorZ == 0 )
+			boundaryFaces |= SimpleMesh.FACE_MIN_Z;
+		if ( cursorZ == nCellsZ - 1 )
+			boundaryFaces |= SimpleMesh.FACE_MAX_Z;
+	}
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 1024) != 0)
+	/**
+	 * The last plane of cube vertices is the plane outside of the volume only
+	 * when the cube size divides the volume plus one. Otherwise the last
+	 * voxels of the volume are after all the cells, and the foreground that
+	 * crosses the face there has no surface in the last cells. These voxels
+	 * are searched, and the face is marked if any of them is foreground (in
+	 * the multi-label extraction, for each label found).
+	 * 
+	 * @param labels
+	 *            labels of the volume with one voxel more in each side
+	 * @param volDim
+	 */
+	private void markUnsampledFaces( final PaddedLabels labels, final int[] volDim )
+	{
+		final long[] nCells = { nCellsX, nCellsY, nCellsZ };
+		for ( int axis = 0; axis < 3; axis++ )
+		{
+			final int face = SimpleMesh.FACE_MAX_X << ( 2 * axis );
+			if ( labelMeshes == null && ( boundaryFaces & face ) != 0 )
 			{
-				interpolationPoints[ 10 ] = calculateIntersection(cursorX, cursorY, cursorZ, 10);
+				continue;
 			}
 
-			if ((MarchingCubesTables.MC_EDGE_TABLE[tableIndex] & 2048) != 0)
-			{
-				interpolationPoints[ 11 ] = calculateIntersection(cursorX, cursorY, cursorZ, 11);
-			}
+			// from the voxel after the last plane of vertices to the last
+			// voxel of the volume, the voxels outside of it are background
+			final int[] begin = { 1, 1, 1 };
+			final int[] end = { volDim[ 0 ], volDim[ 1 ], volDim[ 2 ] };
+			begin[ axis ] = ( int ) ( cubeSize[ axis ] * nCells[ axis ] ) + 1;
 
-			for (int i = 0; MarchingCubesTables.MC_TRI_TABLE[tableIndex][i] != MarchingCubesTables.Invalid; i += 3)
+			search:
+			for ( int z = begin[ 2 ]; z <= end[ 2 ]; z++ )
 			{
-				vertices.add( new float[] {
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i ] ][ 0 ],
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i ] ][ 1 ],
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i ] ][ 2 ]} );
-
-				vertices.add( new float[] {
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i + 1 ] ][ 0 ],
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i + 1 ] ][ 1 ],
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i + 1 ] ][ 2 ]} );
-
-				vertices.add( new float[] {
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i + 2] ][ 0 ],
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i  + 2] ][ 1 ],
-						interpolationPoints[ MarchingCubesTables.MC_TRI_TABLE[ tableIndex ][ i  + 2] ][ 2 ]} );
+				for ( int y = begin[ 1 ]; y <= end[ 1 ]; y++ )
+				{
+					for ( int x = begin[ 0 ]; x <= end[ 0 ]; x++ )
+					{
+						final long label = labels.get( x, y, z );
+						if ( labelMeshes == null )
+						{
+							if ( foregroundCriterionTest( label ) )
+							{
+								boundaryFaces |= face;
+								break search;
+							}
+						}
+						else
+						{
+							final LabelMesh labelMesh = labelMeshes.get( label );
+							if ( labelMesh != null )
+							{
+								labelMesh.boundaryFaces |= face;
+							}
+						}
+					}
+				}
 			}
 		}
 	}
 
 	/**
-	 * Convert the arraylist into a float[][]
+	 * See {@link #markUnsampledFaces(PaddedLabels, int[])}.
+	 * 
+	 * @param access
+	 *            access to the extended input
+	 * @param beginX
+	 *            x of the voxel before the first voxel of the input
+	 * @param beginY
+	 * @param beginZ
+	 * @param input
 	 */
-	private void convertVerticesFormat()
+	private void markUnsampledFaces( final RandomAccess< LabelMultisetType > access, final long beginX, final long beginY, final long beginZ,
+			final RandomAccessibleInterval< LabelMultisetType > input )
 	{
-		final int numberOfVertices = vertices.size();
-		mesh.setNumberOfVertices(numberOfVertices);
+		final int[] volDim = { ( int ) input.dimension( 0 ), ( int ) input.dimension( 1 ), ( int ) input.dimension( 2 ) };
+		markUnsampledFaces( ( x, y, z ) -> {
+			setRowPosition( access, beginX + x, beginY + y, beginZ + z );
+			return getLabel( access.get() );
+		}, volDim );
+	}
 
-		float[][] verticesArray = new float[numberOfVertices][3];
+	/**
+	 * Labels of a volume with one voxel more in each side.
+	 */
+	private interface PaddedLabels
+	{
+		long get( int x, int y, int z );
+	}
 
-		for (int i = 0; i < numberOfVertices; i++)
+	/**
+	 * Return the index of the vertex on the given edge of the cell. The
+	 * vertex is created only if none of the neighbor cells already created
+	 * it.
+	 * 
+	 * @param cursorX
+	 *            position on x
+	 * @param cursorY
+	 *            position on y
+	 * @param cursorZ
+	 *            position on z
+	 * @param edge
+	 *            intersected edge
+	 * @return index of the vertex given by {@link #vertexSink}
+	 */
+	private int getVertexIndex( final int cursorX, final int cursorY, final int cursorZ, final int edge )
+	{
+		// in the multi-label extraction, the label being triangulated is at
+		// one of the ends of the edge
+		final int side = ( labelMeshes == null || foregroundCriterionTest( vertexValues[ EDGE_FIRST_CORNER[ edge ] ] ) ) ? 0 : 1;
+		int index = edgeIndexCache.get( cursorX, cursorY, cursorZ, edge, side );
+		if ( index == EdgeIndexCache.EMPTY )
 		{
-			verticesArray[i][0] = vertices.get( i )[ 0 ];
-			verticesArray[i][1] = vertices.get( i )[ 1 ];
-			verticesArray[i][2] = vertices.get( i )[ 2 ];
-			
-			if (LOGGER.isTraceEnabled())
-			{
-				LOGGER.trace( "vertex x: " + verticesArray[i][0] );
-				LOGGER.trace( "vertex y: " + verticesArray[i][1] );
-				LOGGER.trace( "vertex z: " + verticesArray[i][2] );
-			}
+			calculateIntersection( cursorX, cursorY, cursorZ, edge, interpolationPoints, 0 );
+			index = vertexSink.addVertex( interpolationPoints[ 0 ], interpolationPoints[ 1 ], interpolationPoints[ 2 ] );
+			edgeIndexCache.put( cursorX, cursorY, cursorZ, edge, side, index );
 		}
 
-		mesh.setVertices(verticesArray);
+		return index;
 	}
 
 	/**
 	 * Given the position on the volume and the intersected edge, calculates 
 	 * the intersection point. The intersection point is going to be in the middle
-	 * of the intersected edge. In this method also the offset is applied.
+	 * of the intersected edge. The point is given in cubes, the transformation
+	 * to the world is done by the {@link #vertexSink}.
 	 * @param cursorX
 	 *            position on x
 	 * @param cursorY
@@ -619,165 +1490,26 @@ public class MarchingCubes
 	 *            position on z
 	 * @param intersectedEdge
 	 *            intersected edge
-	 * @return
-	 *            intersected point in world coordinates
-	 */
-	private float[] calculateIntersection( final int cursorX, final int cursorY, final int cursorZ, final int intersectedEdge )
-	{
-		LOGGER.trace("cursor position: " + cursorX + " " + cursorY + " " + cursorZ);
-		int v1x = cursorX, v1y = cursorY, v1z = cursorZ;
-		int v2x = cursorX, v2y = cursorY, v2z = cursorZ;
-
-		switch (intersectedEdge)
-		{
-		case 0:
-			// edge 0 -> from p0 to p1
-			// p0 = { 1 + cursorX, 0 + cursorY, 1 + cursorZ }
-			v1x += 1;
-			v1z += 1;
-
-			// p1 = { 1 + cursorX, 1 + cursorY, 1 + cursorZ }
-			v2x += 1;
-			v2y += 1;
-			v2z += 1;
-
-			break;
-		case 1:
-			// edge 0 -> from p1 to p2
-			// p1 = { 1 + cursorX, 1 + cursorY, 1 + cursorZ }
-			v1x += 1;
-			v1y += 1;
-			v1z += 1;
-
-			// p2 = { 1 + cursorX, 1 + cursorY, 0 + cursorZ }
-			v2x += 1;
-			v2y += 1;
-
-			break;
-		case 2:
-			// edge 2 -> from p2 to p3
-			// p2 = { 1 + cursorX, 1 + cursorY, 0 + cursorZ }
-			v1x += 1;
-			v1y += 1;
-
-			// p3 = { 1 + cursorX, 0 + cursorY, 0 + cursorZ }
-			v2x += 1;
-
-			break;
-		case 3:
-			// edge 0 -> from p3 to p0
-			// p3 = { 1 + cursorX, 0 + cursorY, 0 + cursorZ }
-			v1x += 1;
-
-			// p0 = { 1 + cursorX, 0 + cursorY, 1 + cursorZ }
-			v2x += 1;
-			v2z += 1;
-
-			break;
-		case 4:
-			// edge 4 -> from p4 to p5
-			// p4 = { 0 + cursorX, 0 + cursorY, 1 + cursorZ }
-			v1z += 1;
-
-			// p5 = { 0 + cursorX, 1 + cursorY, 1 + cursorZ }
-			v2y += 1;
-			v2z += 1;
-
-			break;
-		case 5:
-			// edge 5 -> from p5 to p6
-			// p5 = { 0 + cursorX, 1 + cursorY, 1 + cursorZ }
-			v1y += 1;
-			v1z += 1;
-
-			// p6 = { 0 + cursorX, 1 + cursorY, 0 + cursorZ }
-			v2y += 1;
-
-			break;
-		case 6:
-			// edge 6 -> from p6 to p7
-			// p6 = { 0 + cursorX, 1 + cursorY, 0 + cursorZ }
-			v1y += 1;
-
-			// p7 = { 0 + cursorX, 0 + cursorY, 0 + cursorZ } -> the actual point
-
-			break;
-		case 7:
-			// edge 7 -> from p7 to p4
-			// p7 = { 0 + cursorX, 0 + cursorY, 0 + cursorZ } -> the actual point
-			// p4 = { 0 + cursorX, 0 + cursorY, 1 + cursorZ }
-			v2z += 1;
-
-			break;
-		case 8:
-			// edge 8 -> from p0 to p4
-			// p0 = { 1 + cursorX, 0 + cursorY, 1 + cursorZ }
-			v1x += 1;
-			v1z += 1;
-
-			// p4 = { 0 + cursorX, 0 + cursorY, 1 + cursorZ }
-			v2z += 1;
-
-			break;
-		case 9:
-			// edge 9 -> from p1 to p5
-			// p1 = { 1 + cursorX, 1 + cursorY, 1 + cursorZ }
-			v1x += 1;
-			v1y += 1;
-			v1z += 1;
-
-			// p5 = { 0 + cursorX, 1 + cursorY, 1 + cursorZ }
-			v2y += 1;
-			v2z += 1;
-
-			break;
-		case 10:
-			// edge 10 -> from p2 to p6
-			// p2 = { 1 + cursorX, 1 + cursorY, 0 + cursorZ }
-			v1x += 1;
-			v1y += 1;
-
-			// p6 = { 0 + cursorX, 1 + cursorY, 0 + cursorZ }
-			v2y += 1;
-
-			break;
-		case 11:
-			// edge 11 -> from p3 to p7
-			// p3 = { 1 + cursorX, 0 + cursorY, 0 + cursorZ }
-			v1x += 1;
-
-			// p7 = { 0 + cursorX, 0 + cursorY, 0 + cursorZ } -> the actual point
-
-			break;
-		}
-
-		v1x = ( v1x + ( offset[ 0 ] / cubeSize[ 0 ] ) ) * cubeSize[ 0 ];
-		v1y = ( v1y + ( offset[ 1 ] / cubeSize[ 1 ] ) ) * cubeSize[ 1 ];
-		v1z = ( v1z + ( offset[ 2 ] / cubeSize[ 2 ] ) ) * cubeSize[ 2 ];
-
-		v2x = ( v2x + ( offset[ 0 ] / cubeSize[ 0 ] ) ) * cubeSize[ 0 ];
-		v2y = ( v2y + ( offset[ 1 ] / cubeSize[ 1 ] ) ) * cubeSize[ 1 ];
-		v2z = ( v2z + ( offset[ 2 ] / cubeSize[ 2 ] ) ) * cubeSize[ 2 ];
-
-		if (LOGGER.isTraceEnabled())
+	 * @param point
+	 *            array that receives the intersected point
+	 * @param position
+	 *            position on point where x, y and z are written
+	 */
+	private void calculateIntersection( final int cursorX, final int cursorY, final int cursorZ, final int intersectedEdge,
+			final float[] point, final int position )
+	{
+		if ( LOGGER.isTraceEnabled() )
 		{
-			LOGGER.trace( "v1: " + v1x + " " + v1y + " " + v1z );
-			LOGGER.trace( "v2: " + v2x + " " + v2y + " " + v2z );
+			LOGGER.trace( "cursor position: " + cursorX + " " + cursorY + " " + cursorZ );
 		}
 
-		float diffX = v2x - v1x;
-		float diffY = v2y - v1y;
-		float diffZ = v2z - v1z;
-
-		diffX *= 0.5f;
-		diffY *= 0.5f;
-		diffZ *= 0.5f;
-
-		diffX += v1x;
-		diffY += v1y;
-		diffZ += v1z;
-
-		return new float[] { diffX, diffY, diffZ };
+		// the two vertices of the edge are given relative to the cube
+		// position (see MarchingCubesTables.MC_EDGE_VERTICES), the
+		// intersection is in the middle of them
+		final int edge = intersectedEdge * 6;
+		point[ position ] = cursorX + 0.5f * ( MarchingCubesTables.MC_EDGE_VERTICES[ edge ] + MarchingCubesTables.MC_EDGE_VERTICES[ edge + 3 ] );
+		point[ position + 1 ] = cursorY + 0.5f * ( MarchingCubesTables.MC_EDGE_VERTICES[ edge + 1 ] + MarchingCubesTables.MC_EDGE_VERTICES[ edge + 4 ] );
+		point[ position + 2 ] = cursorZ + 0.5f * ( MarchingCubesTables.MC_EDGE_VERTICES[ edge + 2 ] + MarchingCubesTables.MC_EDGE_VERTICES[ edge + 5 ] );
 	}
 
 	/**
@@ -790,9 +1522,9 @@ public class MarchingCubes
 	 * 
 	 * @return true if it comply with the comparison, false otherwise.
 	 */
-	private boolean foregroundCriterionTest(final double vertexValue)
+	private boolean foregroundCriterionTest(final long vertexValue)
 	{
-		if (criteria.equals( ForegroundCriterion.EQUAL ))
+		if (criteria == ForegroundCriterion.EQUAL)
 		{
 			return (vertexValue == foregroundValue);
 		} 
@@ -803,48 +1535,18 @@ public class MarchingCubes
 	}
 
 	/**
-	 * Remap the vertices of the cube (8 positions) obtained from a RAI to match
-	 * the expected order for this implementation
-	 * 
-	 * @param vertexValues
-	 *            the vertices to change the order
-	 * @return same array but with positions in the expected place
+	 * Where the mesh of one label is written in the multi-label extraction.
 	 */
-	private double[] remapCube(final double[] vertexValues)
+	private static class LabelMesh
 	{
-		double[] vv = new double[8];
-		vv[0] = vertexValues[5];
-		vv[1] = vertexValues[7];
-		vv[2] = vertexValues[3];
-		vv[3] = vertexValues[1];
-		vv[4] = vertexValues[4];
-		vv[5] = vertexValues[6];
-		vv[6] = vertexValues[2];
-		vv[7] = vertexValues[0];
-
-		return vv;
-	}
+		final VertexSink sink;
 
-	/**
-	 * Get a cursor of a cube vertex from a RAI
-	 * 
-	 * @param extended
-	 *            an interval with the data
-	 * @param cursorX
-	 *            position on x
-	 * @param cursorY
-	 *            position on y
-	 * @param cursorZ
-	 *            position on z
-	 * @return
-	 */
-	private Cursor<LabelMultisetType> getVertex(
-			final ExtendedRandomAccessibleInterval<LabelMultisetType, RandomAccessibleInterval<LabelMultisetType>> extended,
-			final int cursorX, final int cursorY, final int cursorZ)
-	{
-		final long[] begin = new long[] { cursorX, cursorY, cursorZ };
-		final long[] end = new long[] { cursorX, cursorY, cursorZ};
+		int boundaryFaces;
 
-		return Views.flatIterable(Views.interval(extended, new FinalInterval( begin, end ))).cursor();
+		LabelMesh( final VertexSink sink )
+		{
+			this.sink = sink;
+			this.boundaryFaces = 0;
+		}
 	}
 }
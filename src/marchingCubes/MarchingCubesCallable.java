@@ -4,13 +4,36 @@ import java.util.concurrent.Callable;
 
 import bdv.labels.labelset.LabelMultisetType;
 import net.imglib2.RandomAccessibleInterval;
+import util.LabelBlockReader;
 import util.SimpleMesh;
+import util.SimpleMeshSink;
 
 public class MarchingCubesCallable implements Callable< SimpleMesh >
 {
+	/**
+	 * one marching cubes instance per worker thread, so the label buffer is
+	 * reused by all the chunks processed in the same thread
+	 */
+	private static final ThreadLocal< MarchingCubes > marchingCubes = ThreadLocal.withInitial( MarchingCubes::new );
+
+	/** labels read by the block reader, reused by the chunks of the thread */
+	private static final ThreadLocal< long[] > labelBuffer = new ThreadLocal< long[] >();
+
+	/** summary of the labels read by the block reader */
+	private static final ThreadLocal< BrickSummary > brickSummary = ThreadLocal.withInitial( BrickSummary::new );
+
 	/** volume data */
 	RandomAccessibleInterval< LabelMultisetType > volume;
 
+	/** reads the labels of the chunk, used instead of the volume if not null */
+	private LabelBlockReader blockReader;
+
+	/** position of the chunk in the dataset of the block reader */
+	private long[] min;
+
+	/** labels of the chunk already read, used instead of the volume if not null */
+	private long[] labels;
+
 	/** volume dimension */
 	private int[] volDim;
 
@@ -26,7 +49,7 @@ public class MarchingCubesCallable implements Callable< SimpleMesh >
 	private MarchingCubes.ForegroundCriterion criterion;
 
 	/** the value to match the criterion */
-	private int foregroundValue;
+	private long foregroundValue;
 
 	/**
 	 * indicates if it is to use the implementation directly with RAI (false) or
@@ -34,7 +57,13 @@ public class MarchingCubesCallable implements Callable< SimpleMesh >
 	 */
 	boolean copyToArray;
 
-	public MarchingCubesCallable( RandomAccessibleInterval< LabelMultisetType > input, int[] volDim, int[] offset, int[] cubeSize, MarchingCubes.ForegroundCriterion criterion, int foregroundValue, boolean usingRAI )
+	/** indicates if the mesh must be indexed (vertices shared by triangles) */
+	private boolean indexedOutput;
+
+	/** all the vertex coordinates are divided by this value */
+	private float normalization;
+
+	public MarchingCubesCallable( RandomAccessibleInterval< LabelMultisetType > input, int[] volDim, int[] offset, int[] cubeSize, MarchingCubes.ForegroundCriterion criterion, long foregroundValue, boolean usingRAI )
 	{
 		this.volume = input;
 		this.volDim = volDim;
@@ -43,12 +72,78 @@ public class MarchingCubesCallable implements Callable< SimpleMesh >
 		this.criterion = criterion;
 		this.foregroundValue = foregroundValue;
 		this.copyToArray = usingRAI;
+		this.indexedOutput = false;
+		this.normalization = 1;
+		this.blockReader = null;
+		this.min = null;
+		this.labels = null;
+	}
+
+	/**
+	 * Generates the mesh from the labels read directly from the dataset, see
+	 * {@link LabelBlockReader}.
+	 * 
+	 * @param blockReader
+	 *            reader of the label dataset
+	 * @param min
+	 *            x, y, z position of the chunk in the dataset
+	 * @param volDim
+	 *            size of the chunk
+	 */
+	public MarchingCubesCallable( LabelBlockReader blockReader, long[] min, int[] volDim, int[] offset, int[] cubeSize, MarchingCubes.ForegroundCriterion criterion, long foregroundValue )
+	{
+		this( null, volDim, offset, cubeSize, criterion, foregroundValue, true );
+		this.blockReader = blockReader;
+		this.min = min;
+	}
+
+	/**
+	 * Generates the mesh from the labels of the chunk already read, e.g. by
+	 * a {@link util.LabelBlockService}.
+	 * 
+	 * @param labels
+	 *            labels of the chunk, x first, then y and z, with one voxel
+	 *            of background in each side
+	 * @param volDim
+	 *            size of the chunk
+	 */
+	public MarchingCubesCallable( long[] labels, int[] volDim, int[] offset, int[] cubeSize, MarchingCubes.ForegroundCriterion criterion, long foregroundValue )
+	{
+		this( null, volDim, offset, cubeSize, criterion, foregroundValue, true );
+		this.labels = labels;
+	}
+
+	public void setIndexedOutput( boolean indexedOutput )
+	{
+		this.indexedOutput = indexedOutput;
+	}
+
+	public void setNormalization( float normalization )
+	{
+		this.normalization = normalization;
 	}
 
 	@Override
 	public SimpleMesh call() throws Exception
 	{
-		MarchingCubes mc_rai = new MarchingCubes();
+		MarchingCubes mc_rai = marchingCubes.get();
+		mc_rai.setIndexedOutput( indexedOutput );
+		mc_rai.setVertexSink( new SimpleMeshSink( normalization ) );
+		if ( blockReader != null || labels != null )
+		{
+			long[] labels = this.labels;
+			if ( labels == null )
+			{
+				labels = blockReader.read( min, volDim, labelBuffer.get() );
+				labelBuffer.set( labels );
+			}
+
+			// the bricks completely inside or outside of the mesh are skipped
+			final BrickSummary summary = brickSummary.get();
+			summary.build( labels, volDim[ 0 ] + 2, volDim[ 1 ] + 2, volDim[ 2 ] + 2 );
+			return mc_rai.generateMesh( labels, summary, volDim, offset, cubeSize, criterion, foregroundValue );
+		}
+
 		SimpleMesh m = mc_rai.generateMesh( volume, volDim, offset, cubeSize, criterion, foregroundValue, copyToArray );
 
 		return m;
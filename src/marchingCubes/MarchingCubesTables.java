@@ -315,4 +315,56 @@ class MarchingCubesTables
 			{ 0, 3, 8, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid },
 			{ Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid, Invalid }
 	};
+
+	/** number of positions of each row of {@link #MC_TRI_TABLE} */
+	static final int MC_TRI_TABLE_ROW = 16;
+
+	/**
+	 * {@link #MC_TRI_TABLE} in a single array: the row of the case i begins
+	 * at the position i * {@link #MC_TRI_TABLE_ROW}
+	 */
+	static final int[] MC_TRI_TABLE_FLAT = new int[ 256 * MC_TRI_TABLE_ROW ];
+
+	/** number of triangles created for each one of the 256 cases */
+	static final int[] MC_TRI_COUNT = new int[ 256 ];
+
+	static
+	{
+		for ( int i = 0; i < 256; i++ )
+		{
+			int count = 0;
+			while ( MC_TRI_TABLE[ i ][ count ] != Invalid )
+			{
+				count++;
+			}
+
+			MC_TRI_COUNT[ i ] = count / 3;
+			System.arraycopy( MC_TRI_TABLE[ i ], 0, MC_TRI_TABLE_FLAT, i * MC_TRI_TABLE_ROW, MC_TRI_TABLE_ROW );
+		}
+	}
+
+	// @formatter:off
+	/**
+	 * The two cube vertices of each one of the 12 edges, as offsets (x, y, z)
+	 * from the cube position: six values per edge, the first vertex and then
+	 * the second one. The cube vertices are:
+	 *
+	 * p0 = { 1, 0, 1 }, p1 = { 1, 1, 1 }, p2 = { 1, 1, 0 }, p3 = { 1, 0, 0 },
+	 * p4 = { 0, 0, 1 }, p5 = { 0, 1, 1 }, p6 = { 0, 1, 0 }, p7 = { 0, 0, 0 }
+	 */
+	static final int[] MC_EDGE_VERTICES = {
+			1, 0, 1,   1, 1, 1, // edge 0: p0 to p1
+			1, 1, 1,   1, 1, 0, // edge 1: p1 to p2
+			1, 1, 0,   1, 0, 0, // edge 2: p2 to p3
+			1, 0, 0,   1, 0, 1, // edge 3: p3 to p0
+			0, 0, 1,   0, 1, 1, // edge 4: p4 to p5
+			0, 1, 1,   0, 1, 0, // edge 5: p5 to p6
+			0, 1, 0,   0, 0, 0, // edge 6: p6 to p7
+			0, 0, 0,   0, 0, 1, // edge 7: p7 to p4
+			1, 0, 1,   0, 0, 1, // edge 8: p0 to p4
+			1, 1, 1,   0, 1, 1, // edge 9: p1 to p5
+			1, 1, 0,   0, 1, 0, // edge 10: p2 to p6
+			1, 0, 0,   0, 0, 0  // edge 11: p3 to p7
+	};
+	// @formatter:on
 }
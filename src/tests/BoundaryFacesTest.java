@@ -0,0 +1,78 @@
+package tests;
+
+import marchingCubes.MarchingCubes;
+import util.SimpleMesh;
+
+/**
+ * Test the faces of the volume reached by the mesh when the last plane of
+ * cube vertices is not the plane outside of the volume. With
+ * {@value #VOLUME_SIZE} voxels and cube size {@value #CUBE_SIZE} the last
+ * voxels of the volume are after all the cells, and a label that crosses
+ * the +x face there must still mark it, or the next chunk is never
+ * extracted.
+ *
+ * @author vleite
+ */
+public class BoundaryFacesTest
+{
+	static final int VOLUME_SIZE = 18;
+
+	static final int CUBE_SIZE = 4;
+
+	static final long FOREGROUND = 7;
+
+	static int failures = 0;
+
+	public static void main( String[] args )
+	{
+		// crosses the last plane of vertices and the +x face
+		check( "bar crossing the last cells", 10, VOLUME_SIZE - 1, true );
+		// only in the voxels after the last plane of vertices
+		check( "bar after the last cells", VOLUME_SIZE - 2, VOLUME_SIZE - 1, true );
+		// far from the +x face
+		check( "bar inside of the volume", 2, 9, false );
+
+		if ( failures > 0 )
+		{
+			System.out.println( "FAILED: " + failures + " checks" );
+			System.exit( 1 );
+		}
+
+		System.out.println( "OK" );
+		System.exit( 0 );
+	}
+
+	/**
+	 * Extract a bar along x, from minX to maxX (voxels of the volume), and
+	 * compare the +x face of the mesh with the expected one.
+	 */
+	private static void check( final String name, final int minX, final int maxX, final boolean expected )
+	{
+		final int[] volDim = { VOLUME_SIZE, VOLUME_SIZE, VOLUME_SIZE };
+		final int width = VOLUME_SIZE + 2;
+		final long[] volume = new long[ width * width * width ];
+		// one voxel more in each side, the bar has 4 x 4 voxels
+		for ( int z = 8; z < 12; z++ )
+		{
+			for ( int y = 8; y < 12; y++ )
+			{
+				for ( int x = minX + 1; x <= maxX + 1; x++ )
+				{
+					volume[ ( z * width + y ) * width + x ] = FOREGROUND;
+				}
+			}
+		}
+
+		final int[] cubeSize = { CUBE_SIZE, CUBE_SIZE, CUBE_SIZE };
+		final SimpleMesh mesh = new MarchingCubes().generateMesh( volume, volDim, new int[] { 0, 0, 0 }, cubeSize,
+				MarchingCubes.ForegroundCriterion.EQUAL, FOREGROUND );
+
+		final boolean reached = ( mesh.getBoundaryFaces() & SimpleMesh.FACE_MAX_X ) != 0;
+		System.out.println( name + ": +x face " + ( reached ? "reached" : "not reached" ) );
+		if ( reached != expected )
+		{
+			System.out.println( "  expected " + ( expected ? "reached" : "not reached" ) );
+			failures++;
+		}
+	}
+}
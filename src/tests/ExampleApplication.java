@@ -22,6 +22,10 @@ import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import util.HDF5Reader;
+import util.LabelBlockReader;
+import util.LabelBlockService;
+import util.LabelIndex;
+import util.MeshDiskCache;
 
 public class ExampleApplication extends Application
 {
@@ -33,6 +37,15 @@ public class ExampleApplication extends Application
 
 	private static MarchingCubesApplication sceneryApplication;
 
+	/** where each label is in the volume */
+	private static LabelIndex labelIndex = null;
+
+	/** meshes generated in previous runs */
+	private static MeshDiskCache meshDiskCache = null;
+
+	/** reads the labels of the chunks directly from the dataset */
+	private static LabelBlockService labelBlockService = null;
+
 	/** resolution of the volume */
 	private static double[] resolution = new double[] { 4, 4, 40 };
 
@@ -77,6 +90,12 @@ public class ExampleApplication extends Application
 		System.out.println( "scenery application: " + sceneryApplication );
 		controller.setViewer3D( sceneryApplication );
 		controller.setResolution( resolution );
+		controller.setLabelIndex( labelIndex );
+		controller.setMeshDiskCache( meshDiskCache );
+		controller.setLabelBlockService( labelBlockService );
+		// coarse meshes first, z has a lower resolution than x and y
+		controller.setRefinementLevels( new int[] { 4, 4, 1 }, new int[] { 2, 2, 1 }, new int[] { 1, 1, 1 } );
+		controller.setViewDependentLod( true );
 
 		Localizable location = new Point( new int[] { 10, 267, 0 } );
 		controller.generateMesh( volumeLabels, location );
@@ -166,6 +185,21 @@ public class ExampleApplication extends Application
 		}
 
 		volumeLabels = labels.get( 0 ).getImage( 0 );
+
+		// the meshes can be generated without the index, it only makes the
+		// search for the chunks faster
+		try
+		{
+			labelIndex = LabelIndex.loadOrBuild( reader, params.labelDatasetPath );
+		}
+		catch ( IOException e )
+		{
+			LOGGER.warn( "label index not available: " + e.getMessage() );
+		}
+
+		meshDiskCache = new MeshDiskCache( MeshDiskCache.getDefaultDirectory(), reader.getFile(), params.labelDatasetPath );
+		labelBlockService = new LabelBlockService( new LabelBlockReader( reader, params.labelDatasetPath ) );
+
 		return true;
 	}
 }
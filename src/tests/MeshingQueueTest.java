@@ -0,0 +1,99 @@
+package tests;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import bdv.img.h5.H5LabelMultisetSetupImageLoader;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.Multiset;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import marchingCubes.MarchingCubes;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import util.HDF5Reader;
+import util.MeshExtractor;
+import util.MeshingExecutor;
+
+/**
+ * Test that the extraction finishes when the queue of the
+ * {@link MeshingExecutor} is full. The queue has only
+ * {@value #QUEUE_SIZE} tasks and the chunks are small, so the thread that
+ * creates the chunks and a thread that requests levels (like the LOD
+ * controller) wait for the queue all the time, while the workers schedule
+ * the neighbors of their chunks.
+ *
+ * The extraction must finish in {@value #TIMEOUT} milliseconds.
+ *
+ * @author vleite
+ */
+public class MeshingQueueTest
+{
+	static String path = "resources/sample_B_20160708_frags_46_50.hdf";
+
+	static String path_label = "/volumes/labels/neuron_ids";
+
+	static final int QUEUE_SIZE = 2;
+
+	static final long TIMEOUT = 60000;
+
+	public static void main( String[] args ) throws IOException, InterruptedException
+	{
+		// before the executor is created
+		System.setProperty( MeshingExecutor.QUEUE_SIZE_PROPERTY, Integer.toString( QUEUE_SIZE ) );
+		System.setProperty( MeshExtractor.CHUNK_BYTES_PROPERTY, Integer.toString( 1 << 16 ) );
+
+		final IHDF5Reader reader = HDF5Factory.openForReading( path );
+		final List< H5LabelMultisetSetupImageLoader > labels = HDF5Reader.readLabels( reader, path_label );
+		final RandomAccessibleInterval< LabelMultisetType > volumeLabels = labels.get( 0 ).getImage( 0 );
+
+		final Point location = new Point( new long[] { volumeLabels.dimension( 0 ) / 2, volumeLabels.dimension( 1 ) / 2, volumeLabels.dimension( 2 ) / 2 } );
+		final RandomAccess< LabelMultisetType > access = volumeLabels.randomAccess();
+		access.setPosition( location );
+		long foregroundValue = 0;
+		for ( final Multiset.Entry< Label > e : access.get().entrySet() )
+		{
+			foregroundValue = e.getElement().id();
+		}
+
+		final MeshExtractor meshExtractor = new MeshExtractor( volumeLabels, new int[] { 1, 1, 1 }, foregroundValue, MarchingCubes.ForegroundCriterion.EQUAL );
+		meshExtractor.setRefinementLevels( new int[] { 8, 8, 1 }, new int[] { 4, 4, 1 }, new int[] { 2, 2, 1 }, new int[] { 1, 1, 1 } );
+
+		final Thread levels = new Thread( () -> {
+			final Random random = new Random( 1 );
+			while ( !meshExtractor.isCancelled() )
+			{
+				meshExtractor.requestLevel( new long[] { random.nextInt( 2 ), random.nextInt( 2 ), 0 }, random.nextInt( 4 ) );
+			}
+		} );
+		levels.setDaemon( true );
+
+		final int[] results = new int[ 1 ];
+		final Thread extraction = new Thread( () -> {
+			meshExtractor.createChunks( location );
+			while ( meshExtractor.hasNext() && results[ 0 ] < 1000 )
+			{
+				meshExtractor.nextResult();
+				results[ 0 ]++;
+			}
+		} );
+		extraction.setDaemon( true );
+
+		extraction.start();
+		levels.start();
+		extraction.join( TIMEOUT );
+		meshExtractor.cancel();
+
+		if ( extraction.isAlive() )
+		{
+			System.out.println( "FAILED: the extraction did not finish, " + results[ 0 ] + " results" );
+			System.exit( 1 );
+		}
+
+		System.out.println( "OK: " + results[ 0 ] + " results" );
+		System.exit( 0 );
+	}
+}
@@ -0,0 +1,133 @@
+package tests;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import bdv.img.h5.H5LabelMultisetSetupImageLoader;
+import bdv.labels.labelset.LabelMultisetType;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import marchingCubes.MarchingCubes;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
+import util.HDF5Reader;
+import util.SimpleMesh;
+
+/**
+ * Test of the extraction of all the labels at once. The mesh of each label
+ * given by
+ * {@link MarchingCubes#generateMeshes(RandomAccessibleInterval, int[], int[], int[], java.util.Set)}
+ * must have the same triangles of the mesh of the label alone, given by
+ * {@link MarchingCubes#generateMeshStreaming(RandomAccessibleInterval, int[], int[], int[], MarchingCubes.ForegroundCriterion, long)},
+ * and, when indexed, the same number of vertices: the labels share the cache
+ * of vertices but not the vertices.
+ *
+ * @author vleite
+ */
+public class MultiLabelMeshesTest
+{
+	static String path = "resources/sample_B_20160708_frags_46_50.hdf";
+
+	static String path_label = "/volumes/labels/neuron_ids";
+
+	/** maximum size of the part of the volume used, in each direction */
+	static final int MAX_SIZE = 128;
+
+	static int[] offsets = { 0, 0, 0 };
+
+	public static void main( String[] args ) throws IOException
+	{
+		final IHDF5Reader reader = HDF5Factory.openForReading( path );
+		final List< H5LabelMultisetSetupImageLoader > labels = HDF5Reader.readLabels( reader, path_label );
+		final RandomAccessibleInterval< LabelMultisetType > volumeLabels = labels.get( 0 ).getImage( 0 );
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int i = 0; i < 3; i++ )
+		{
+			min[ i ] = volumeLabels.min( i );
+			max[ i ] = min[ i ] + Math.min( volumeLabels.dimension( i ), MAX_SIZE ) - 1;
+		}
+		final RandomAccessibleInterval< LabelMultisetType > volume = Views.interval( volumeLabels, new FinalInterval( min, max ) );
+
+		int failures = 0;
+		for ( final int[] cubeSize : new int[][] { { 1, 1, 1 }, { 4, 4, 4 } } )
+		{
+			for ( final boolean indexed : new boolean[] { false, true } )
+			{
+				failures += compare( volume, cubeSize, indexed );
+			}
+		}
+
+		if ( failures > 0 )
+		{
+			System.out.println( "FAILED: " + failures + " labels" );
+			System.exit( 1 );
+		}
+
+		System.out.println( "OK" );
+		System.exit( 0 );
+	}
+
+	/**
+	 * Compare the mesh of each label of the volume with the mesh of the
+	 * label alone.
+	 *
+	 * @return number of labels with different meshes
+	 */
+	static int compare( final RandomAccessibleInterval< LabelMultisetType > volume, final int[] cubeSize, final boolean indexed )
+	{
+		final int[] volDim = { ( int ) volume.dimension( 0 ), ( int ) volume.dimension( 1 ), ( int ) volume.dimension( 2 ) };
+
+		final MarchingCubes all = new MarchingCubes();
+		all.setIndexedOutput( indexed );
+		final long begin = System.currentTimeMillis();
+		final Map< Long, SimpleMesh > meshes = all.generateMeshes( volume, volDim, offsets, cubeSize, null );
+		final long time = System.currentTimeMillis() - begin;
+
+		final MarchingCubes single = new MarchingCubes();
+		single.setIndexedOutput( indexed );
+		int failures = 0;
+		for ( final Map.Entry< Long, SimpleMesh > entry : meshes.entrySet() )
+		{
+			final SimpleMesh mesh = entry.getValue();
+			final SimpleMesh expected = single.generateMeshStreaming( volume, volDim, offsets, cubeSize, MarchingCubes.ForegroundCriterion.EQUAL,
+					entry.getKey() );
+
+			if ( mesh.getNumberOfVertices() != expected.getNumberOfVertices()
+					|| !Arrays.equals( trianglePositions( mesh ), trianglePositions( expected ) )
+					|| mesh.getBoundaryFaces() != expected.getBoundaryFaces() )
+			{
+				System.out.println( "  label " + entry.getKey() + ": " + mesh.getNumberOfVertices() + " vertices, expected "
+						+ expected.getNumberOfVertices() );
+				failures++;
+			}
+		}
+
+		System.out.println( "cube size: " + Arrays.toString( cubeSize ) + " indexed: " + indexed + " labels: " + meshes.size()
+				+ " time (ms): " + time + " different: " + failures );
+		return failures;
+	}
+
+	/**
+	 * @return x, y and z of the three vertices of each triangle, in order. An
+	 *         indexed mesh is converted to the plain representation.
+	 */
+	private static float[] trianglePositions( final SimpleMesh mesh )
+	{
+		final int nCorners = mesh.isIndexed() ? 3 * mesh.getNumberOfTriangles() : mesh.getNumberOfVertices();
+		final float[] positions = new float[ 3 * nCorners ];
+		for ( int i = 0; i < nCorners; i++ )
+		{
+			final int vertex = mesh.isIndexed() ? mesh.getTriangles().get( i ) : i;
+			for ( int d = 0; d < 3; d++ )
+			{
+				positions[ 3 * i + d ] = mesh.getVertices().get( 3 * vertex + d );
+			}
+		}
+		return positions;
+	}
+}
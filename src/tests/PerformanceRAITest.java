@@ -81,6 +81,10 @@ public class PerformanceRAITest
 				mc.generateMesh( volumeLabels, volDim, offsets, cubeSize, criterion, foregroundValue, false );
 				end = new Timestamp( System.currentTimeMillis() );
 				System.out.println( "time for generating mesh using rai: " + ( end.getTime() - begin.getTime() ) );
+				begin = new Timestamp( System.currentTimeMillis() );
+				mc.generateMeshStreaming( volumeLabels, volDim, offsets, cubeSize, criterion, foregroundValue );
+				end = new Timestamp( System.currentTimeMillis() );
+				System.out.println( "time for generating mesh streaming the planes: " + ( end.getTime() - begin.getTime() ) );
 
 //			}
 		}
@@ -1,9 +1,8 @@
 package tests;
 
 import java.io.IOException;
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +19,8 @@ import marchingCubes.MarchingCubes.ForegroundCriterion;
 import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
+import util.ChunkMeshGroup;
+import util.ChunkMeshResult;
 import util.HDF5Reader;
 import util.MeshExtractor;
 
@@ -51,93 +52,50 @@ public class SphereMarchingCubesTest
 		} ).start();
 
 		new Thread( () -> {
-			MeshExtractor meshExtractor = new MeshExtractor( volumeLabels, new int[] { 32, 32, 32 }, 1, ForegroundCriterion.EQUAL );
+			MeshExtractor meshExtractor = new MeshExtractor( volumeLabels, new int[] { 32, 32, 1 }, 1, ForegroundCriterion.EQUAL );
 
+			// from cubes of size 32 to 1, the finer meshes replace the coarser
+			// ones chunk by chunk
+			final List< int[] > levels = new ArrayList< int[] >();
 			for ( int voxelSize = 32; voxelSize > 0; voxelSize /= 2 )
 			{
-				LOGGER.info( "voxel size: " + voxelSize );
-
-				Mesh completeNeuron = new Mesh();
-				final Material material = new Material();
-				material.setAmbient( new GLVector( 1f, 0.0f, 1f ) );
-				material.setSpecular( new GLVector( 1f, 0.0f, 1f ) );
-
-				if ( voxelSize == 32 )
-				{
-					material.setDiffuse( new GLVector( 1, 0, 0 ) );
-				}
-				if ( voxelSize == 16 )
-				{
-					material.setDiffuse( new GLVector( 0, 1, 0 ) );
-				}
-				if ( voxelSize == 8 )
-				{
-					material.setDiffuse( new GLVector( 0, 0, 1 ) );
-				}
-				if ( voxelSize == 4 )
-				{
-					material.setDiffuse( new GLVector( 1, 0, 1 ) );
-				}
-				if ( voxelSize == 2 )
-				{
-					material.setDiffuse( new GLVector( 0, 1, 1 ) );
-				}
-				if ( voxelSize == 1 )
-				{
-					material.setDiffuse( new GLVector( 1, 1, 0 ) );
-				}
-
-				completeNeuron.setMaterial( material );
-				completeNeuron.setName( String.valueOf( 1 + " " + voxelSize ) );
-				completeNeuron.setPosition( new GLVector( 0.0f, 0.0f, 0.0f ) );
-				completeNeuron.setScale( new GLVector( 0.5f, 0.75f, 0.5f ) );
-				sceneryApplication.addChild( completeNeuron );
-
-				meshExtractor.setCubeSize( new int[] { voxelSize, voxelSize, 1 } );
-				Localizable location = new Point( new int[] { 0, 0, 0 } );
-				meshExtractor.createChunks( location );
-
-				float[] completeNeuronVertices = new float[ 0 ];
-				float[] verticesArray = new float[ 0 ];
-				int completeMeshSize = 0;
-
-				while ( meshExtractor.hasNext() )
+				levels.add( new int[] { voxelSize, voxelSize, 1 } );
+			}
+			meshExtractor.setRefinementLevels( levels.toArray( new int[ levels.size() ][] ) );
+
+			Mesh completeNeuron = new Mesh();
+			final Material material = new Material();
+			material.setAmbient( new GLVector( 1f, 0.0f, 1f ) );
+			material.setSpecular( new GLVector( 1f, 0.0f, 1f ) );
+			material.setDiffuse( new GLVector( 1, 1, 0 ) );
+
+			completeNeuron.setMaterial( material );
+			completeNeuron.setName( String.valueOf( 1 ) );
+			completeNeuron.setPosition( new GLVector( 0.0f, 0.0f, 0.0f ) );
+			completeNeuron.setScale( new GLVector( 0.5f, 0.75f, 0.5f ) );
+			sceneryApplication.addChild( completeNeuron );
+
+			Localizable location = new Point( new int[] { 0, 0, 0 } );
+			meshExtractor.createChunks( location );
+
+			final ChunkMeshGroup chunkMeshes = new ChunkMeshGroup( completeNeuron, material, meshExtractor );
+			final int[] levelCount = new int[ levels.size() ];
+			while ( meshExtractor.hasNext() )
+			{
+				ChunkMeshResult result = meshExtractor.nextResult();
+				if ( result == null )
 				{
-					Mesh neuron = new Mesh();
-					neuron = meshExtractor.next();
-
-					if ( completeNeuron.getVertices().hasArray() )
-					{
-						completeNeuronVertices = completeNeuron.getVertices().array();
-						completeMeshSize = completeNeuronVertices.length;
-					}
-
-					float[] neuronVertices = neuron.getVertices().array();
-					int meshSize = neuronVertices.length;
-					verticesArray = Arrays.copyOf( completeNeuronVertices, completeMeshSize + meshSize );
-					System.arraycopy( neuronVertices, 0, verticesArray, completeMeshSize, meshSize );
-
-					System.out.println( "number of elements complete mesh: " + verticesArray.length );
-					completeNeuron.setVertices( FloatBuffer.wrap( verticesArray ) );
-					completeNeuron.recalculateNormals();
-					completeNeuron.setDirty( true );
+					continue;
 				}
 
-				LOGGER.info( "all results generated!" );
-
-				// Pause for 2 seconds
-				try
+				if ( levelCount[ result.getLevel() ]++ == 0 )
 				{
-					Thread.sleep( 2000 );
+					LOGGER.info( "first mesh with voxel size: " + result.getResolution()[ 0 ] );
 				}
-				catch ( InterruptedException e )
-				{
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				if ( voxelSize != 1 )
-					sceneryApplication.removeChild( completeNeuron );
+				chunkMeshes.show( result );
 			}
+
+			LOGGER.info( "all results generated!" );
 		} ).start();
 	}
 
@@ -0,0 +1,177 @@
+package tests;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import marchingCubes.BrickSummary;
+import marchingCubes.MarchingCubes;
+import util.SimpleMesh;
+
+/**
+ * Test to check that the triangulation does not allocate memory per cell. A
+ * sphere is created in an array and the mesh is generated many times with
+ * the same MarchingCubes instance, measuring the bytes allocated by the
+ * thread (like the gc profiler of JMH does).
+ *
+ * The only allocations expected are the ones for the mesh returned, so the
+ * bytes per cell, without the output mesh, must be below
+ * {@value #MAX_BYTES_PER_CELL}. The test is done without and with a brick
+ * summary of the volume, and with plain and indexed output: all of them must
+ * produce the same triangles.
+ *
+ * @author vleite
+ */
+public class TriangulationAllocationTest
+{
+	static int[] volDim = { 200, 200, 200 };
+
+	static int[] offsets = { 0, 0, 0 };
+
+	static int[] cubeSize = { 1, 1, 1 };
+
+	static int iterations = 10;
+
+	static final double MAX_BYTES_PER_CELL = 1;
+
+	static MarchingCubes.ForegroundCriterion criterion = MarchingCubes.ForegroundCriterion.EQUAL;
+
+	public static void main( String[] args )
+	{
+		final long[] volume = createSphere();
+		final BrickSummary summary = new BrickSummary();
+		summary.build( volume, volDim[ 0 ] + 2, volDim[ 1 ] + 2, volDim[ 2 ] + 2 );
+		final long nCells = ( long ) ( volDim[ 0 ] + 1 ) * ( volDim[ 1 ] + 1 ) * ( volDim[ 2 ] + 1 );
+
+		// positions of the triangles of the first mesh of each foreground
+		// value (no summary, plain), the other ones must be equal
+		final float[][] reference = new float[ 3 ][];
+		int failures = 0;
+
+		for ( BrickSummary brickSummary : new BrickSummary[] { null, summary } )
+		{
+			for ( boolean indexed : new boolean[] { false, true } )
+			{
+				final MarchingCubes mc = new MarchingCubes();
+				mc.setIndexedOutput( indexed );
+
+				// foreground value 2 does not exist: only the case index is
+				// calculated. The sphere has foreground value 1.
+				for ( int foregroundValue = 2; foregroundValue >= 1; foregroundValue-- )
+				{
+					// warm up, so the buffers have their final size and the code
+					// is compiled
+					SimpleMesh mesh = null;
+					for ( int i = 0; i < iterations; i++ )
+					{
+						mesh = mc.generateMesh( volume, brickSummary, volDim, offsets, cubeSize, criterion, foregroundValue );
+					}
+
+					final long before = allocatedBytes();
+					final long begin = System.nanoTime();
+					for ( int i = 0; i < iterations; i++ )
+					{
+						mesh = mc.generateMesh( volume, brickSummary, volDim, offsets, cubeSize, criterion, foregroundValue );
+					}
+					final long time = System.nanoTime() - begin;
+					final long allocated = ( allocatedBytes() - before ) / iterations;
+
+					System.out.println( "brick summary: " + ( brickSummary != null ) + " indexed: " + indexed + " foreground: " + foregroundValue );
+					System.out.println( "  vertices: " + mesh.getNumberOfVertices() + " time per mesh (ms): " + time / iterations / 1000000 );
+					System.out.println( "  bytes allocated per mesh: " + allocated + " (output mesh: " + meshBytes( mesh ) + ")" );
+					final double bytesPerCell = ( double ) ( allocated - meshBytes( mesh ) ) / nCells;
+					System.out.println( "  bytes allocated per cell, without the output mesh: " + bytesPerCell );
+
+					if ( bytesPerCell > MAX_BYTES_PER_CELL )
+					{
+						System.out.println( "  FAILED: more than " + MAX_BYTES_PER_CELL + " bytes per cell" );
+						failures++;
+					}
+
+					final float[] positions = trianglePositions( mesh );
+					if ( reference[ foregroundValue ] == null )
+					{
+						reference[ foregroundValue ] = positions;
+					}
+					else if ( !Arrays.equals( reference[ foregroundValue ], positions ) )
+					{
+						System.out.println( "  FAILED: " + positions.length / 9 + " triangles, different from the "
+								+ reference[ foregroundValue ].length / 9 + " triangles without summary and index" );
+						failures++;
+					}
+				}
+			}
+		}
+
+		if ( failures > 0 )
+		{
+			System.out.println( "FAILED: " + failures + " checks" );
+			System.exit( 1 );
+		}
+
+		System.out.println( "OK" );
+		System.exit( 0 );
+	}
+
+	/**
+	 * @return x, y and z of the three vertices of each triangle, in order. An
+	 *         indexed mesh is converted to the plain representation.
+	 */
+	private static float[] trianglePositions( final SimpleMesh mesh )
+	{
+		final int nCorners = mesh.isIndexed() ? 3 * mesh.getNumberOfTriangles() : mesh.getNumberOfVertices();
+		final float[] positions = new float[ 3 * nCorners ];
+		for ( int i = 0; i < nCorners; i++ )
+		{
+			final int vertex = mesh.isIndexed() ? mesh.getTriangles().get( i ) : i;
+			for ( int d = 0; d < 3; d++ )
+			{
+				positions[ 3 * i + d ] = mesh.getVertices().get( 3 * vertex + d );
+			}
+		}
+		return positions;
+	}
+
+	private static long[] createSphere()
+	{
+		final int xWidth = volDim[ 0 ] + 2;
+		final int xyWidth = xWidth * ( volDim[ 1 ] + 2 );
+		final long[] volume = new long[ xyWidth * ( volDim[ 2 ] + 2 ) ];
+		final double radius = volDim[ 0 ] / 3.0;
+
+		for ( int z = 1; z <= volDim[ 2 ]; z++ )
+		{
+			for ( int y = 1; y <= volDim[ 1 ]; y++ )
+			{
+				for ( int x = 1; x <= volDim[ 0 ]; x++ )
+				{
+					final double dx = x - volDim[ 0 ] / 2.0;
+					final double dy = y - volDim[ 1 ] / 2.0;
+					final double dz = z - volDim[ 2 ] / 2.0;
+					volume[ z * xyWidth + y * xWidth + x ] = ( dx * dx + dy * dy + dz * dz < radius * radius ) ? 1 : 0;
+				}
+			}
+		}
+
+		return volume;
+	}
+
+	/**
+	 * approximated size of the arrays of the mesh (16 bytes of header per
+	 * array)
+	 */
+	private static long meshBytes( final SimpleMesh mesh )
+	{
+		long bytes = 16 + 4L * mesh.getVertices().capacity() + 16 + 4L * mesh.getNormals().capacity();
+		if ( mesh.isIndexed() )
+		{
+			bytes += 16 + 4L * mesh.getTriangles().capacity();
+		}
+		return bytes;
+	}
+
+	@SuppressWarnings( "restriction" )
+	private static long allocatedBytes()
+	{
+		return ( ( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean() ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+}
@@ -36,7 +36,7 @@ public class Chunk
 
 	/**
 	 * Unique index of each chunk, it takes into account the position of the
-	 * chunk in the world
+	 * chunk in the grid of chunks
 	 */
 	private int index;
 
@@ -119,25 +119,7 @@ public class Chunk
 	 */
 	public Mesh getMesh( int[] resolution )
 	{
-		// for each entry in the map
-		for ( Map.Entry< List< Integer >, Mesh > entry : meshMap.entrySet() )
-		{
-			// get the key and check if it is equal to the given resolution
-			List< Integer > key = entry.getKey();
-			for ( int i = 0; i < resolution.length; i++ )
-			{
-				// if one component is different
-				if ( key.get( i ) != resolution[ i ] ) {
-					return null;
-				}
-			}
-
-			// if all components are equal, return the mesh
-			return entry.getValue();
-		}
-
-		// if there is nothing in the map, return null
-		return null;
+		return meshMap.get( Arrays.asList( resolution[ 0 ], resolution[ 1 ], resolution[ 2 ] ) );
 	}
 
 	/**
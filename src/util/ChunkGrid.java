@@ -0,0 +1,177 @@
+package util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the chunks of a volume, keyed by their position in the grid of
+ * chunks. The position (x, y, z) is packed in a long, so the lookup does not
+ * depend on the number of chunks.
+ *
+ * The chunks are created when they are requested for the first time. When
+ * there are more chunks than the capacity, the least recently used chunks
+ * that are not referenced (see {@link #acquire(long)}) are removed, they are
+ * created again if requested later.
+ *
+ * @author vleite
+ *
+ */
+public class ChunkGrid
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( ChunkGrid.class );
+
+	/** number of bits of each coordinate in the key */
+	private static final int BITS = 21;
+
+	private static final long MASK = ( 1L << BITS ) - 1;
+
+	/** chunks, from the least to the most recently used */
+	private final LinkedHashMap< Long, Entry > chunks;
+
+	/** maximum number of chunks kept when they are not referenced */
+	private int capacity;
+
+	private static class Entry
+	{
+		final Chunk chunk;
+
+		int references;
+
+		Entry( final Chunk chunk )
+		{
+			this.chunk = chunk;
+			this.references = 0;
+		}
+	}
+
+	public ChunkGrid( final int capacity )
+	{
+		this.chunks = new LinkedHashMap< Long, Entry >( 16, 0.75f, true );
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Pack the position of a chunk in the grid in a key. Each coordinate must
+	 * be in [0, 2^21).
+	 *
+	 * @param x
+	 *            position on x, in chunks
+	 * @param y
+	 *            position on y, in chunks
+	 * @param z
+	 *            position on z, in chunks
+	 * @return the key of the chunk
+	 */
+	public static long key( final long x, final long y, final long z )
+	{
+		assert x >= 0 && x <= MASK && y >= 0 && y <= MASK && z >= 0 && z <= MASK: "chunk position out of the grid: " + x + " " + y + " " + z;
+
+		return ( z << ( 2 * BITS ) ) | ( y << BITS ) | x;
+	}
+
+	/**
+	 * @param key
+	 *            key of the chunk, see {@link #key(long, long, long)}
+	 * @return the position of the chunk in the grid
+	 */
+	public static long[] position( final long key )
+	{
+		return new long[] { key & MASK, ( key >>> BITS ) & MASK, key >>> ( 2 * BITS ) };
+	}
+
+	/**
+	 * Return the chunk of the key, creating it if it does not exist.
+	 *
+	 * @param key
+	 *            key of the chunk
+	 * @param factory
+	 *            creates the chunk from its position in the grid
+	 * @return the chunk
+	 */
+	public synchronized Chunk get( final long key, final Function< long[], Chunk > factory )
+	{
+		Entry entry = chunks.get( key );
+		if ( entry == null )
+		{
+			entry = new Entry( factory.apply( position( key ) ) );
+			chunks.put( key, entry );
+			evict();
+		}
+
+		return entry.chunk;
+	}
+
+	/**
+	 * The chunk of the key will be used, so it cannot be removed until it is
+	 * released.
+	 */
+	public synchronized void acquire( final long key )
+	{
+		final Entry entry = chunks.get( key );
+		if ( entry != null )
+		{
+			entry.references++;
+		}
+	}
+
+	/**
+	 * The chunk of the key is not used anymore by who acquired it.
+	 */
+	public synchronized void release( final long key )
+	{
+		final Entry entry = chunks.get( key );
+		if ( entry != null && entry.references > 0 )
+		{
+			entry.references--;
+			evict();
+		}
+	}
+
+	/**
+	 * Define the maximum number of chunks, the chunks above it are removed
+	 * as soon as they are not referenced.
+	 */
+	public synchronized void setCapacity( final int capacity )
+	{
+		this.capacity = capacity;
+		evict();
+	}
+
+	public synchronized int size()
+	{
+		return chunks.size();
+	}
+
+	public synchronized void clear()
+	{
+		chunks.clear();
+	}
+
+	/**
+	 * Remove the least recently used chunks that are not referenced, until
+	 * the number of chunks is not above the capacity.
+	 */
+	private void evict()
+	{
+		final Iterator< Map.Entry< Long, Entry > > iterator = chunks.entrySet().iterator();
+		while ( chunks.size() > capacity && iterator.hasNext() )
+		{
+			final Map.Entry< Long, Entry > entry = iterator.next();
+			if ( entry.getValue().references == 0 )
+			{
+				iterator.remove();
+				if ( LOGGER.isTraceEnabled() )
+				{
+					final long[] position = position( entry.getKey() );
+					LOGGER.trace( "chunk removed: " + position[ 0 ] + " " + position[ 1 ] + " " + position[ 2 ] );
+				}
+			}
+		}
+	}
+}
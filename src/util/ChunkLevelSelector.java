@@ -0,0 +1,22 @@
+package util;
+
+/**
+ * Chooses the finest refinement level needed for each chunk, e.g. from the
+ * size of the chunk on the screen. See
+ * {@link MeshExtractor#setLevelSelector(ChunkLevelSelector)}.
+ *
+ * @author vleite
+ *
+ */
+public interface ChunkLevelSelector
+{
+	/**
+	 * Called by the threads of the extraction, it must be fast.
+	 *
+	 * @param chunkOffset
+	 *            x, y, z position of the chunk in the grid of chunks
+	 * @return the finest refinement level that must be generated for the
+	 *         chunk, 0 is the coarsest
+	 */
+	int getLevel( long[] chunkOffset );
+}
@@ -0,0 +1,137 @@
+package util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import graphics.scenery.Material;
+import graphics.scenery.Mesh;
+
+/**
+ * Meshes of the chunks of an object, shown as children of a scenery mesh.
+ * Each chunk has one child: when a mesh closer to the target level of the
+ * chunk arrives, it replaces the buffers of the child, so two levels are
+ * never shown together. The levels of a chunk can arrive in any order. By
+ * default the target is the finest level, so a mesh coarser than the one
+ * shown is ignored; see {@link #setTargetLevel(int, int)}.
+ *
+ * @author vleite
+ *
+ */
+public class ChunkMeshGroup
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( ChunkMeshGroup.class );
+
+	private final Mesh parent;
+
+	private final Material material;
+
+	private final MeshExtractor meshExtractor;
+
+	/** mesh shown for each chunk index */
+	private final Map< Integer, Mesh > meshes;
+
+	/** refinement level of the mesh shown for each chunk index */
+	private final Map< Integer, Integer > levels;
+
+	/** refinement level wanted for each chunk index, the finest if absent */
+	private final Map< Integer, Integer > targetLevels;
+
+	/**
+	 * @param parent
+	 *            mesh that receives the meshes of the chunks as children
+	 * @param material
+	 *            material of the meshes of the chunks
+	 * @param meshExtractor
+	 *            extractor that generates the meshes
+	 */
+	public ChunkMeshGroup( Mesh parent, Material material, MeshExtractor meshExtractor )
+	{
+		this.parent = parent;
+		this.material = material;
+		this.meshExtractor = meshExtractor;
+		this.meshes = new HashMap< Integer, Mesh >();
+		this.levels = new HashMap< Integer, Integer >();
+		this.targetLevels = new HashMap< Integer, Integer >();
+	}
+
+	/**
+	 * Define the level that the chunk must show. The mesh shown is replaced
+	 * when the mesh of the target level arrives, even if it is coarser.
+	 *
+	 * @param index
+	 *            index of the chunk
+	 * @param level
+	 *            refinement level
+	 */
+	public synchronized void setTargetLevel( int index, int level )
+	{
+		targetLevels.put( index, level );
+	}
+
+	/**
+	 * Show the mesh of a chunk, if it is closer to the target level than the
+	 * mesh shown.
+	 *
+	 * @param result
+	 *            result of the chunk
+	 * @return true if the mesh shown changed
+	 */
+	public synchronized boolean show( ChunkMeshResult result )
+	{
+		final int index = result.getChunk().getIndex();
+		final Integer level = levels.get( index );
+		final Integer target = targetLevels.get( index );
+		final int targetLevel = target == null ? Integer.MAX_VALUE : target;
+		if ( level != null && Math.abs( ( long ) targetLevel - level ) <= Math.abs( ( long ) targetLevel - result.getLevel() ) )
+		{
+			LOGGER.trace( "chunk {} already has a mesh closer to its level", index );
+			return false;
+		}
+		levels.put( index, result.getLevel() );
+
+		Mesh chunkMesh = meshes.get( index );
+		if ( result.isEmpty() )
+		{
+			// the level has no surface in the chunk
+			if ( chunkMesh == null )
+			{
+				return false;
+			}
+
+			parent.removeChild( chunkMesh );
+			meshes.remove( index );
+			return true;
+		}
+
+		final boolean created = chunkMesh == null;
+		if ( created )
+		{
+			chunkMesh = new Mesh();
+			chunkMesh.setMaterial( material );
+		}
+
+		meshExtractor.updateMesh( result.getMesh(), chunkMesh );
+		chunkMesh.setDirty( true );
+
+		// the child is added with its buffers set
+		if ( created )
+		{
+			parent.addChild( chunkMesh );
+			meshes.put( index, chunkMesh );
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return number of chunks shown
+	 */
+	public synchronized int size()
+	{
+		return meshes.size();
+	}
+}
@@ -0,0 +1,103 @@
+package util;
+
+/**
+ * Mesh of a chunk generated by a {@link MeshExtractor}, with the
+ * position of the chunk, the resolution of the mesh and how long it took.
+ * 
+ * @author vleite
+ *
+ */
+public class ChunkMeshResult
+{
+	private final Chunk chunk;
+
+	private final long[] chunkOffset;
+
+	private final int[] resolution;
+
+	private final int level;
+
+	private final SimpleMesh mesh;
+
+	private final long queueTime;
+
+	private final long computeTime;
+
+	public ChunkMeshResult( Chunk chunk, long[] chunkOffset, int[] resolution, int level, SimpleMesh mesh, long queueTime, long computeTime )
+	{
+		this.chunk = chunk;
+		this.chunkOffset = chunkOffset;
+		this.resolution = resolution;
+		this.level = level;
+		this.mesh = mesh;
+		this.queueTime = queueTime;
+		this.computeTime = computeTime;
+	}
+
+	/**
+	 * @return the chunk of the mesh
+	 */
+	public Chunk getChunk()
+	{
+		return chunk;
+	}
+
+	/**
+	 * @return x, y, z position of the chunk in the grid of chunks
+	 */
+	public long[] getChunkOffset()
+	{
+		return chunkOffset;
+	}
+
+	/**
+	 * @return cube size used to generate the mesh
+	 */
+	public int[] getResolution()
+	{
+		return resolution;
+	}
+
+	/**
+	 * @return refinement level of the mesh, 0 is the coarsest, see
+	 *         {@link MeshExtractor#setRefinementLevels(int[][])}
+	 */
+	public int getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * @return the mesh of the chunk, it has no vertices if the chunk does
+	 *         not have the foreground or if the generation failed
+	 */
+	public SimpleMesh getMesh()
+	{
+		return mesh;
+	}
+
+	/**
+	 * @return true if the mesh has no vertices
+	 */
+	public boolean isEmpty()
+	{
+		return mesh.getNumberOfVertices() == 0;
+	}
+
+	/**
+	 * @return time between the creation of the task and its start, in
+	 *         nanoseconds
+	 */
+	public long getQueueTime()
+	{
+		return queueTime;
+	}
+
+	/**
+	 * @return time to generate the mesh, in nanoseconds
+	 */
+	public long getComputeTime()
+	{
+		return computeTime;
+	}
+}
@@ -0,0 +1,34 @@
+package util;
+
+/**
+ * Receives the meshes of the chunks from a {@link MeshExtractor}, as
+ * java.util.concurrent.Flow.Subscriber does. The methods are called from the
+ * threads of the extraction, never at the same time, and they must not
+ * block: the work on the results (like uploading them) must be passed to
+ * another thread.
+ * 
+ * @author vleite
+ *
+ */
+public interface ChunkMeshSubscriber
+{
+	/**
+	 * Called when the subscriber is added to the extractor. No result is
+	 * delivered until they are requested with
+	 * {@link ChunkMeshSubscription#request(long)}.
+	 */
+	void onSubscribe( ChunkMeshSubscription subscription );
+
+	/**
+	 * Called with the mesh of each chunk, including the chunks with empty
+	 * meshes.
+	 */
+	void onNext( ChunkMeshResult result );
+
+	/**
+	 * Called when all the chunks created so far were delivered. If more
+	 * chunks are created later (e.g. for another cube size), it is called
+	 * again when they are delivered.
+	 */
+	void onComplete();
+}
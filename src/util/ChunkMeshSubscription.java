@@ -0,0 +1,27 @@
+package util;
+
+/**
+ * Link between a {@link MeshExtractor} and its {@link ChunkMeshSubscriber}.
+ * It has the same contract of java.util.concurrent.Flow.Subscription.
+ * 
+ * @author vleite
+ *
+ */
+public interface ChunkMeshSubscription
+{
+	/**
+	 * Ask for more results. The results are delivered as soon as they are
+	 * ready, until all the requested ones were delivered. The extractor only
+	 * generates the chunks requested and a few more, so a subscriber that
+	 * stops requesting also stops the extraction.
+	 * 
+	 * @param n
+	 *            number of results, Long.MAX_VALUE for no limit
+	 */
+	void request( long n );
+
+	/**
+	 * Stop the extraction, see {@link MeshExtractor#cancel()}.
+	 */
+	void cancel();
+}
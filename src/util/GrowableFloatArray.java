@@ -0,0 +1,159 @@
+package util;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A list of primitive floats that grows without copying its content. The
+ * values are kept in chunks, each chunk twice as big as the previous one, so
+ * the chunk and the position of any index are found with a few bit
+ * operations.
+ *
+ * @author vleite
+ */
+public class GrowableFloatArray
+{
+	/** size of the first chunk, the chunk k has FIRST_CHUNK * 2^k positions */
+	private static final int FIRST_CHUNK = 3 * 1024;
+
+	/** the chunks, allocated when needed */
+	private float[][] chunks;
+
+	/** chunk being filled */
+	private float[] current;
+
+	/** index of the chunk being filled */
+	private int currentChunk;
+
+	/** number of positions used in the current chunk */
+	private int currentSize;
+
+	/** total number of values */
+	private int size;
+
+	public GrowableFloatArray()
+	{
+		chunks = new float[ 32 ][];
+		current = new float[ FIRST_CHUNK ];
+		chunks[ 0 ] = current;
+		currentChunk = 0;
+		currentSize = 0;
+		size = 0;
+	}
+
+	/**
+	 * Add a value at the end of the array
+	 *
+	 * @param value
+	 */
+	public void add( final float value )
+	{
+		if ( currentSize == current.length )
+		{
+			currentChunk++;
+			current = new float[ current.length * 2 ];
+			chunks[ currentChunk ] = current;
+			currentSize = 0;
+		}
+
+		current[ currentSize++ ] = value;
+		size++;
+	}
+
+	/**
+	 * Return the value in the given position
+	 *
+	 * @param index
+	 *            position, must be smaller than {@link #size()}
+	 * @return value
+	 */
+	public float get( final int index )
+	{
+		final int chunk = chunkOf( index );
+		return chunks[ chunk ][ index - chunkBegin( chunk ) ];
+	}
+
+	/**
+	 * Replace the value in the given position
+	 *
+	 * @param index
+	 *            position, must be smaller than {@link #size()}
+	 * @param value
+	 *            new value
+	 */
+	public void set( final int index, final float value )
+	{
+		final int chunk = chunkOf( index );
+		chunks[ chunk ][ index - chunkBegin( chunk ) ] = value;
+	}
+
+	/**
+	 * @return number of values in the array
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Remove all the values, the first chunk is kept.
+	 */
+	public void clear()
+	{
+		for ( int i = 1; i <= currentChunk; i++ )
+		{
+			chunks[ i ] = null;
+		}
+		current = chunks[ 0 ];
+		currentChunk = 0;
+		currentSize = 0;
+		size = 0;
+	}
+
+	/**
+	 * Return the values in a buffer with exactly {@link #size()} positions,
+	 * so the memory kept by the mesh is the memory of its values. When the
+	 * first chunk is full and the only one, it is wrapped, otherwise the
+	 * chunks are copied once to a single array. The array must not be
+	 * changed after this call.
+	 *
+	 * @return buffer with the values, from position 0 to its limit
+	 */
+	public FloatBuffer toFloatBuffer()
+	{
+		if ( currentChunk == 0 && currentSize == current.length )
+		{
+			return FloatBuffer.wrap( current );
+		}
+
+		return FloatBuffer.wrap( toArray() );
+	}
+
+	/**
+	 * @return copy of the values in an array with exactly {@link #size()}
+	 *         positions
+	 */
+	public float[] toArray()
+	{
+		final float[] array = new float[ size ];
+		for ( int i = 0; i < currentChunk; i++ )
+		{
+			System.arraycopy( chunks[ i ], 0, array, chunkBegin( i ), chunks[ i ].length );
+		}
+		System.arraycopy( current, 0, array, chunkBegin( currentChunk ), currentSize );
+
+		return array;
+	}
+
+	/**
+	 * the chunk k begins at FIRST_CHUNK * ( 2^k - 1 )
+	 */
+	private static int chunkOf( final int index )
+	{
+		return 31 - Integer.numberOfLeadingZeros( index / FIRST_CHUNK + 1 );
+	}
+
+	private static int chunkBegin( final int chunk )
+	{
+		return FIRST_CHUNK * ( ( 1 << chunk ) - 1 );
+	}
+}
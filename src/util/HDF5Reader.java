@@ -3,13 +3,20 @@ package util;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 
 public class HDF5Reader
 {
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( HDF5Reader.class );
+
 	protected static int setupId = 0;
 
+	/** cell dimensions used when the dataset is not chunked */
 	final static protected int[] cellDimensions = new int[] { 64, 64, 8 };
 
 	public static ArrayList< H5LabelMultisetSetupImageLoader > readLabels( final IHDF5Reader reader,
@@ -18,10 +25,38 @@ public class HDF5Reader
 		/** loaded segments */
 		final ArrayList< H5LabelMultisetSetupImageLoader > labels = new ArrayList<>();
 
+		// the cells of the loader are the chunks of the dataset, so each cell
+		// decompresses only its own chunk
 		final H5LabelMultisetSetupImageLoader labelLoader = new H5LabelMultisetSetupImageLoader( reader, null,
-				labelDataset, setupId++, cellDimensions );
+				labelDataset, setupId++, getCellDimensions( reader, labelDataset ) );
 		labels.add( labelLoader );
 
 		return labels;
 	}
+
+	/**
+	 * Return the dimensions of the chunks of a dataset, as it is stored in
+	 * the file. Reading whole chunks avoids decompressing a chunk for a few of
+	 * its voxels.
+	 * 
+	 * @param reader
+	 *            reader of the hdf5 file
+	 * @param dataset
+	 *            path of the dataset
+	 * @return x, y, z dimensions of the chunks of the dataset, or
+	 *         {@link #cellDimensions} if the dataset is not chunked
+	 */
+	public static int[] getCellDimensions( final IHDF5Reader reader, final String dataset )
+	{
+		// hdf5 order: z, y, x
+		final int[] chunkSizes = reader.object().getDataSetInformation( dataset ).tryGetChunkSizes();
+		if ( chunkSizes == null || chunkSizes.length != 3 )
+		{
+			LOGGER.debug( "{} is not chunked, using cells of {}x{}x{}", dataset, cellDimensions[ 0 ], cellDimensions[ 1 ], cellDimensions[ 2 ] );
+			return cellDimensions.clone();
+		}
+
+		LOGGER.debug( "{} is stored in chunks of {}x{}x{}", dataset, chunkSizes[ 2 ], chunkSizes[ 1 ], chunkSizes[ 0 ] );
+		return new int[] { chunkSizes[ 2 ], chunkSizes[ 1 ], chunkSizes[ 0 ] };
+	}
 }
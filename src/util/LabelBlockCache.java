@@ -0,0 +1,329 @@
+package util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the labels of the storage cells of the datasets, shared by all the
+ * extractions of the process. A cell is read and decoded once, then the
+ * chunks of other neurons or of the next clicks in the same region take its
+ * labels from memory.
+ *
+ * The cells are kept by dataset and position in the grid of cells, see
+ * {@link ChunkGrid#key(long, long, long)}, and a dataset is identified by
+ * {@link LabelBlockReader#getDatasetId()}. The cache is divided in
+ * {@value #SEGMENTS} segments, each one with its own lock, so the threads
+ * that read different cells rarely wait for each other. The size of the
+ * labels of all the segments is limited by the system property
+ * {@value #BUDGET_PROPERTY}, in bytes (default {@value #DEFAULT_BUDGET}).
+ * When the limit is reached, the least recently used cells of the other
+ * segments are removed, then the ones of the segment that received the new
+ * cell if needed, but never the new cell. A cell larger than the whole
+ * budget is not kept.
+ *
+ * @author vleite
+ *
+ */
+public class LabelBlockCache
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( LabelBlockCache.class );
+
+	public static final String BUDGET_PROPERTY = "marchingCubes.labelCacheBytes";
+
+	public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+	/** the number of segments is 2 ^ SEGMENT_BITS */
+	private static final int SEGMENT_BITS = 4;
+
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+	/** approximated size of a key and its entry in the map, in bytes */
+	private static final long ENTRY_OVERHEAD = 96;
+
+	private static LabelBlockCache instance = null;
+
+	private final Segment[] segments;
+
+	/** maximum size of the labels, in bytes */
+	private volatile long budget;
+
+	/** size of the labels in all the segments, in bytes */
+	private final AtomicLong size;
+
+	private final AtomicLong hits;
+
+	private final AtomicLong misses;
+
+	private final AtomicLong evictions;
+
+	/**
+	 * @return the cache of the process, created in the first call
+	 */
+	public static synchronized LabelBlockCache getInstance()
+	{
+		if ( instance == null )
+		{
+			instance = new LabelBlockCache( Long.getLong( BUDGET_PROPERTY, DEFAULT_BUDGET ) );
+		}
+
+		return instance;
+	}
+
+	public LabelBlockCache( final long budget )
+	{
+		this.segments = new Segment[ SEGMENTS ];
+		for ( int i = 0; i < segments.length; i++ )
+		{
+			segments[ i ] = new Segment( i );
+		}
+		this.size = new AtomicLong();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+		this.budget = budget;
+	}
+
+	/**
+	 * Return the labels of a cell, if they are in the cache. The array is
+	 * shared, it must not be changed.
+	 *
+	 * @param dataset
+	 *            identifies the dataset, see
+	 *            {@link LabelBlockReader#getDatasetId()}
+	 * @param cell
+	 *            key of the cell in the grid of cells
+	 * @return the labels, or null if they are not in the cache
+	 */
+	public long[] get( final Object dataset, final long cell )
+	{
+		final Key key = new Key( dataset, cell );
+		final long[] labels = getSegment( key ).get( key );
+		if ( labels == null )
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return labels;
+	}
+
+	/**
+	 * Add the labels of a cell to the cache, see {@link #get(Object, long)}.
+	 * The array must not be changed after this call.
+	 */
+	public void put( final Object dataset, final long cell, final long[] labels )
+	{
+		if ( sizeOf( labels ) > budget )
+		{
+			LOGGER.warn( "cell {} of {} bytes is larger than the cache, it is not kept", cell, sizeOf( labels ) );
+			return;
+		}
+
+		final Key key = new Key( dataset, cell );
+		final Segment segment = getSegment( key );
+		segment.put( key, labels );
+		evict( key );
+	}
+
+	/**
+	 * Define the maximum size of the labels in the cache, in bytes.
+	 */
+	public void setBudget( final long budget )
+	{
+		this.budget = budget;
+		evict( null );
+	}
+
+	public void clear()
+	{
+		for ( final Segment segment : segments )
+		{
+			segment.clear();
+		}
+	}
+
+	/**
+	 * @return size of the labels in the cache, in bytes
+	 */
+	public long getSize()
+	{
+		return size.get();
+	}
+
+	/**
+	 * @return number of cells in the cache
+	 */
+	public int getNumberOfCells()
+	{
+		int cells = 0;
+		for ( final Segment segment : segments )
+		{
+			cells += segment.getNumberOfCells();
+		}
+		return cells;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Remove the least recently used cells until the cache fits in its
+	 * budget, first from the segments after the one of the new cell, the
+	 * segment of the new cell is the last one. The segments are locked one
+	 * at a time.
+	 *
+	 * @param added
+	 *            cell just added, it is not removed, or null
+	 */
+	private void evict( final Key added )
+	{
+		final int last = added == null ? segments.length - 1 : getSegment( added ).index;
+		for ( int i = 1; i <= segments.length && size.get() > budget; i++ )
+		{
+			final Segment segment = segments[ ( last + i ) % segments.length ];
+			while ( size.get() > budget && segment.evictEldest( added ) )
+			{}
+		}
+	}
+
+	private Segment getSegment( final Key key )
+	{
+		// the highest bits of the product depend on all the bits of the
+		// hash, the neighbor cells go to different segments
+		final int hash = key.hashCode() * 0x9E3779B9;
+		return segments[ hash >>> ( 32 - SEGMENT_BITS ) ];
+	}
+
+	private static long sizeOf( final long[] labels )
+	{
+		return ENTRY_OVERHEAD + 8L * labels.length;
+	}
+
+	/**
+	 * Part of the cache, with its own lock.
+	 */
+	private class Segment
+	{
+		/** position in the segments of the cache */
+		final int index;
+
+		/** cells, from the least to the most recently used */
+		private final LinkedHashMap< Key, long[] > cells = new LinkedHashMap< Key, long[] >( 16, 0.75f, true );
+
+		Segment( final int index )
+		{
+			this.index = index;
+		}
+
+		synchronized long[] get( final Key key )
+		{
+			return cells.get( key );
+		}
+
+		synchronized void put( final Key key, final long[] labels )
+		{
+			final long[] previous = cells.put( key, labels );
+			if ( previous != null )
+			{
+				size.addAndGet( -sizeOf( previous ) );
+			}
+			size.addAndGet( sizeOf( labels ) );
+		}
+
+		synchronized void clear()
+		{
+			for ( final long[] labels : cells.values() )
+			{
+				size.addAndGet( -sizeOf( labels ) );
+			}
+			cells.clear();
+		}
+
+		synchronized int getNumberOfCells()
+		{
+			return cells.size();
+		}
+
+		/**
+		 * Remove the least recently used cell.
+		 *
+		 * @param kept
+		 *            cell that is not removed, or null
+		 * @return false if the segment has no other cell
+		 */
+		synchronized boolean evictEldest( final Key kept )
+		{
+			final Iterator< Map.Entry< Key, long[] > > iterator = cells.entrySet().iterator();
+			while ( iterator.hasNext() )
+			{
+				final Map.Entry< Key, long[] > entry = iterator.next();
+				if ( entry.getKey().equals( kept ) )
+				{
+					continue;
+				}
+
+				size.addAndGet( -sizeOf( entry.getValue() ) );
+				iterator.remove();
+				evictions.incrementAndGet();
+
+				LOGGER.trace( "cell {} removed from the cache", entry.getKey().cell );
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Identifies the labels of a cell.
+	 */
+	private static class Key
+	{
+		private final Object dataset;
+
+		private final long cell;
+
+		Key( final Object dataset, final long cell )
+		{
+			this.dataset = dataset;
+			this.cell = cell;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof Key ) )
+			{
+				return false;
+			}
+
+			final Key key = ( Key ) other;
+			return cell == key.cell && dataset.equals( key.dataset );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * dataset.hashCode() + Long.hashCode( cell );
+		}
+	}
+}
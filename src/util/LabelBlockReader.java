@@ -0,0 +1,155 @@
+package util;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import marchingCubes.MarchingCubes;
+
+/**
+ * Reads blocks of a uint64 label dataset directly into arrays of labels, as
+ * expected by
+ * {@link MarchingCubes#generateMesh(long[], marchingCubes.BrickSummary, int[], int[], int[], MarchingCubes.ForegroundCriterion, long)}:
+ * x first, then y and z, with one voxel of background around the block. The
+ * labels are not converted to {@link bdv.labels.labelset.LabelMultisetType},
+ * so there is no decoding of each voxel.
+ *
+ * The background around the block is the same that the marching cubes adds
+ * around a chunk read with
+ * {@link bdv.img.h5.H5LabelMultisetSetupImageLoader}, so the meshes are the
+ * same.
+ *
+ * @author vleite
+ *
+ */
+public class LabelBlockReader
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( LabelBlockReader.class );
+
+	private final IHDF5Reader reader;
+
+	private final String dataset;
+
+	/** x, y, z dimensions of the dataset */
+	private final long[] dimensions;
+
+	/** x, y, z dimensions of the chunks of the dataset in the file */
+	private final int[] cellDimensions;
+
+	/**
+	 * @param reader
+	 *            reader of the hdf5 file
+	 * @param dataset
+	 *            path of the label dataset (uint64)
+	 */
+	public LabelBlockReader( final IHDF5Reader reader, final String dataset )
+	{
+		this.reader = reader;
+		this.dataset = dataset;
+
+		// hdf5 order: z, y, x
+		final long[] hdf5Dimensions = reader.object().getDimensions( dataset );
+		this.dimensions = new long[] { hdf5Dimensions[ 2 ], hdf5Dimensions[ 1 ], hdf5Dimensions[ 0 ] };
+		this.cellDimensions = HDF5Reader.getCellDimensions( reader, dataset );
+	}
+
+	/**
+	 * @return x, y, z dimensions of the dataset
+	 */
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	/**
+	 * @return identifies the dataset in the process: the path of the file,
+	 *         its modification time (a file written again is another
+	 *         dataset) and the path of the dataset
+	 */
+	public String getDatasetId()
+	{
+		final File file = reader.getFile();
+		return file.getAbsolutePath() + ":" + Long.toHexString( file.lastModified() ) + ":" + dataset;
+	}
+
+	/**
+	 * @return x, y, z dimensions of the chunks of the dataset, see
+	 *         {@link HDF5Reader#getCellDimensions(IHDF5Reader, String)}
+	 */
+	public int[] getCellDimensions()
+	{
+		return cellDimensions.clone();
+	}
+
+	/**
+	 * Read a block of labels with one voxel of background in each side.
+	 *
+	 * @param min
+	 *            x, y, z position of the first voxel of the block in the
+	 *            dataset
+	 * @param size
+	 *            x, y, z size of the block, in voxels
+	 * @param buffer
+	 *            array where the labels are written, it is used if it has at
+	 *            least (size[0] + 2) * (size[1] + 2) * (size[2] + 2) elements,
+	 *            may be null
+	 * @return the array with the labels, the given buffer or a new array
+	 */
+	public long[] read( final long[] min, final int[] size, long[] buffer )
+	{
+		final int xWidth = size[ 0 ] + 2;
+		final int yWidth = size[ 1 ] + 2;
+		final long volumeSize = ( long ) xWidth * yWidth * ( size[ 2 ] + 2 );
+		if ( volumeSize > Integer.MAX_VALUE )
+		{
+			throw new IllegalArgumentException( "block with " + volumeSize + " voxels does not fit in an array" );
+		}
+
+		if ( buffer == null || buffer.length < volumeSize )
+		{
+			buffer = new long[ ( int ) volumeSize ];
+		}
+		Arrays.fill( buffer, 0, ( int ) volumeSize, MarchingCubes.BACKGROUND );
+
+		final long[] labels = readRaw( min, size );
+
+		int index = 0;
+		for ( int z = 0; z < size[ 2 ]; z++ )
+		{
+			for ( int y = 0; y < size[ 1 ]; y++ )
+			{
+				System.arraycopy( labels, index, buffer, ( ( z + 1 ) * yWidth + y + 1 ) * xWidth + 1, size[ 0 ] );
+				index += size[ 0 ];
+			}
+		}
+
+		if ( LOGGER.isTraceEnabled() )
+		{
+			LOGGER.trace( "block read: " + min[ 0 ] + " " + min[ 1 ] + " " + min[ 2 ] + " size " + size[ 0 ] + " " + size[ 1 ] + " " + size[ 2 ] );
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Read a block of labels as it is in the dataset.
+	 *
+	 * @param min
+	 *            x, y, z position of the first voxel of the block in the
+	 *            dataset
+	 * @param size
+	 *            x, y, z size of the block, in voxels
+	 * @return the labels of the block, x first, then y and z
+	 */
+	public long[] readRaw( final long[] min, final int[] size )
+	{
+		// hdf5 order: z, y, x, so x is the fastest
+		return reader.uint64().readMDArrayBlockWithOffset( dataset,
+				new int[] { size[ 2 ], size[ 1 ], size[ 0 ] },
+				new long[] { min[ 2 ], min[ 1 ], min[ 0 ] } ).getAsFlatArray();
+	}
+}
@@ -0,0 +1,604 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import marchingCubes.MarchingCubes;
+
+/**
+ * Reads the labels of the chunks from the dataset in its own threads, so the
+ * threads that generate the meshes never wait for the hdf5 library (that
+ * allows only one access at a time).
+ *
+ * The dataset is read in storage cells, the chunks of the dataset (see
+ * {@link LabelBlockReader#getCellDimensions()}). The cells requested and not read yet are read together: the cells next to
+ * each other are merged in boxes, and each box is read at once. A cell needed
+ * by more than one request (e.g. the overlap between two chunks) is read only
+ * once while the requests are pending. The cells read are kept in the
+ * {@link LabelBlockCache} of the process, so the next requests of any
+ * extraction of the dataset do not read them again.
+ *
+ * The number of threads is given by the system property
+ * {@value #THREADS_PROPERTY} (default {@value #DEFAULT_THREADS}).
+ *
+ * @author vleite
+ *
+ */
+public class LabelBlockService
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( LabelBlockService.class );
+
+	public static final String THREADS_PROPERTY = "marchingCubes.ioThreads";
+
+	public static final int DEFAULT_THREADS = 1;
+
+	/** maximum number of buffers kept to be reused */
+	private static final int MAX_BUFFERS = 16;
+
+	private final LabelBlockReader reader;
+
+	/** identifies the dataset in the cache of cells */
+	private final String datasetId;
+
+	/** labels of the cells read, shared by all the services */
+	private final LabelBlockCache cache;
+
+	/** x, y, z dimensions of the dataset */
+	private final long[] dimensions;
+
+	/** size of the storage cells */
+	private final int[] cellDimensions;
+
+	private final ExecutorService readers;
+
+	/** cells requested and not released, by their key in the grid of cells */
+	private final Map< Long, Cell > cells;
+
+	/** keys of the cells requested and not read yet */
+	private final List< Long > unread;
+
+	/** buffers released, to be reused by the next requests */
+	private final Queue< long[] > buffers;
+
+	private final AtomicLong requests;
+
+	private final AtomicLong cellReads;
+
+	private final AtomicLong blockReads;
+
+	/** labels of a storage cell */
+	private static class Cell
+	{
+		final CompletableFuture< long[] > labels = new CompletableFuture< long[] >();
+
+		/** number of requests that use the cell */
+		int references = 0;
+	}
+
+	/**
+	 * @param reader
+	 *            reader of the label dataset
+	 */
+	public LabelBlockService( final LabelBlockReader reader )
+	{
+		this( reader, Integer.getInteger( THREADS_PROPERTY, DEFAULT_THREADS ) );
+	}
+
+	/**
+	 * @param reader
+	 *            reader of the label dataset
+	 * @param threads
+	 *            number of threads that read the dataset
+	 */
+	public LabelBlockService( final LabelBlockReader reader, final int threads )
+	{
+		this.reader = reader;
+		this.datasetId = reader.getDatasetId();
+		this.cache = LabelBlockCache.getInstance();
+		this.dimensions = reader.getDimensions();
+		this.cellDimensions = reader.getCellDimensions();
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.readers = Executors.newFixedThreadPool( threads, runnable -> {
+			final Thread thread = new Thread( runnable, "label-reader-" + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+		this.cells = new HashMap< Long, Cell >();
+		this.unread = new ArrayList< Long >();
+		this.buffers = new ConcurrentLinkedQueue< long[] >();
+		this.requests = new AtomicLong();
+		this.cellReads = new AtomicLong();
+		this.blockReads = new AtomicLong();
+	}
+
+	/**
+	 * @return x, y, z dimensions of the dataset
+	 */
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	/**
+	 * @return x, y, z dimensions of the storage cells
+	 */
+	public int[] getCellDimensions()
+	{
+		return cellDimensions.clone();
+	}
+
+	/**
+	 * @return identifies the dataset, see
+	 *         {@link LabelBlockReader#getDatasetId()}
+	 */
+	public String getDatasetId()
+	{
+		return datasetId;
+	}
+
+	/**
+	 * Request the labels of a block, with one voxel of background in each
+	 * side, as given by {@link LabelBlockReader#read(long[], int[], long[])}.
+	 * The labels are given by the threads of the service, also when all the
+	 * cells are already in the cache, so the caller never assembles the
+	 * block nor runs the actions that depend on it.
+	 *
+	 * @param min
+	 *            x, y, z position of the first voxel of the block in the
+	 *            dataset
+	 * @param size
+	 *            x, y, z size of the block, in voxels
+	 * @return the labels of the block, the array can be given back with
+	 *         {@link #release(long[])} when it is not used anymore
+	 */
+	public CompletableFuture< long[] > read( final long[] min, final int[] size )
+	{
+		requests.incrementAndGet();
+
+		final long[] firstCell = new long[ 3 ];
+		final long[] lastCell = new long[ 3 ];
+		for ( int i = 0; i < 3; i++ )
+		{
+			firstCell[ i ] = min[ i ] / cellDimensions[ i ];
+			lastCell[ i ] = ( min[ i ] + size[ i ] - 1 ) / cellDimensions[ i ];
+		}
+
+		final List< Long > keys = new ArrayList< Long >();
+		final List< CompletableFuture< long[] > > futures = new ArrayList< CompletableFuture< long[] > >();
+		boolean newCells = false;
+		synchronized ( cells )
+		{
+			for ( long z = firstCell[ 2 ]; z <= lastCell[ 2 ]; z++ )
+			{
+				for ( long y = firstCell[ 1 ]; y <= lastCell[ 1 ]; y++ )
+				{
+					for ( long x = firstCell[ 0 ]; x <= lastCell[ 0 ]; x++ )
+					{
+						final long key = ChunkGrid.key( x, y, z );
+						Cell cell = cells.get( key );
+						if ( cell == null )
+						{
+							cell = new Cell();
+							cells.put( key, cell );
+
+							final long[] cachedLabels = cache.get( datasetId, key );
+							if ( cachedLabels != null )
+							{
+								cell.labels.complete( cachedLabels );
+							}
+							else
+							{
+								unread.add( key );
+								newCells = true;
+							}
+						}
+						cell.references++;
+						keys.add( key );
+						futures.add( cell.labels );
+					}
+				}
+			}
+		}
+
+		if ( newCells )
+		{
+			try
+			{
+				readers.execute( this::readCells );
+			}
+			catch ( RejectedExecutionException e )
+			{
+				failPendingCells( e );
+			}
+		}
+
+		return CompletableFuture.allOf( futures.toArray( new CompletableFuture< ? >[ futures.size() ] ) )
+				.handleAsync( ( nothing, error ) -> {
+					try
+					{
+						if ( error != null )
+						{
+							throw new IllegalStateException( "could not read the labels", error );
+						}
+						return assemble( min, size, keys, futures );
+					}
+					finally
+					{
+						releaseCells( keys );
+					}
+				}, this::executeCompletion );
+	}
+
+	/**
+	 * The array given by {@link #read(long[], int[])} is not used anymore,
+	 * it may be given to another request.
+	 */
+	public void release( final long[] buffer )
+	{
+		if ( buffers.size() < MAX_BUFFERS )
+		{
+			buffers.add( buffer );
+		}
+	}
+
+	/**
+	 * Stop the threads of the service, the pending requests are not read:
+	 * they complete exceptionally.
+	 */
+	public void shutdown()
+	{
+		readers.shutdownNow();
+		failPendingCells( new CancellationException( "the label service was shut down" ) );
+	}
+
+	/**
+	 * @return number of blocks requested
+	 */
+	public long getRequests()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * @return number of storage cells read from the dataset, the cells found
+	 *         in the {@link LabelBlockCache} are not counted
+	 */
+	public long getCellReads()
+	{
+		return cellReads.get();
+	}
+
+	/**
+	 * @return number of reads done in the dataset, each one of a box of
+	 *         cells
+	 */
+	public long getBlockReads()
+	{
+		return blockReads.get();
+	}
+
+	/**
+	 * Run the completion of a request (or an action that depends on it) in
+	 * the threads of the service, or in the calling thread if the service
+	 * was shut down.
+	 */
+	void executeCompletion( final Runnable completion )
+	{
+		try
+		{
+			readers.execute( completion );
+		}
+		catch ( RejectedExecutionException e )
+		{
+			completion.run();
+		}
+	}
+
+	/**
+	 * Complete with the error the cells requested and not read yet, so their
+	 * requests do not wait forever. The cells are completed out of the lock,
+	 * the completions release them.
+	 */
+	private void failPendingCells( final Throwable error )
+	{
+		final List< Cell > pending = new ArrayList< Cell >();
+		synchronized ( cells )
+		{
+			for ( final Cell cell : cells.values() )
+			{
+				if ( !cell.labels.isDone() )
+				{
+					pending.add( cell );
+				}
+			}
+			unread.clear();
+		}
+
+		for ( final Cell cell : pending )
+		{
+			cell.labels.completeExceptionally( error );
+		}
+	}
+
+	/**
+	 * Read all the cells not read yet, merged in boxes.
+	 */
+	private void readCells()
+	{
+		final List< Long > keys;
+		synchronized ( cells )
+		{
+			if ( unread.isEmpty() )
+			{
+				return;
+			}
+			keys = new ArrayList< Long >( unread );
+			unread.clear();
+		}
+
+		for ( final long[] box : mergeCells( keys ) )
+		{
+			try
+			{
+				readBox( box );
+			}
+			catch ( RuntimeException e )
+			{
+				LOGGER.error( "could not read the cells " + Arrays.toString( box ) + ": " + e.getMessage() );
+				forEachCell( box, ( key, cell ) -> cell.labels.completeExceptionally( e ) );
+			}
+		}
+	}
+
+	/**
+	 * Merge the cells in boxes: first the cells next to each other on x, then
+	 * the rows with the same x on y, then the planes with the same x and y on
+	 * z.
+	 *
+	 * @param keys
+	 *            keys of the cells
+	 * @return boxes of cells: first x, y, z and last x, y, z
+	 */
+	private static List< long[] > mergeCells( final List< Long > keys )
+	{
+		// the key has z in the highest bits, then y and x: sorted keys are
+		// sorted by z, y and x
+		Collections.sort( keys );
+
+		List< long[] > boxes = new ArrayList< long[] >();
+		long[] box = null;
+		for ( final long key : keys )
+		{
+			final long[] position = ChunkGrid.position( key );
+			if ( box != null && box[ 1 ] == position[ 1 ] && box[ 2 ] == position[ 2 ] && box[ 3 ] + 1 == position[ 0 ] )
+			{
+				box[ 3 ]++;
+			}
+			else
+			{
+				box = new long[] { position[ 0 ], position[ 1 ], position[ 2 ], position[ 0 ], position[ 1 ], position[ 2 ] };
+				boxes.add( box );
+			}
+		}
+
+		for ( int axis = 1; axis < 3; axis++ )
+		{
+			boxes = mergeBoxes( boxes, axis );
+		}
+
+		return boxes;
+	}
+
+	/**
+	 * Merge the boxes that are next to each other on the axis and have the
+	 * same size on the other axes.
+	 */
+	private static List< long[] > mergeBoxes( final List< long[] > boxes, final int axis )
+	{
+		final List< long[] > merged = new ArrayList< long[] >();
+
+		// boxes that can grow, by their position out of the axis and the next
+		// position on the axis
+		final Map< List< Long >, long[] > open = new HashMap< List< Long >, long[] >();
+		for ( final long[] box : boxes )
+		{
+			final long[] key = box.clone();
+			key[ axis ] = box[ axis ] - 1;
+			key[ axis + 3 ] = -1;
+			final long[] previous = open.remove( toList( key ) );
+			if ( previous != null )
+			{
+				previous[ axis + 3 ] = box[ axis + 3 ];
+				key[ axis ] = previous[ axis + 3 ];
+				open.put( toList( key ), previous );
+			}
+			else
+			{
+				merged.add( box );
+				key[ axis ] = box[ axis + 3 ];
+				open.put( toList( key ), box );
+			}
+		}
+
+		return merged;
+	}
+
+	private static List< Long > toList( final long[] values )
+	{
+		final List< Long > list = new ArrayList< Long >( values.length );
+		for ( final long value : values )
+		{
+			list.add( value );
+		}
+		return list;
+	}
+
+	/**
+	 * Read a box of cells at once and give the labels of each cell.
+	 */
+	private void readBox( final long[] box )
+	{
+		final long[] min = new long[ 3 ];
+		final int[] size = new int[ 3 ];
+		for ( int i = 0; i < 3; i++ )
+		{
+			min[ i ] = box[ i ] * cellDimensions[ i ];
+			size[ i ] = ( int ) ( Math.min( ( box[ i + 3 ] + 1 ) * cellDimensions[ i ], dimensions[ i ] ) - min[ i ] );
+		}
+
+		final long[] labels = reader.readRaw( min, size );
+		blockReads.incrementAndGet();
+
+		forEachCell( box, ( key, cell ) -> {
+			final long[] position = ChunkGrid.position( key );
+			final long[] cellMin = new long[ 3 ];
+			final int[] cellSize = new int[ 3 ];
+			for ( int i = 0; i < 3; i++ )
+			{
+				cellMin[ i ] = position[ i ] * cellDimensions[ i ];
+				cellSize[ i ] = ( int ) Math.min( cellDimensions[ i ], dimensions[ i ] - cellMin[ i ] );
+			}
+
+			final long[] cellLabels = new long[ cellSize[ 0 ] * cellSize[ 1 ] * cellSize[ 2 ] ];
+			int index = 0;
+			for ( int z = 0; z < cellSize[ 2 ]; z++ )
+			{
+				for ( int y = 0; y < cellSize[ 1 ]; y++ )
+				{
+					final long source = ( ( cellMin[ 2 ] - min[ 2 ] + z ) * size[ 1 ] + cellMin[ 1 ] - min[ 1 ] + y ) * size[ 0 ] + cellMin[ 0 ] - min[ 0 ];
+					System.arraycopy( labels, ( int ) source, cellLabels, index, cellSize[ 0 ] );
+					index += cellSize[ 0 ];
+				}
+			}
+
+			cellReads.incrementAndGet();
+			cache.put( datasetId, key, cellLabels );
+			cell.labels.complete( cellLabels );
+		} );
+
+		if ( LOGGER.isTraceEnabled() )
+		{
+			LOGGER.trace( "cells read: " + Arrays.toString( box ) );
+		}
+	}
+
+	private interface CellConsumer
+	{
+		void accept( long key, Cell cell );
+	}
+
+	/**
+	 * Call the consumer for each cell of the box that is still requested.
+	 */
+	private void forEachCell( final long[] box, final CellConsumer consumer )
+	{
+		for ( long z = box[ 2 ]; z <= box[ 5 ]; z++ )
+		{
+			for ( long y = box[ 1 ]; y <= box[ 4 ]; y++ )
+			{
+				for ( long x = box[ 0 ]; x <= box[ 3 ]; x++ )
+				{
+					final long key = ChunkGrid.key( x, y, z );
+					final Cell cell;
+					synchronized ( cells )
+					{
+						cell = cells.get( key );
+					}
+
+					if ( cell != null )
+					{
+						consumer.accept( key, cell );
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the labels of the cells to an array with one voxel of background
+	 * around the block.
+	 */
+	private long[] assemble( final long[] min, final int[] size, final List< Long > keys, final List< CompletableFuture< long[] > > futures )
+	{
+		final int xWidth = size[ 0 ] + 2;
+		final int yWidth = size[ 1 ] + 2;
+		final int volumeSize = xWidth * yWidth * ( size[ 2 ] + 2 );
+
+		long[] buffer = buffers.poll();
+		if ( buffer == null || buffer.length < volumeSize )
+		{
+			buffer = new long[ volumeSize ];
+		}
+		Arrays.fill( buffer, 0, volumeSize, MarchingCubes.BACKGROUND );
+
+		final long[] cellMin = new long[ 3 ];
+		final int[] cellSize = new int[ 3 ];
+		final long[] begin = new long[ 3 ];
+		final long[] end = new long[ 3 ];
+		for ( int c = 0; c < keys.size(); c++ )
+		{
+			final long[] position = ChunkGrid.position( keys.get( c ) );
+			final long[] cellLabels = futures.get( c ).join();
+			for ( int i = 0; i < 3; i++ )
+			{
+				cellMin[ i ] = position[ i ] * cellDimensions[ i ];
+				cellSize[ i ] = ( int ) Math.min( cellDimensions[ i ], dimensions[ i ] - cellMin[ i ] );
+
+				// part of the cell inside the block
+				begin[ i ] = Math.max( cellMin[ i ], min[ i ] );
+				end[ i ] = Math.min( cellMin[ i ] + cellSize[ i ], min[ i ] + size[ i ] );
+			}
+
+			final int length = ( int ) ( end[ 0 ] - begin[ 0 ] );
+			for ( long z = begin[ 2 ]; z < end[ 2 ]; z++ )
+			{
+				for ( long y = begin[ 1 ]; y < end[ 1 ]; y++ )
+				{
+					final long source = ( ( z - cellMin[ 2 ] ) * cellSize[ 1 ] + y - cellMin[ 1 ] ) * cellSize[ 0 ] + begin[ 0 ] - cellMin[ 0 ];
+					final long target = ( ( z - min[ 2 ] + 1 ) * yWidth + y - min[ 1 ] + 1 ) * xWidth + begin[ 0 ] - min[ 0 ] + 1;
+					System.arraycopy( cellLabels, ( int ) source, buffer, ( int ) target, length );
+				}
+			}
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * The cells are not used by a request anymore, the cells not used by any
+	 * request are removed.
+	 */
+	private void releaseCells( final List< Long > keys )
+	{
+		synchronized ( cells )
+		{
+			for ( final long key : keys )
+			{
+				final Cell cell = cells.get( key );
+				if ( cell != null && --cell.references == 0 )
+				{
+					cells.remove( key );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,601 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Index of where each label is in the volume. The volume is divided in
+ * blocks with the same size of the storage cells of the dataset
+ * ({@link HDF5Reader#getCellDimensions(IHDF5Reader, String)}), so each block
+ * is read from a single cell, and for each label the index keeps the blocks
+ * that contain it and its bounding box, in voxels.
+ *
+ * The index is built reading the label dataset once and is saved in a file
+ * next to the hdf5 file. The file is mapped in memory when it is loaded, so
+ * loading does not depend on the number of labels; the labels are found by
+ * binary search.
+ *
+ * File format (big endian): magic, version, volume dimensions (x, y, z),
+ * block dimensions (x, y, z), number of labels, one entry for each label
+ * sorted by label (label, bounding box min x, y, z, max x, y, z, position
+ * of the first block, number of blocks) and the block ids of all the
+ * labels.
+ *
+ * @author vleite
+ */
+public class LabelIndex
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( LabelIndex.class );
+
+	private static final int MAGIC = 0x4C424958;
+
+	private static final int VERSION = 1;
+
+	/** size of the header in bytes */
+	private static final int HEADER_SIZE = 4 + 4 + 3 * 8 + 3 * 4 + 4;
+
+	/** size of each label entry in bytes */
+	private static final int ENTRY_SIZE = 8 + 6 * 8 + 4 + 4;
+
+	/** extension of the index file */
+	public static final String EXTENSION = ".labelindex";
+
+	/** the whole index, in the file format */
+	private final ByteBuffer buffer;
+
+	/** dimensions of the volume, x, y and z */
+	private final long[] dimensions;
+
+	/** dimensions of the blocks, x, y and z */
+	private final int[] blockDimensions;
+
+	/** number of blocks in each direction */
+	private final int[] numberOfBlocks;
+
+	private final int numberOfLabels;
+
+	/** where the block ids begin */
+	private final int blocksBegin;
+
+	private LabelIndex( final ByteBuffer buffer ) throws IOException
+	{
+		this.buffer = buffer;
+		if ( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION )
+		{
+			throw new IOException( "invalid label index" );
+		}
+
+		dimensions = new long[ 3 ];
+		blockDimensions = new int[ 3 ];
+		numberOfBlocks = new int[ 3 ];
+		for ( int i = 0; i < 3; i++ )
+		{
+			dimensions[ i ] = buffer.getLong( 8 + i * 8 );
+			blockDimensions[ i ] = buffer.getInt( 32 + i * 4 );
+			numberOfBlocks[ i ] = ( int ) ( ( dimensions[ i ] + blockDimensions[ i ] - 1 ) / blockDimensions[ i ] );
+		}
+		numberOfLabels = buffer.getInt( 44 );
+		blocksBegin = HEADER_SIZE + numberOfLabels * ENTRY_SIZE;
+	}
+
+	/**
+	 * Load the index of the label dataset, building it (and saving it for
+	 * the next time) if there is no index file, if the index file is older
+	 * than the hdf5 file or if its volume or blocks do not match the
+	 * dataset.
+	 *
+	 * @param reader
+	 *            reader of the hdf5 file
+	 * @param dataset
+	 *            path of the label dataset (uint64)
+	 * @return the index
+	 * @throws IOException
+	 *             if the index cannot be built
+	 */
+	public static LabelIndex loadOrBuild( final IHDF5Reader reader, final String dataset ) throws IOException
+	{
+		final File file = getIndexFile( reader, dataset );
+		if ( file.exists() && file.lastModified() >= reader.getFile().lastModified() )
+		{
+			try
+			{
+				final LabelIndex index = load( file );
+				final long[] dimensions = getDimensions( reader, dataset );
+				final int[] cellDimensions = HDF5Reader.getCellDimensions( reader, dataset );
+				if ( Arrays.equals( dimensions, index.dimensions ) && Arrays.equals( cellDimensions, index.blockDimensions ) )
+				{
+					LOGGER.info( "label index loaded from {}", file );
+					return index;
+				}
+
+				LOGGER.info( "label index {} does not match the dataset", file );
+			}
+			catch ( final IOException e )
+			{
+				LOGGER.warn( "label index {} could not be read: {}", file, e.getMessage() );
+			}
+		}
+
+		final LabelIndex index = build( reader, dataset, Runtime.getRuntime().availableProcessors() );
+		try
+		{
+			index.write( file );
+			LOGGER.info( "label index saved in {}", file );
+		}
+		catch ( final IOException e )
+		{
+			LOGGER.warn( "label index could not be saved in {}: {}", file, e.getMessage() );
+		}
+
+		return index;
+	}
+
+	/**
+	 * @return the file where the index of the dataset is saved, next to the
+	 *         hdf5 file
+	 */
+	public static File getIndexFile( final IHDF5Reader reader, final String dataset )
+	{
+		return new File( reader.getFile().getPath() + dataset.replace( '/', '_' ) + EXTENSION );
+	}
+
+	/**
+	 * Map an index file in memory.
+	 *
+	 * @param file
+	 *            file written by {@link #write(File)}
+	 * @return the index
+	 * @throws IOException
+	 */
+	public static LabelIndex load( final File file ) throws IOException
+	{
+		try (RandomAccessFile input = new RandomAccessFile( file, "r" ))
+		{
+			final FileChannel channel = input.getChannel();
+			return new LabelIndex( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ) );
+		}
+	}
+
+	/**
+	 * Build the index reading the label dataset. The blocks are the storage
+	 * cells of the dataset. Each slab of blocks (all the blocks with the same
+	 * z) is read and summarized by one thread.
+	 *
+	 * @param reader
+	 *            reader of the hdf5 file
+	 * @param dataset
+	 *            path of the label dataset (uint64)
+	 * @param numberOfThreads
+	 *            number of threads used to read the blocks
+	 * @return the index
+	 * @throws IOException
+	 *             if the dataset cannot be read
+	 */
+	public static LabelIndex build( final IHDF5Reader reader, final String dataset, final int numberOfThreads ) throws IOException
+	{
+		final long[] dimensions = getDimensions( reader, dataset );
+		final int[] blockDimensions = HDF5Reader.getCellDimensions( reader, dataset );
+		final int[] numberOfBlocks = new int[ 3 ];
+		for ( int i = 0; i < 3; i++ )
+		{
+			numberOfBlocks[ i ] = ( int ) ( ( dimensions[ i ] + blockDimensions[ i ] - 1 ) / blockDimensions[ i ] );
+		}
+
+		final long begin = System.currentTimeMillis();
+		final ExecutorService executor = Executors.newFixedThreadPool( numberOfThreads );
+		final Map< Long, Entry > entries = new HashMap<>();
+		try
+		{
+			final List< Future< Map< Long, Entry > > > slabs = new ArrayList<>();
+			for ( int blockZ = 0; blockZ < numberOfBlocks[ 2 ]; blockZ++ )
+			{
+				final int z = blockZ;
+				slabs.add( executor.submit( () -> readSlab( reader, dataset, dimensions, blockDimensions, numberOfBlocks, z ) ) );
+			}
+
+			// the slabs are merged in order, so the blocks of each label stay
+			// sorted
+			for ( final Future< Map< Long, Entry > > slab : slabs )
+			{
+				for ( final Map.Entry< Long, Entry > labelEntry : slab.get().entrySet() )
+				{
+					final Entry entry = entries.get( labelEntry.getKey() );
+					if ( entry == null )
+					{
+						entries.put( labelEntry.getKey(), labelEntry.getValue() );
+					}
+					else
+					{
+						entry.merge( labelEntry.getValue() );
+					}
+				}
+			}
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			throw new IOException( "label index could not be built", e );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		if ( LOGGER.isInfoEnabled() )
+		{
+			LOGGER.info( "label index with " + entries.size() + " labels built in " + ( System.currentTimeMillis() - begin ) + " ms" );
+		}
+
+		return new LabelIndex( toBuffer( dimensions, blockDimensions, entries ) );
+	}
+
+	/**
+	 * Save the index. The file is written with another name and renamed at
+	 * the end, so an incomplete file is never loaded.
+	 *
+	 * @param file
+	 *            where the index is saved
+	 * @throws IOException
+	 */
+	public void write( final File file ) throws IOException
+	{
+		final File temporary = new File( file.getPath() + ".tmp" );
+		try (DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temporary ) ) ))
+		{
+			final ByteBuffer content = buffer.duplicate();
+			content.clear();
+			final byte[] bytes = new byte[ 64 * 1024 ];
+			while ( content.hasRemaining() )
+			{
+				final int length = Math.min( bytes.length, content.remaining() );
+				content.get( bytes, 0, length );
+				output.write( bytes, 0, length );
+			}
+		}
+
+		if ( !temporary.renameTo( file ) )
+		{
+			file.delete();
+			if ( !temporary.renameTo( file ) )
+			{
+				throw new IOException( "could not rename " + temporary + " to " + file );
+			}
+		}
+	}
+
+	/**
+	 * @return true if the label is somewhere in the volume
+	 */
+	public boolean contains( final long label )
+	{
+		return find( label ) >= 0;
+	}
+
+	/**
+	 * @return number of labels in the volume
+	 */
+	public int getNumberOfLabels()
+	{
+		return numberOfLabels;
+	}
+
+	/**
+	 * Return the blocks that contain the label.
+	 *
+	 * @param label
+	 * @return block ids, in increasing order, empty if the label is not in
+	 *         the volume
+	 */
+	public int[] getBlocks( final long label )
+	{
+		final int entry = find( label );
+		if ( entry < 0 )
+		{
+			return new int[ 0 ];
+		}
+
+		final int position = buffer.getInt( entryPosition( entry ) + 56 );
+		final int[] blocks = new int[ buffer.getInt( entryPosition( entry ) + 60 ) ];
+		for ( int i = 0; i < blocks.length; i++ )
+		{
+			blocks[ i ] = buffer.getInt( blocksBegin + ( position + i ) * 4 );
+		}
+
+		return blocks;
+	}
+
+	/**
+	 * Return the bounding box of the label, in voxels.
+	 *
+	 * @param label
+	 * @return min x, y, z and max x, y, z (inclusive), or null if the label
+	 *         is not in the volume
+	 */
+	public long[] getBoundingBox( final long label )
+	{
+		final int entry = find( label );
+		if ( entry < 0 )
+		{
+			return null;
+		}
+
+		final long[] boundingBox = new long[ 6 ];
+		for ( int i = 0; i < 6; i++ )
+		{
+			boundingBox[ i ] = buffer.getLong( entryPosition( entry ) + 8 + i * 8 );
+		}
+
+		return boundingBox;
+	}
+
+	/**
+	 * Return the voxels of a block.
+	 *
+	 * @param block
+	 *            block id
+	 * @return min x, y, z and max x, y, z (inclusive) of the block
+	 */
+	public long[] getBlockBoundingBox( final int block )
+	{
+		final int x = block % numberOfBlocks[ 0 ];
+		final int y = ( block / numberOfBlocks[ 0 ] ) % numberOfBlocks[ 1 ];
+		final int z = block / ( numberOfBlocks[ 0 ] * numberOfBlocks[ 1 ] );
+		final int[] position = { x, y, z };
+
+		final long[] boundingBox = new long[ 6 ];
+		for ( int i = 0; i < 3; i++ )
+		{
+			boundingBox[ i ] = ( long ) position[ i ] * blockDimensions[ i ];
+			boundingBox[ i + 3 ] = Math.min( boundingBox[ i ] + blockDimensions[ i ], dimensions[ i ] ) - 1;
+		}
+
+		return boundingBox;
+	}
+
+	/**
+	 * @return dimensions of the volume, x, y and z
+	 */
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	/**
+	 * @return dimensions of the blocks, x, y and z
+	 */
+	public int[] getBlockDimensions()
+	{
+		return blockDimensions.clone();
+	}
+
+	/**
+	 * binary search of the label in the entries
+	 *
+	 * @return index of the entry, or -1 if not found
+	 */
+	private int find( final long label )
+	{
+		int low = 0;
+		int high = numberOfLabels - 1;
+		while ( low <= high )
+		{
+			final int middle = ( low + high ) >>> 1;
+			final long value = buffer.getLong( entryPosition( middle ) );
+			if ( value < label )
+			{
+				low = middle + 1;
+			}
+			else if ( value > label )
+			{
+				high = middle - 1;
+			}
+			else
+			{
+				return middle;
+			}
+		}
+
+		return -1;
+	}
+
+	private static int entryPosition( final int entry )
+	{
+		return HEADER_SIZE + entry * ENTRY_SIZE;
+	}
+
+	/**
+	 * @return dimensions of the dataset in x, y, z order (hdf5 gives z, y,
+	 *         x)
+	 */
+	private static long[] getDimensions( final IHDF5Reader reader, final String dataset )
+	{
+		final long[] dimensions = reader.object().getDimensions( dataset );
+		return new long[] { dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] };
+	}
+
+	/**
+	 * Read all the blocks with the given z and summarize the labels found.
+	 */
+	private static Map< Long, Entry > readSlab( final IHDF5Reader reader, final String dataset, final long[] dimensions,
+			final int[] blockDimensions, final int[] numberOfBlocks, final int blockZ )
+	{
+		final Map< Long, Entry > entries = new HashMap<>();
+		final long[] min = new long[ 3 ];
+		final int[] size = new int[ 3 ];
+
+		for ( int blockY = 0; blockY < numberOfBlocks[ 1 ]; blockY++ )
+		{
+			for ( int blockX = 0; blockX < numberOfBlocks[ 0 ]; blockX++ )
+			{
+				final int[] position = { blockX, blockY, blockZ };
+				for ( int i = 0; i < 3; i++ )
+				{
+					min[ i ] = ( long ) position[ i ] * blockDimensions[ i ];
+					size[ i ] = ( int ) Math.min( blockDimensions[ i ], dimensions[ i ] - min[ i ] );
+				}
+				final int block = ( blockZ * numberOfBlocks[ 1 ] + blockY ) * numberOfBlocks[ 0 ] + blockX;
+
+				// hdf5 order: z, y, x
+				final long[] labels = reader.uint64().readMDArrayBlockWithOffset( dataset,
+						new int[] { size[ 2 ], size[ 1 ], size[ 0 ] },
+						new long[] { min[ 2 ], min[ 1 ], min[ 0 ] } ).getAsFlatArray();
+
+				// voxels of the same label usually come in runs, the entry of
+				// the previous voxel is kept to avoid a search for each voxel
+				long previous = 0;
+				Entry entry = null;
+				int index = 0;
+				for ( int z = 0; z < size[ 2 ]; z++ )
+				{
+					for ( int y = 0; y < size[ 1 ]; y++ )
+					{
+						for ( int x = 0; x < size[ 0 ]; x++ )
+						{
+							final long label = labels[ index++ ];
+							if ( entry == null || label != previous )
+							{
+								entry = entries.get( label );
+								if ( entry == null )
+								{
+									entry = new Entry();
+									entries.put( label, entry );
+								}
+								previous = label;
+							}
+							entry.add( block, min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z );
+						}
+					}
+				}
+			}
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Write the entries in the file format.
+	 */
+	private static ByteBuffer toBuffer( final long[] dimensions, final int[] blockDimensions, final Map< Long, Entry > entries )
+	{
+		final long[] labels = new long[ entries.size() ];
+		int numberOfLabels = 0;
+		int totalBlocks = 0;
+		for ( final Map.Entry< Long, Entry > entry : entries.entrySet() )
+		{
+			labels[ numberOfLabels++ ] = entry.getKey();
+			totalBlocks += entry.getValue().numberOfBlocks;
+		}
+		Arrays.sort( labels );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + numberOfLabels * ENTRY_SIZE + totalBlocks * 4 );
+		buffer.putInt( MAGIC );
+		buffer.putInt( VERSION );
+		for ( int i = 0; i < 3; i++ )
+		{
+			buffer.putLong( dimensions[ i ] );
+		}
+		for ( int i = 0; i < 3; i++ )
+		{
+			buffer.putInt( blockDimensions[ i ] );
+		}
+		buffer.putInt( numberOfLabels );
+
+		int position = 0;
+		for ( final long label : labels )
+		{
+			final Entry entry = entries.get( label );
+			buffer.putLong( label );
+			for ( int i = 0; i < 6; i++ )
+			{
+				buffer.putLong( entry.boundingBox[ i ] );
+			}
+			buffer.putInt( position );
+			buffer.putInt( entry.numberOfBlocks );
+			position += entry.numberOfBlocks;
+		}
+
+		for ( final long label : labels )
+		{
+			final Entry entry = entries.get( label );
+			for ( int i = 0; i < entry.numberOfBlocks; i++ )
+			{
+				buffer.putInt( entry.blocks[ i ] );
+			}
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Blocks and bounding box of a label while the index is built.
+	 */
+	private static class Entry
+	{
+		/** block ids, in increasing order */
+		int[] blocks = new int[ 4 ];
+
+		int numberOfBlocks = 0;
+
+		final long[] boundingBox = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE };
+
+		void add( final int block, final long x, final long y, final long z )
+		{
+			// the blocks are visited in order
+			if ( numberOfBlocks == 0 || blocks[ numberOfBlocks - 1 ] != block )
+			{
+				addBlock( block );
+			}
+
+			boundingBox[ 0 ] = Math.min( boundingBox[ 0 ], x );
+			boundingBox[ 1 ] = Math.min( boundingBox[ 1 ], y );
+			boundingBox[ 2 ] = Math.min( boundingBox[ 2 ], z );
+			boundingBox[ 3 ] = Math.max( boundingBox[ 3 ], x );
+			boundingBox[ 4 ] = Math.max( boundingBox[ 4 ], y );
+			boundingBox[ 5 ] = Math.max( boundingBox[ 5 ], z );
+		}
+
+		void merge( final Entry other )
+		{
+			for ( int i = 0; i < other.numberOfBlocks; i++ )
+			{
+				addBlock( other.blocks[ i ] );
+			}
+
+			for ( int i = 0; i < 3; i++ )
+			{
+				boundingBox[ i ] = Math.min( boundingBox[ i ], other.boundingBox[ i ] );
+				boundingBox[ i + 3 ] = Math.max( boundingBox[ i + 3 ], other.boundingBox[ i + 3 ] );
+			}
+		}
+
+		private void addBlock( final int block )
+		{
+			if ( numberOfBlocks == blocks.length )
+			{
+				blocks = Arrays.copyOf( blocks, blocks.length * 2 );
+			}
+			blocks[ numberOfBlocks++ ] = block;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import marchingCubes.MarchingCubes;
+
+/**
+ * Cache of the meshes of the chunks, shared by all the extractions of the
+ * process. The meshes are kept by dataset, foreground criterion, label,
+ * partition size, chunk and cube size, so selecting a neuron again or going
+ * back to a cube size already used does not generate the meshes again. The
+ * dataset is identified by a string (see {@link MeshExtractor#getDatasetId()}),
+ * so the cache does not keep the volumes nor depends on their instances.
+ *
+ * The size of the meshes in the cache is limited by the system property
+ * {@value #BUDGET_PROPERTY}, in bytes (default {@value #DEFAULT_BUDGET}).
+ * When the limit is reached, the least recently used meshes are removed.
+ *
+ * @author vleite
+ *
+ */
+public class MeshCache
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( MeshCache.class );
+
+	public static final String BUDGET_PROPERTY = "marchingCubes.meshCacheBytes";
+
+	public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+	/** approximated size of a key and its entry in the map, in bytes */
+	private static final long ENTRY_OVERHEAD = 128;
+
+	private static MeshCache instance = null;
+
+	/** meshes, from the least to the most recently used */
+	private final LinkedHashMap< Key, SimpleMesh > meshes;
+
+	/** maximum size of the meshes, in bytes */
+	private long budget;
+
+	/** size of the meshes in the cache, in bytes */
+	private long size;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	/**
+	 * @return the cache of the process, created in the first call
+	 */
+	public static synchronized MeshCache getInstance()
+	{
+		if ( instance == null )
+		{
+			instance = new MeshCache( Long.getLong( BUDGET_PROPERTY, DEFAULT_BUDGET ) );
+		}
+
+		return instance;
+	}
+
+	public MeshCache( final long budget )
+	{
+		this.meshes = new LinkedHashMap< Key, SimpleMesh >( 16, 0.75f, true );
+		this.budget = budget;
+		this.size = 0;
+	}
+
+	/**
+	 * Return the mesh of a chunk, if it is in the cache. The buffers of the
+	 * mesh returned are views of the cached ones, they must not be changed.
+	 *
+	 * @param dataset
+	 *            identifies the dataset of the chunk
+	 * @param criterion
+	 *            criterion used to generate the mesh
+	 * @param label
+	 *            foreground value
+	 * @param partitionSize
+	 *            size of the chunks of the volume, in voxels
+	 * @param chunk
+	 *            key of the chunk, see {@link ChunkGrid#key(long, long, long)}
+	 * @param cubeSize
+	 *            cube size used to generate the mesh
+	 * @return the mesh, or null if it is not in the cache
+	 */
+	public synchronized SimpleMesh get( final String dataset, final MarchingCubes.ForegroundCriterion criterion, final long label,
+			final int[] partitionSize, final long chunk, final int[] cubeSize )
+	{
+		final SimpleMesh mesh = meshes.get( new Key( dataset, criterion, label, partitionSize, chunk, cubeSize ) );
+		if ( mesh == null )
+		{
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return view( mesh );
+	}
+
+	/**
+	 * Add the mesh of a chunk to the cache, see
+	 * {@link #get(String, MarchingCubes.ForegroundCriterion, long, int[], long, int[])}.
+	 */
+	public synchronized void put( final String dataset, final MarchingCubes.ForegroundCriterion criterion, final long label,
+			final int[] partitionSize, final long chunk, final int[] cubeSize, final SimpleMesh mesh )
+	{
+		final long meshSize = sizeOf( mesh );
+		if ( meshSize > budget )
+		{
+			return;
+		}
+
+		final SimpleMesh previous = meshes.put( new Key( dataset, criterion, label, partitionSize, chunk, cubeSize ), view( mesh ) );
+		if ( previous != null )
+		{
+			size -= sizeOf( previous );
+		}
+		size += meshSize;
+
+		evict();
+	}
+
+	/**
+	 * Define the maximum size of the meshes in the cache, in bytes.
+	 */
+	public synchronized void setBudget( final long budget )
+	{
+		this.budget = budget;
+		evict();
+	}
+
+	public synchronized void clear()
+	{
+		meshes.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return size of the meshes in the cache, in bytes
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	public synchronized int getNumberOfMeshes()
+	{
+		return meshes.size();
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * Remove the least recently used meshes until the size is not above the
+	 * budget.
+	 */
+	private void evict()
+	{
+		final Iterator< SimpleMesh > iterator = meshes.values().iterator();
+		while ( size > budget && iterator.hasNext() )
+		{
+			size -= sizeOf( iterator.next() );
+			iterator.remove();
+			evictions++;
+		}
+
+		if ( LOGGER.isTraceEnabled() )
+		{
+			LOGGER.trace( "mesh cache: " + meshes.size() + " meshes, " + size + " bytes, " + hits + " hits, " + misses + " misses, "
+					+ evictions + " evictions" );
+		}
+	}
+
+	/**
+	 * @return approximated size of the mesh, in bytes
+	 */
+	private static long sizeOf( final SimpleMesh mesh )
+	{
+		long bytes = ENTRY_OVERHEAD;
+		if ( mesh.getVertices() != null )
+		{
+			bytes += 4L * mesh.getVertices().limit();
+		}
+		if ( mesh.getNormals() != null )
+		{
+			bytes += 4L * mesh.getNormals().limit();
+		}
+		if ( mesh.getTriangles() != null )
+		{
+			bytes += 4L * mesh.getTriangles().limit();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return a mesh that shares the buffers of the given one, with their own
+	 *         positions and limits
+	 */
+	private static SimpleMesh view( final SimpleMesh mesh )
+	{
+		final SimpleMesh view = new SimpleMesh();
+		view.setNumberOfVertices( mesh.getNumberOfVertices() );
+		view.setNumberOfTriangles( mesh.getNumberOfTriangles() );
+		view.setBoundaryFaces( mesh.getBoundaryFaces() );
+		if ( mesh.getVertices() != null )
+		{
+			view.setVertices( mesh.getVertices().duplicate() );
+		}
+		if ( mesh.getNormals() != null )
+		{
+			view.setNormals( mesh.getNormals().duplicate() );
+		}
+		if ( mesh.getTriangles() != null )
+		{
+			view.setTriangles( mesh.getTriangles().duplicate() );
+		}
+		return view;
+	}
+
+	/**
+	 * Identifies the mesh of a chunk.
+	 */
+	private static class Key
+	{
+		private final String dataset;
+
+		private final MarchingCubes.ForegroundCriterion criterion;
+
+		private final long label;
+
+		private final int[] partitionSize;
+
+		private final long chunk;
+
+		private final int[] cubeSize;
+
+		Key( final String dataset, final MarchingCubes.ForegroundCriterion criterion, final long label, final int[] partitionSize, final long chunk,
+				final int[] cubeSize )
+		{
+			this.dataset = dataset;
+			this.criterion = criterion;
+			this.label = label;
+			this.partitionSize = partitionSize.clone();
+			this.chunk = chunk;
+			this.cubeSize = cubeSize.clone();
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof Key ) )
+			{
+				return false;
+			}
+
+			final Key key = ( Key ) other;
+			return dataset.equals( key.dataset ) && criterion == key.criterion && label == key.label && chunk == key.chunk
+					&& Arrays.equals( partitionSize, key.partitionSize ) && Arrays.equals( cubeSize, key.cubeSize );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = dataset.hashCode();
+			hash = 31 * hash + criterion.hashCode();
+			hash = 31 * hash + Long.hashCode( label );
+			hash = 31 * hash + Arrays.hashCode( partitionSize );
+			hash = 31 * hash + Long.hashCode( chunk );
+			hash = 31 * hash + Arrays.hashCode( cubeSize );
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import marchingCubes.MarchingCubes;
+
+/**
+ * Cache of the meshes of the chunks on disk, so the meshes generated in one
+ * run of the application (or by another process) do not have to be
+ * generated again.
+ *
+ * Each dataset has its own directory, named after the file, the dataset and
+ * the modification time of the file: when the file changes, the old meshes
+ * are not used anymore. Each mesh is a file, named after the label, the
+ * criterion, the partition size, the position of the chunk and the cube
+ * size, with a header of
+ * {@value #HEADER_SIZE} bytes (magic number, version, number of vertices,
+ * number of triangles, boundary faces and indexed flag) followed by the
+ * vertices, the normals and the triangles (if indexed), all little-endian.
+ * The files are mapped in memory and the buffers of the mesh are views of
+ * the mapped file.
+ *
+ * The files are written to a temporary file and renamed, so the processes
+ * that share the directory never see a partial mesh.
+ *
+ * @author vleite
+ *
+ */
+public class MeshDiskCache
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( MeshDiskCache.class );
+
+	public static final String DIRECTORY_PROPERTY = "marchingCubes.meshCacheDirectory";
+
+	private static final int MAGIC = 0x4d434d53;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 24;
+
+	private static final String EXTENSION = ".mesh";
+
+	/** directory of the meshes of the dataset */
+	private final File directory;
+
+	/**
+	 * @param cacheDirectory
+	 *            directory shared by all the datasets, see
+	 *            {@link #getDefaultDirectory()}
+	 * @param file
+	 *            hdf5 file of the dataset
+	 * @param dataset
+	 *            path of the label dataset in the file
+	 */
+	public MeshDiskCache( final File cacheDirectory, final File file, final String dataset )
+	{
+		final String name = file.getName() + dataset.replace( '/', '_' ) + "_"
+				+ Integer.toHexString( file.getAbsolutePath().hashCode() ) + "_" + Long.toHexString( file.lastModified() );
+		this.directory = new File( cacheDirectory, name );
+	}
+
+	/**
+	 * @return the directory given by the system property
+	 *         {@value #DIRECTORY_PROPERTY}, or .marchingCubes/meshes in the
+	 *         home of the user
+	 */
+	public static File getDefaultDirectory()
+	{
+		final String directory = System.getProperty( DIRECTORY_PROPERTY );
+		if ( directory != null )
+		{
+			return new File( directory );
+		}
+
+		return new File( System.getProperty( "user.home" ), ".marchingCubes" + File.separator + "meshes" );
+	}
+
+	/**
+	 * Return the mesh of a chunk, if it is in the cache.
+	 *
+	 * @param criterion
+	 *            criterion used to generate the mesh
+	 * @param label
+	 *            foreground value
+	 * @param partitionSize
+	 *            size of the chunks of the volume, in voxels
+	 * @param chunkOffset
+	 *            position of the chunk in the grid of chunks
+	 * @param cubeSize
+	 *            cube size used to generate the mesh
+	 * @return the mesh, with buffers mapped from the file, or null if it is
+	 *         not in the cache or cannot be read. A file that cannot be read
+	 *         is deleted, so the mesh generated again replaces it.
+	 */
+	public SimpleMesh get( final MarchingCubes.ForegroundCriterion criterion, final long label, final int[] partitionSize, final long[] chunkOffset,
+			final int[] cubeSize )
+	{
+		final File file = getFile( criterion, label, partitionSize, chunkOffset, cubeSize );
+		if ( !file.exists() )
+		{
+			return null;
+		}
+
+		try (RandomAccessFile input = new RandomAccessFile( file, "r" ))
+		{
+			final FileChannel channel = input.getChannel();
+			final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			return read( buffer );
+		}
+		catch ( IOException e )
+		{
+			LOGGER.warn( "could not read the mesh " + file + ", it is deleted: " + e.getMessage() );
+		}
+
+		if ( !file.delete() && file.exists() )
+		{
+			LOGGER.warn( "could not delete the mesh " + file );
+		}
+		return null;
+	}
+
+	/**
+	 * Write the mesh of a chunk in the cache, see
+	 * {@link #get(MarchingCubes.ForegroundCriterion, long, int[], long[], int[])}.
+	 */
+	public void put( final MarchingCubes.ForegroundCriterion criterion, final long label, final int[] partitionSize, final long[] chunkOffset,
+			final int[] cubeSize, final SimpleMesh mesh )
+	{
+		final File file = getFile( criterion, label, partitionSize, chunkOffset, cubeSize );
+		try
+		{
+			final File parent = file.getParentFile();
+			if ( !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory() )
+			{
+				throw new IOException( "could not create " + parent );
+			}
+
+			final File temporary = File.createTempFile( file.getName(), ".tmp", parent );
+			try (RandomAccessFile output = new RandomAccessFile( temporary, "rw" ))
+			{
+				final FileChannel channel = output.getChannel();
+				final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, sizeOf( mesh ) );
+				buffer.order( ByteOrder.LITTLE_ENDIAN );
+				write( mesh, buffer );
+				buffer.force();
+			}
+
+			try
+			{
+				Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( AtomicMoveNotSupportedException e )
+			{
+				Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		catch ( IOException e )
+		{
+			LOGGER.warn( "could not write the mesh " + file + ": " + e.getMessage() );
+		}
+	}
+
+	private File getFile( final MarchingCubes.ForegroundCriterion criterion, final long label, final int[] partitionSize, final long[] chunkOffset,
+			final int[] cubeSize )
+	{
+		final String name = criterion.name().toLowerCase() + "_" + partitionSize[ 0 ] + "x" + partitionSize[ 1 ] + "x" + partitionSize[ 2 ] + "_" + chunkOffset[ 0 ] + "_" + chunkOffset[ 1 ] + "_" + chunkOffset[ 2 ] + "_"
+				+ cubeSize[ 0 ] + "x" + cubeSize[ 1 ] + "x" + cubeSize[ 2 ] + EXTENSION;
+		return new File( new File( directory, Long.toString( label ) ), name );
+	}
+
+	private static long sizeOf( final SimpleMesh mesh )
+	{
+		return sizeOf( mesh.getNumberOfVertices(), mesh.getNumberOfTriangles(), mesh.isIndexed() );
+	}
+
+	/**
+	 * @return size of the file of a mesh, in bytes
+	 */
+	private static long sizeOf( final int vertices, final int triangles, final boolean indexed )
+	{
+		long size = HEADER_SIZE + 2 * 12L * vertices;
+		if ( indexed )
+		{
+			size += 12L * triangles;
+		}
+		return size;
+	}
+
+	private static void write( final SimpleMesh mesh, final ByteBuffer buffer )
+	{
+		buffer.putInt( MAGIC );
+		buffer.putInt( VERSION );
+		buffer.putInt( mesh.getNumberOfVertices() );
+		buffer.putInt( mesh.getNumberOfTriangles() );
+		buffer.putInt( mesh.getBoundaryFaces() );
+		buffer.putInt( mesh.isIndexed() ? 1 : 0 );
+
+		final int values = mesh.getNumberOfVertices() * 3;
+		final FloatBuffer vertices = ( FloatBuffer ) mesh.getVertices().duplicate().position( 0 ).limit( values );
+		buffer.asFloatBuffer().put( vertices );
+		buffer.position( buffer.position() + values * 4 );
+
+		final FloatBuffer normals = ( FloatBuffer ) mesh.getNormals().duplicate().position( 0 ).limit( values );
+		buffer.asFloatBuffer().put( normals );
+		buffer.position( buffer.position() + values * 4 );
+
+		if ( mesh.isIndexed() )
+		{
+			final IntBuffer triangles = ( IntBuffer ) mesh.getTriangles().duplicate().position( 0 ).limit( mesh.getNumberOfTriangles() * 3 );
+			buffer.asIntBuffer().put( triangles );
+		}
+	}
+
+	/**
+	 * Read a mesh written by {@link #write(SimpleMesh, ByteBuffer)}. The
+	 * header must match the size of the file, a truncated file or a file of
+	 * other program is never read past its end.
+	 */
+	private static SimpleMesh read( final ByteBuffer buffer ) throws IOException
+	{
+		if ( buffer.capacity() < HEADER_SIZE )
+		{
+			throw new IOException( "the file is smaller than the header" );
+		}
+
+		if ( buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+		{
+			throw new IOException( "not a mesh file of this version" );
+		}
+
+		final SimpleMesh mesh = new SimpleMesh();
+		mesh.setNumberOfVertices( buffer.getInt() );
+		mesh.setNumberOfTriangles( buffer.getInt() );
+		mesh.setBoundaryFaces( buffer.getInt() );
+		final boolean indexed = buffer.getInt() != 0;
+
+		if ( mesh.getNumberOfVertices() < 0 || mesh.getNumberOfTriangles() < 0 || sizeOf( mesh.getNumberOfVertices(), mesh.getNumberOfTriangles(),
+				indexed ) != buffer.capacity() )
+		{
+			throw new IOException( "the header does not match the size of the file, " + buffer.capacity() + " bytes" );
+		}
+
+		final int values = mesh.getNumberOfVertices() * 3;
+		mesh.setVertices( slice( buffer, values * 4 ).asFloatBuffer() );
+		mesh.setNormals( slice( buffer, values * 4 ).asFloatBuffer() );
+		if ( indexed )
+		{
+			mesh.setTriangles( slice( buffer, mesh.getNumberOfTriangles() * 12 ).asIntBuffer() );
+		}
+
+		return mesh;
+	}
+
+	/**
+	 * @return the next bytes of the buffer, the position of the buffer is
+	 *         moved after them
+	 */
+	private static ByteBuffer slice( final ByteBuffer buffer, final int length )
+	{
+		final ByteBuffer slice = buffer.slice().order( buffer.order() );
+		slice.limit( length );
+		buffer.position( buffer.position() + length );
+		return slice;
+	}
+}
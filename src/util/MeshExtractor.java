@@ -1,13 +1,26 @@
 package util;
 
-import java.nio.FloatBuffer;
-import java.util.HashMap;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletionService;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +40,23 @@ import net.imglib2.RandomAccessibleInterval;
  * Will call the VolumePartitioner must have a callNext method (use chunk index
  * based on x, y and z)
  * 
+ * The meshes of the chunks are delivered to a {@link ChunkMeshSubscriber}
+ * as soon as they are ready (see {@link #subscribe(ChunkMeshSubscriber)}),
+ * or can be taken one by one with {@link #hasNext()} and {@link #next()}.
+ * 
+ * With more than one refinement level (see
+ * {@link #setRefinementLevels(int[][])}), the chunks are generated first with
+ * the coarsest cube size, and each chunk is generated again with the next
+ * level when its coarser mesh is ready. The coarser levels run before the
+ * finer ones, so the whole object appears fast and its details come later.
+ * A {@link ChunkLevelSelector} can limit the level of each chunk, and
+ * {@link #requestLevel(long[], int)} changes the level of a chunk later.
+ * 
+ * The chunks are made of whole storage cells of the dataset (see
+ * {@link #setStorageCellDimensions(int[])}), as big as the memory limit
+ * {@value #CHUNK_BYTES_PROPERTY} allows while keeping all the threads of the
+ * {@link MeshingExecutor} busy.
+ * 
  * @author vleite
  *
  */
@@ -37,146 +67,656 @@ public class MeshExtractor
 
 	static final int MAX_CUBE_SIZE = 16;
 
+	/** maximum size of the labels of a chunk, in bytes */
+	public static final String CHUNK_BYTES_PROPERTY = "marchingCubes.chunkBytes";
+
+	public static final long DEFAULT_CHUNK_BYTES = 16L * 1024 * 1024;
+
+	/** minimum number of chunks in the volume for each thread */
+	static final int CHUNKS_PER_THREAD = 4;
+
 	private RandomAccessibleInterval< LabelMultisetType > volumeLabels;
 
 	int[] partitionSize;
 
 	private int[] cubeSize;
 
-	private int foregroundValue;
+	/** cube sizes of the meshes of each chunk, from the coarsest to the finest */
+	private int[][] levels;
+
+	private long foregroundValue;
 
 	private int nCellsX, nCellsY, nCellsZ;
 
 	private MarchingCubes.ForegroundCriterion criterion;
 
-	private static Map< Future< SimpleMesh >, Chunk > resultMeshMap = null;
+	/** tasks created and not finished yet */
+	private final Set< ChunkTask > tasks;
+
+	/** chunk index and cube size of the meshes requested */
+	private final Set< List< Integer > > chunkResolutions;
+
+	/**
+	 * submissions of the tasks scheduled, done without the lock of the
+	 * extractor, see {@link #submitScheduledTasks()}
+	 */
+	private final Queue< Runnable > submissions;
+
+	/** results ready, waiting to be requested by the subscriber */
+	private final Queue< ChunkMeshResult > results;
+
+	/** number of chunks created whose results were not delivered yet */
+	private final AtomicInteger pendingResults;
+
+	/** number of results requested by the subscriber and not delivered */
+	private final AtomicLong demand;
+
+	/** serializes the delivery of the results */
+	private final AtomicInteger deliveries;
+
+	/**
+	 * number of tasks submitted whose results were not delivered yet, see
+	 * {@link #submitScheduledTasks()}
+	 */
+	private final AtomicLong outstanding;
+
+	private ChunkMeshSubscriber subscriber;
+
+	/** subscriber used by {@link #hasNext()} and {@link #next()} */
+	private IteratorSubscriber iterator;
+
+	/** tasks of this extraction, executed by the shared {@link MeshingExecutor} */
+	private final MeshingExecutor.Session session;
+
+	/** true when the extraction was cancelled, no more chunks are created */
+	private volatile boolean cancelled;
+
+	private VolumePartitioner partitioner;
+
+	/** maximum number of chunks kept by the partitioner */
+	private int maxChunks;
+
+	/** where each label is in the volume, null if unknown */
+	private LabelIndex labelIndex;
 
-	private static Map< Chunk, int[] > chunkResolutionMap = null;
+	/** true when the chunks of the label index were created for the cube size */
+	private boolean indexChunksCreated;
 
-	private static CompletionService< SimpleMesh > executor = null;
+	/**
+	 * identifies the dataset of the volume in the {@link MeshCache}, null to
+	 * use the dataset of the label service or reader, see
+	 * {@link #getDatasetId()}
+	 */
+	private String datasetId;
+
+	/**
+	 * ids of the volumes without dataset, kept while the volumes are in use
+	 */
+	private static final Map< Object, String > VOLUME_IDS = Collections.synchronizedMap( new WeakHashMap< Object, String >() );
+
+	private static final AtomicLong VOLUME_COUNT = new AtomicLong();
+
+	/** meshes stored on disk, null if not used */
+	private MeshDiskCache diskCache;
 
-	private static VolumePartitioner partitioner;
+	/** finest level of each chunk, null to refine all the chunks */
+	private ChunkLevelSelector levelSelector;
 
-	public MeshExtractor( RandomAccessibleInterval< LabelMultisetType > volumeLabels, final int[] cubeSize, final int foregroundValue, final MarchingCubes.ForegroundCriterion criterion )
+	/** reads the labels of the chunks without the volume, null if not used */
+	private LabelBlockReader blockReader;
+
+	/** reads the labels of the chunks in its own threads, null if not used */
+	private LabelBlockService blockService;
+
+	public MeshExtractor( RandomAccessibleInterval< LabelMultisetType > volumeLabels, final int[] cubeSize, final long foregroundValue, final MarchingCubes.ForegroundCriterion criterion )
 	{
 		this.volumeLabels = volumeLabels;
-		this.partitionSize = new int[] { 1, 1, 1 };
 		this.cubeSize = cubeSize;
+		this.levels = new int[][] { cubeSize };
 		this.foregroundValue = foregroundValue;
 		this.criterion = criterion;
 
-		executor = new ExecutorCompletionService< SimpleMesh >(
-				Executors.newWorkStealingPool() );
+		session = MeshingExecutor.getInstance().newSession();
+		cancelled = false;
+
+		tasks = ConcurrentHashMap.newKeySet();
+
+		chunkResolutions = new HashSet< List< Integer > >();
+
+		submissions = new ConcurrentLinkedQueue< Runnable >();
+		results = new ConcurrentLinkedQueue< ChunkMeshResult >();
+		pendingResults = new AtomicInteger();
+		demand = new AtomicLong();
+		deliveries = new AtomicInteger();
+		outstanding = new AtomicLong();
+
+		// the cells of the volumes read by HDF5Reader, until the storage
+		// cells are known
+		maxChunks = VolumePartitioner.DEFAULT_MAX_CHUNKS;
+		partitionVolume( HDF5Reader.cellDimensions );
+		labelIndex = null;
+		indexChunksCreated = false;
+		diskCache = null;
+		levelSelector = null;
+		blockReader = null;
+		blockService = null;
+
+		iterator = new IteratorSubscriber();
+		subscribe( iterator );
+	}
+
+	/**
+	 * Define who receives the meshes of the chunks, it must be called before
+	 * creating the chunks. After this call, {@link #hasNext()} and
+	 * {@link #next()} cannot be used.
+	 * 
+	 * @param subscriber
+	 *            receives the meshes
+	 */
+	public void subscribe( ChunkMeshSubscriber subscriber )
+	{
+		if ( subscriber != iterator )
+		{
+			iterator = null;
+		}
+
+		// the demand of the previous subscriber is not for this one
+		demand.set( 0 );
+		this.subscriber = subscriber;
+		subscriber.onSubscribe( new ChunkMeshSubscription()
+		{
+			@Override
+			public void request( long n )
+			{
+				if ( n <= 0 )
+				{
+					return;
+				}
+
+				demand.accumulateAndGet( n, ( current, requested ) -> {
+					final long sum = current + requested;
+					return sum < 0 ? Long.MAX_VALUE : sum;
+				} );
+				deliverResults();
+			}
+
+			@Override
+			public void cancel()
+			{
+				MeshExtractor.this.cancel();
+			}
+		} );
+	}
 
-		resultMeshMap = new HashMap< Future< SimpleMesh >, Chunk >();
+	/**
+	 * Define the index of the labels of the volume. When the foreground value
+	 * is in the index, only the chunks that contain it are processed,
+	 * instead of searching the neighbors of each chunk.
+	 * 
+	 * @param labelIndex
+	 *            index of the labels, or null
+	 */
+	public void setLabelIndex( LabelIndex labelIndex )
+	{
+		this.labelIndex = labelIndex;
+	}
+
+	/**
+	 * Define the cache of the meshes on disk. The meshes not found in memory
+	 * are read from it, and the meshes generated are written to it.
+	 * 
+	 * @param diskCache
+	 *            cache of the dataset of the volume, or null
+	 */
+	public void setDiskCache( MeshDiskCache diskCache )
+	{
+		this.diskCache = diskCache;
+	}
+
+	/**
+	 * Define the id of the dataset of the volume, used to share the meshes
+	 * in the {@link MeshCache} with the other extractions of the same
+	 * dataset.
+	 * 
+	 * @param datasetId
+	 *            id of the dataset, e.g. the path of the file and of the
+	 *            dataset, or null to use the dataset of the label service or
+	 *            reader
+	 */
+	public void setDatasetId( String datasetId )
+	{
+		this.datasetId = datasetId;
+	}
+
+	/**
+	 * @return id of the dataset of the volume in the {@link MeshCache}: the
+	 *         one given by {@link #setDatasetId(String)}, or the dataset read
+	 *         by the label service or reader. Without any of them, the volume
+	 *         gets an id kept while it is in use.
+	 */
+	public String getDatasetId()
+	{
+		if ( datasetId != null )
+		{
+			return datasetId;
+		}
+
+		if ( blockService != null )
+		{
+			return blockService.getDatasetId();
+		}
+
+		if ( blockReader != null )
+		{
+			return blockReader.getDatasetId();
+		}
+
+		return VOLUME_IDS.computeIfAbsent( volumeLabels, volume -> "volume-" + VOLUME_COUNT.incrementAndGet() );
+	}
+
+	/**
+	 * Define the reader of the label dataset of the volume. When it is
+	 * defined, the labels of each chunk are read directly from the dataset
+	 * instead of the voxels of the volume.
+	 * 
+	 * @param blockReader
+	 *            reader of the dataset of the volume, or null
+	 */
+	public void setLabelBlockReader( LabelBlockReader blockReader )
+	{
+		if ( blockReader != null && !Arrays.equals( blockReader.getDimensions(), new long[] { volumeLabels.dimension( 0 ),
+				volumeLabels.dimension( 1 ), volumeLabels.dimension( 2 ) } ) )
+		{
+			LOGGER.warn( "the label dataset does not match the volume, the volume is used" );
+			blockReader = null;
+		}
+
+		this.blockReader = blockReader;
+		if ( blockReader != null )
+		{
+			setStorageCellDimensions( blockReader.getCellDimensions() );
+		}
+	}
+
+	/**
+	 * Define the service that reads the label dataset of the volume. When it
+	 * is defined, the labels of each chunk are read by the threads of the
+	 * service, and the mesh is generated when they are ready, so the threads
+	 * of the extraction never wait for the dataset. It is used instead of the
+	 * {@link #setLabelBlockReader(LabelBlockReader) block reader}.
+	 * 
+	 * @param blockService
+	 *            service of the dataset of the volume, or null
+	 */
+	public void setLabelBlockService( LabelBlockService blockService )
+	{
+		if ( blockService != null && !Arrays.equals( blockService.getDimensions(), new long[] { volumeLabels.dimension( 0 ),
+				volumeLabels.dimension( 1 ), volumeLabels.dimension( 2 ) } ) )
+		{
+			LOGGER.warn( "the label dataset does not match the volume, the volume is used" );
+			blockService = null;
+		}
 
-		chunkResolutionMap = new HashMap< Chunk, int[] >();
+		this.blockService = blockService;
+		if ( blockService != null )
+		{
+			setStorageCellDimensions( blockService.getCellDimensions() );
+		}
+	}
 
-		generatePartitionSize();
+	/**
+	 * Define the cells in which the dataset of the volume is stored. The
+	 * chunks are partitioned again to have whole cells, so a cell is never
+	 * decompressed for a few of its voxels (only the overlap of the chunks
+	 * reaches the cells of the neighbors). It is called by
+	 * {@link #setLabelBlockReader(LabelBlockReader)} and
+	 * {@link #setLabelBlockService(LabelBlockService)}, and must be called
+	 * before creating the chunks.
+	 * 
+	 * @param cellDimensions
+	 *            x, y, z dimensions of the cells, see
+	 *            {@link HDF5Reader#getCellDimensions(ch.systemsx.cisd.hdf5.IHDF5Reader, String)}
+	 */
+	public synchronized void setStorageCellDimensions( int[] cellDimensions )
+	{
+		if ( !chunkResolutions.isEmpty() || !tasks.isEmpty() )
+		{
+			LOGGER.warn( "the chunks were already created, they are not partitioned again" );
+			return;
+		}
 
-		nCellsX = ( int ) Math.ceil( ( volumeLabels.dimension( 0 ) ) / partitionSize[ 0 ] );
-		nCellsY = ( int ) Math.ceil( ( volumeLabels.dimension( 1 ) ) / partitionSize[ 1 ] );
-		nCellsZ = ( int ) Math.ceil( ( volumeLabels.dimension( 2 ) ) / partitionSize[ 2 ] );
+		partitionVolume( cellDimensions );
+	}
 
-		if ( volumeLabels.dimension( 0 ) % partitionSize[ 0 ] == 0 )
-			nCellsX--;
-		if ( volumeLabels.dimension( 1 ) % partitionSize[ 1 ] == 0 )
-			nCellsY--;
-		if ( volumeLabels.dimension( 2 ) % partitionSize[ 2 ] == 0 )
-			nCellsZ--;
+	/**
+	 * Define who chooses the finest refinement level of each chunk. Without
+	 * it, all the chunks are refined until the last level.
+	 * 
+	 * @param levelSelector
+	 *            chooses the level of the chunks, or null
+	 */
+	public void setLevelSelector( ChunkLevelSelector levelSelector )
+	{
+		this.levelSelector = levelSelector;
+	}
 
-		partitioner = new VolumePartitioner( this.volumeLabels, partitionSize, this.cubeSize );
+	/**
+	 * Define the maximum number of chunks kept by the partitioner, see
+	 * {@link VolumePartitioner#setMaxChunks(int)}.
+	 */
+	public synchronized void setMaxChunks( int maxChunks )
+	{
+		this.maxChunks = maxChunks;
+		partitioner.setMaxChunks( maxChunks );
 	}
 
 	public void setCubeSize( int[] cubeSize )
 	{
-		this.cubeSize = cubeSize;
+		setRefinementLevels( cubeSize );
+	}
+
+	/**
+	 * Define the cube sizes used to generate the meshes of each chunk, from
+	 * the coarsest to the finest. The mesh of each level replaces the mesh of
+	 * the previous level of the chunk, see {@link ChunkMeshResult#getLevel()}.
+	 * 
+	 * @param levels
+	 *            cube sizes, the last one is the final resolution
+	 */
+	public synchronized void setRefinementLevels( int[]... levels )
+	{
+		this.levels = levels.clone();
+		this.cubeSize = levels[ levels.length - 1 ];
 		partitioner.setOverlapSize( cubeSize );
+		chunkResolutions.clear();
+		indexChunksCreated = false;
 	}
 
+	/**
+	 * @return cube sizes of the refinement levels, from the coarsest to the
+	 *         finest
+	 */
+	public synchronized int[][] getRefinementLevels()
+	{
+		return levels.clone();
+	}
+
+	/**
+	 * Generate the mesh of a chunk with the cube size of a refinement level,
+	 * even if it was generated before (then it usually comes from the
+	 * {@link MeshCache}). It is used when the level needed for the chunk
+	 * changes, e.g. when the camera moves.
+	 * 
+	 * @param chunkOffset
+	 *            x, y, z position of the chunk in the grid of chunks
+	 * @param level
+	 *            refinement level
+	 */
+	public void requestLevel( long[] chunkOffset, int level )
+	{
+		synchronized ( this )
+		{
+			final Chunk chunk = partitioner.getChunk( chunkOffset );
+			final int[] resolution = levels[ level ];
+			chunkResolutions.remove( Arrays.asList( chunk.getIndex(), resolution[ 0 ], resolution[ 1 ], resolution[ 2 ] ) );
+			scheduleChunk( chunk, level );
+		}
+
+		submitScheduledTasks();
+	}
+
+	/**
+	 * Return the box of a chunk in the coordinates of the meshes, where the
+	 * volume is between 0 and 1 (see {@link #getNormalization()}).
+	 * 
+	 * @param chunkOffset
+	 *            x, y, z position of the chunk in the grid of chunks
+	 * @return min x, y, z and max x, y, z
+	 */
+	public float[] getChunkBoundingBox( long[] chunkOffset )
+	{
+		final float normalization = getNormalization();
+		final float[] boundingBox = new float[ 6 ];
+		for ( int i = 0; i < 3; i++ )
+		{
+			final long begin = chunkOffset[ i ] * partitionSize[ i ];
+			final long end = Math.min( begin + partitionSize[ i ], volumeLabels.dimension( i ) );
+			boundingBox[ i ] = begin / normalization;
+			boundingBox[ i + 3 ] = end / normalization;
+		}
+		return boundingBox;
+	}
+
+	/**
+	 * Cancel the extraction: the tasks waiting are removed, the running tasks
+	 * are interrupted and the neighbors of the chunks are not created
+	 * anymore. {@link #hasNext()} returns false after this call.
+	 */
+	public synchronized void cancel()
+	{
+		cancelled = true;
+		session.cancel();
+		for ( ChunkTask task : tasks )
+		{
+			// cancelling a task not done calls taskDone, which releases its
+			// chunk; the chunk is released only by who removes the task
+			task.cancel( true );
+			if ( tasks.remove( task ) )
+			{
+				partitioner.releaseChunk( task.chunk );
+			}
+		}
+		submissions.clear();
+		results.clear();
+		pendingResults.set( 0 );
+		outstanding.set( 0 );
+
+		LOGGER.debug( "mesh extraction cancelled" );
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * @return true if there are chunks whose meshes were not taken by
+	 *         {@link #next()}
+	 */
 	public boolean hasNext()
 	{
-		LOGGER.trace( "There is/are {} threads to calculate the chunk mesh", resultMeshMap.size() );
-		return resultMeshMap.size() > 0;
+		if ( iterator == null )
+		{
+			throw new IllegalStateException( "the meshes are delivered to a subscriber" );
+		}
+
+		LOGGER.trace( "There is/are {} threads to calculate the chunk mesh", tasks.size() );
+		return !cancelled && ( pendingResults.get() > 0 || !iterator.results.isEmpty() );
 	}
 
+	/**
+	 * Wait for the next chunk and return its mesh.
+	 * 
+	 * @return the mesh of the chunk, or null if the chunk is empty or the
+	 *         extraction was cancelled
+	 */
 	public Mesh next()
 	{
-		// System.out.println( "next method" );
-		Future< SimpleMesh > completedFuture = null;
+		final ChunkMeshResult result = nextResult();
+		if ( result == null || result.isEmpty() )
+		{
+			return null;
+		}
+
+		// the meshes are kept by the mesh cache, not by the chunk
+		Mesh sceneryMesh = new Mesh();
+		updateMesh( result.getMesh(), sceneryMesh );
+
+		LOGGER.debug( "chunk {}", result.getChunk() );
+
+		// a mesh was created, return it
+		return sceneryMesh;
+	}
+
+	/**
+	 * Wait for the next chunk and return its result, with the chunk and the
+	 * refinement level of its mesh.
+	 * 
+	 * @return the result of the chunk, or null if the extraction was
+	 *         cancelled
+	 */
+	public ChunkMeshResult nextResult()
+	{
+		if ( iterator == null )
+		{
+			throw new IllegalStateException( "the meshes are delivered to a subscriber" );
+		}
+
+		ChunkMeshResult result = null;
 		// block until any task completes
 		try
 		{
-			completedFuture = executor.take();
-			if ( LOGGER.isTraceEnabled() )
+			while ( result == null && !cancelled )
 			{
-				LOGGER.trace( "task " + completedFuture + " is ready: " + completedFuture.isDone() );
+				result = iterator.results.poll( 100, TimeUnit.MILLISECONDS );
+				if ( result == null && pendingResults.get() == 0 )
+				{
+					// the last result was taken after hasNext() was called
+					result = iterator.results.poll();
+					break;
+				}
 			}
 		}
 		catch ( InterruptedException e )
 		{
-			// TODO Auto-generated catch block
 			LOGGER.error( " task interrupted: " + e.getCause() );
+			Thread.currentThread().interrupt();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Called in the thread of the task when it finishes: schedules the
+	 * neighbors of the chunk and delivers the result.
+	 */
+	private void taskDone( ChunkTask task )
+	{
+		// the chunk is released once, by taskDone or cancel()
+		if ( tasks.remove( task ) )
+		{
+			partitioner.releaseChunk( task.chunk );
 		}
 
-		// System.out.println( "get completed future" );
+		if ( task.isCancelled() || cancelled )
+		{
+			return;
+		}
 
-		Chunk chunk = resultMeshMap.remove( completedFuture );
 		SimpleMesh m = new SimpleMesh();
 
 		// get the mesh, if the task was able to create it
 		try
 		{
-			m = completedFuture.get();
-			LOGGER.info( "getting mesh" );
+			m = task.get();
+			LOGGER.debug( "getting mesh" );
+
+			if ( !task.cached )
+			{
+				MeshCache.getInstance().put( getDatasetId(), criterion, foregroundValue, partitionSize, getChunkKey( task.chunk ), task.resolution, m );
+			}
 		}
-		catch ( InterruptedException | ExecutionException e )
+		catch ( InterruptedException | ExecutionException | CancellationException e )
 		{
 			LOGGER.error( "Mesh creation failed: " + e.getCause() );
 		}
 
-		// System.out.println( "get mesh" );
+		final long[] chunkOffset = partitioner.getChunkOffset( task.chunk );
 
-		Mesh sceneryMesh = null;
+		// the surface only continues through the faces of the chunk that it
+		// touches, an empty chunk does not spread the search
 		if ( m.getNumberOfVertices() == 0 )
 		{
-			LOGGER.info( "empty mesh" );
-			// System.out.println( "empty mesh" );
+			LOGGER.debug( "empty mesh" );
 		}
-		else
+		else if ( !useLabelIndex() )
 		{
-			sceneryMesh = new Mesh();
-			updateMesh( m, sceneryMesh );
-			chunk.setMesh( sceneryMesh, cubeSize );
+			createNeighborChunks( chunkOffset, m.getBoundaryFaces(), task.level );
+
+			// the chunks of the label index are created for all the levels at
+			// once
+			if ( task.level + 1 <= getMaxLevel( chunkOffset ) )
+			{
+				scheduleChunk( task.chunk, task.level + 1 );
+			}
+
+			submitScheduledTasks();
 		}
 
-		// System.out.println( "new positions" );
-		int index = chunk.getIndex();
-		int xWidth = ( int ) volumeLabels.dimension( 0 );
-		int xyWidth = ( int ) ( volumeLabels.dimension( 1 ) * xWidth );
-		int z = index / xyWidth;
-		index -= ( z * xyWidth );
-		int y = index / xWidth;
-		index -= ( y * xWidth );
-		int x = index;
-		int[] newPosition = new int[] { x * ( partitionSize[ 0 ] + 1 ), y * ( partitionSize[ 1 ] + 1 ), z * ( partitionSize[ 2 ] + 1 ) };
+		results.add( new ChunkMeshResult( task.chunk, chunkOffset, task.resolution, task.level, m,
+				task.startTime - task.submitTime, task.endTime - task.startTime ) );
+		deliverResults();
+	}
 
-		if ( LOGGER.isDebugEnabled() )
+	/**
+	 * Deliver the results ready while the subscriber wants them. Only one
+	 * thread delivers at a time, the others just tell it that there is more
+	 * to do.
+	 */
+	private void deliverResults()
+	{
+		if ( deliveries.getAndIncrement() != 0 )
 		{
-			LOGGER.debug( "chunk " + chunk );
-			LOGGER.debug( "chunk number of meshes resolutions: " + chunk.getNumberOfMeshResolutions() );
+			return;
 		}
 
-		Localizable newLocation = new Point( newPosition );
-		createChunks( newLocation );
+		int missed = 1;
+		do
+		{
+			while ( !cancelled && demand.get() > 0 )
+			{
+				final ChunkMeshResult result = results.poll();
+				if ( result == null )
+				{
+					break;
+				}
+
+				if ( demand.get() != Long.MAX_VALUE )
+				{
+					demand.decrementAndGet();
+				}
+
+				outstanding.decrementAndGet();
+				try
+				{
+					subscriber.onNext( result );
+					if ( pendingResults.decrementAndGet() == 0 )
+					{
+						subscriber.onComplete();
+					}
+				}
+				catch ( RuntimeException e )
+				{
+					// the subscriber cannot take the results, nobody else
+					// would: the extraction stops
+					LOGGER.error( "the subscriber failed, the extraction is cancelled", e );
+					cancel();
+					break;
+				}
+			}
 
-		// a mesh was created, return it
-		return sceneryMesh;
+			missed = deliveries.addAndGet( -missed );
+		}
+		while ( missed != 0 );
+
+		// the results delivered leave room for the tasks held back
+		submitScheduledTasks();
 	}
 
 	/**
-	 * Given a initial position, creates the chunks for the position and for its
-	 * six neighbors
+	 * Given a initial position, creates the chunk for the position. The
+	 * neighbors are created when the mesh of the chunk is ready, only through
+	 * the faces that the mesh reaches
 	 * 
 	 * @param position
 	 *            x, y, z coordinates
@@ -189,6 +729,18 @@ public class MeshExtractor
 			return;
 		}
 
+		// all the chunks of the label were created at once
+		if ( useLabelIndex() )
+		{
+			if ( !indexChunksCreated )
+			{
+				createChunksFromIndex();
+				indexChunksCreated = true;
+			}
+			submitScheduledTasks();
+			return;
+		}
+
 		long[] offset = partitioner.getVolumeOffset( location );
 		LOGGER.trace( "offset: {}, {}, {}", offset[ 0 ], offset[ 1 ], offset[ 2 ] );
 
@@ -206,154 +758,506 @@ public class MeshExtractor
 		// creates the callable for the chunk in the given position
 		Localizable newLocation = new Point( newPosition );
 		createChunk( newLocation );
+		submitScheduledTasks();
 
-		// if one of the neighbors chunks exist, creates it
-		// newOffsetposition = x + partitionSizeX, y, z
-		int[] newOffset = new int[] { ( int ) ( offset[ 0 ] + 1 ), ( int ) offset[ 1 ], ( int ) offset[ 2 ] };
-		LOGGER.trace( "New offset: {}, {}, {}", offset[ 0 ], offset[ 1 ], offset[ 2 ] );
+		LOGGER.trace( "There is/are {} threads to calculate chunk mesh", tasks.size() );
+	}
 
-		if ( newOffset[ 0 ] < nCellsX )
+	/**
+	 * Creates the neighbors of a chunk that are behind the faces where its
+	 * mesh touches the chunk boundary.
+	 * 
+	 * @param offset
+	 *            offset of the chunk, in chunks
+	 * @param faces
+	 *            faces of the chunk touched by the mesh, see
+	 *            {@link SimpleMesh#getBoundaryFaces()}
+	 * @param level
+	 *            refinement level of the mesh
+	 */
+	private void createNeighborChunks( long[] offset, int faces, int level )
+	{
+		final int[] nCells = new int[] { nCellsX, nCellsY, nCellsZ };
+		for ( int i = 0; i < 3; i++ )
 		{
-			newLocation = new Point(
-					( int ) ( newOffset[ 0 ] * ( partitionSize[ 0 ] + 1 ) ),
-					( int ) ( newOffset[ 1 ] * ( partitionSize[ 1 ] + 1 ) ),
-					( int ) ( newOffset[ 2 ] * ( partitionSize[ 2 ] + 1 ) ) );
-			createChunk( newLocation );
-		}
-
-		// position = x - partitionSizeX, y, z
-		newOffset = new int[] { ( int ) ( offset[ 0 ] - 1 ), ( int ) offset[ 1 ], ( int ) offset[ 2 ] };
-		LOGGER.trace( "New offset: {}, {}, {}", offset[ 0 ], offset[ 1 ], offset[ 2 ] );
+			// FACE_MIN_X << 2 * i is the min face on the axis i, the max face is
+			// the next bit
+			if ( ( faces & ( SimpleMesh.FACE_MIN_X << 2 * i ) ) != 0 && offset[ i ] - 1 >= 0 )
+			{
+				final long[] newOffset = offset.clone();
+				newOffset[ i ]--;
+				LOGGER.trace( "New offset: {}, {}, {}", newOffset[ 0 ], newOffset[ 1 ], newOffset[ 2 ] );
+				scheduleChunk( partitioner.getChunk( newOffset ), Math.min( level, getMaxLevel( newOffset ) ) );
+			}
 
-		if ( newOffset[ 0 ] >= 0 )
-		{
-			newLocation = new Point(
-					( int ) ( newOffset[ 0 ] * ( partitionSize[ 0 ] + 1 ) ),
-					( int ) ( newOffset[ 1 ] * ( partitionSize[ 1 ] + 1 ) ),
-					( int ) ( newOffset[ 2 ] * ( partitionSize[ 2 ] + 1 ) ) );
-			createChunk( newLocation );
+			if ( ( faces & ( SimpleMesh.FACE_MAX_X << 2 * i ) ) != 0 && offset[ i ] + 1 < nCells[ i ] )
+			{
+				final long[] newOffset = offset.clone();
+				newOffset[ i ]++;
+				LOGGER.trace( "New offset: {}, {}, {}", newOffset[ 0 ], newOffset[ 1 ], newOffset[ 2 ] );
+				scheduleChunk( partitioner.getChunk( newOffset ), Math.min( level, getMaxLevel( newOffset ) ) );
+			}
 		}
 
-		// position = x, y + partitionSizeY, z
-		newOffset = new int[] { ( int ) offset[ 0 ], ( int ) ( offset[ 1 ] + 1 ), ( int ) offset[ 2 ] };
-		LOGGER.trace( "New offset: {}, {}, {}", offset[ 0 ], offset[ 1 ], offset[ 2 ] );
+		LOGGER.trace( "There is/are {} threads to calculate chunk mesh", tasks.size() );
+	}
 
-		if ( newOffset[ 1 ] < nCellsY )
+	/**
+	 * @return the finest refinement level to generate for the chunk
+	 */
+	private int getMaxLevel( long[] chunkOffset )
+	{
+		final int lastLevel = levels.length - 1;
+		final ChunkLevelSelector selector = levelSelector;
+		if ( selector == null )
 		{
-			newLocation = new Point(
-					( int ) ( newOffset[ 0 ] * ( partitionSize[ 0 ] + 1 ) ),
-					( int ) ( newOffset[ 1 ] * ( partitionSize[ 1 ] + 1 ) ),
-					( int ) ( newOffset[ 2 ] * ( partitionSize[ 2 ] + 1 ) ) );
-			createChunk( newLocation );
+			return lastLevel;
 		}
 
-		// position = x, y - partitionSizeY, z
-		newOffset = new int[] { ( int ) offset[ 0 ], ( int ) ( offset[ 1 ] - 1 ), ( int ) offset[ 2 ] };
-		LOGGER.trace( "New offset: {}, {}, {}", offset[ 0 ], offset[ 1 ], offset[ 2 ] );
+		return Math.max( 0, Math.min( lastLevel, selector.getLevel( chunkOffset ) ) );
+	}
 
-		if ( newOffset[ 1 ] >= 0 )
+	/**
+	 * @return true if the chunks must be taken from the label index
+	 */
+	private boolean useLabelIndex()
+	{
+		if ( labelIndex == null || !labelIndex.contains( foregroundValue ) )
 		{
-			newLocation = new Point(
-					( int ) ( newOffset[ 0 ] * ( partitionSize[ 0 ] + 1 ) ),
-					( int ) ( newOffset[ 1 ] * ( partitionSize[ 1 ] + 1 ) ),
-					( int ) ( newOffset[ 2 ] * ( partitionSize[ 2 ] + 1 ) ) );
-			createChunk( newLocation );
+			return false;
 		}
 
-		// position = x, y, z + partitionSizeZ
-		newOffset = new int[] { ( int ) offset[ 0 ], ( int ) offset[ 1 ], ( int ) offset[ 2 ] + 1 };
-		LOGGER.trace( "New offset: {}, {}, {}", offset[ 0 ], offset[ 1 ], offset[ 2 ] );
-
-		if ( newOffset[ 2 ] < nCellsZ )
+		final long[] dimensions = labelIndex.getDimensions();
+		for ( int i = 0; i < dimensions.length; i++ )
 		{
-			newLocation = new Point(
-					( int ) ( newOffset[ 0 ] * ( partitionSize[ 0 ] + 1 ) ),
-					( int ) ( newOffset[ 1 ] * ( partitionSize[ 1 ] + 1 ) ),
-					( int ) ( newOffset[ 2 ] * ( partitionSize[ 2 ] + 1 ) ) );
-			createChunk( newLocation );
+			if ( dimensions[ i ] != volumeLabels.dimension( i ) )
+			{
+				LOGGER.warn( "the label index does not match the volume" );
+				return false;
+			}
 		}
 
-		// position = x, y, z - partitionSizeZ
-		newOffset = new int[] { ( int ) offset[ 0 ], ( int ) offset[ 1 ], ( int ) offset[ 2 ] - 1 };
-		LOGGER.trace( "New offset: {}, {}, {}", offset[ 0 ], offset[ 1 ], offset[ 2 ] );
+		return true;
+	}
 
-		if ( newOffset[ 2 ] >= 0 )
+	/**
+	 * Creates the chunks that overlap the blocks where the label is, given
+	 * by the label index, for all the refinement levels.
+	 */
+	private void createChunksFromIndex()
+	{
+		final int[] nCells = new int[] { nCellsX, nCellsY, nCellsZ };
+		final Set< Long > created = new HashSet< Long >();
+		final long[] first = new long[ 3 ];
+		final long[] last = new long[ 3 ];
+
+		for ( final int block : labelIndex.getBlocks( foregroundValue ) )
 		{
-			newLocation = new Point(
-					( int ) ( newOffset[ 0 ] * ( partitionSize[ 0 ] + 1 ) ),
-					( int ) ( newOffset[ 1 ] * ( partitionSize[ 1 ] + 1 ) ),
-					( int ) ( newOffset[ 2 ] * ( partitionSize[ 2 ] + 1 ) ) );
-			createChunk( newLocation );
+			final long[] boundingBox = labelIndex.getBlockBoundingBox( block );
+			for ( int i = 0; i < 3; i++ )
+			{
+				// the last chunk goes until the end of the volume
+				first[ i ] = Math.min( ( boundingBox[ i ] - volumeLabels.min( i ) ) / partitionSize[ i ], nCells[ i ] - 1 );
+				last[ i ] = Math.min( ( boundingBox[ i + 3 ] - volumeLabels.min( i ) ) / partitionSize[ i ], nCells[ i ] - 1 );
+			}
+
+			for ( long z = first[ 2 ]; z <= last[ 2 ]; z++ )
+			{
+				for ( long y = first[ 1 ]; y <= last[ 1 ]; y++ )
+				{
+					for ( long x = first[ 0 ]; x <= last[ 0 ]; x++ )
+					{
+						if ( created.add( ( z * nCellsY + y ) * nCellsX + x ) )
+						{
+							final long[] chunkOffset = new long[] { x, y, z };
+							final Chunk chunk = partitioner.getChunk( chunkOffset );
+							final int maxLevel = getMaxLevel( chunkOffset );
+							for ( int level = 0; level <= maxLevel; level++ )
+							{
+								scheduleChunk( chunk, level );
+							}
+						}
+					}
+				}
+			}
 		}
 
-		LOGGER.trace( "There is/are {} threads to calculate chunk mesh", resultMeshMap.size() );
+		LOGGER.debug( "{} chunks created from the label index", created.size() );
 	}
 
 	private void createChunk( Localizable location )
 	{
-		Chunk chunk = partitioner.getChunk( location );
+		scheduleChunk( partitioner.getChunk( location ), 0 );
+	}
+
+	/**
+	 * Create the task of the chunk for the level, if it was not created yet.
+	 * The task is submitted later by {@link #submitScheduledTasks()}.
+	 */
+	private synchronized void scheduleChunk( Chunk chunk, int level )
+	{
+		if ( cancelled )
+		{
+			return;
+		}
+
 		if ( LOGGER.isTraceEnabled() )
 		{
 			int[] chunkBb = chunk.getChunkBoundinBox();
-			LOGGER.trace( "position: " + location.getIntPosition( 0 ) + " " + location.getIntPosition( 1 ) + " " + location.getIntPosition( 2 ) );
 			LOGGER.trace( "adding in the set: " + chunkBb[ 0 ] + " " + chunkBb[ 1 ] + " " + chunkBb[ 2 ] );
 			LOGGER.trace( " to " + chunkBb[ 3 ] + " " + chunkBb[ 4 ] + " " + chunkBb[ 5 ] );
 		}
 
+		int[] resolution = levels[ level ].clone();
+
 		// if the chunk was added to the callable for an specific cube size, do
 		// not add it again
-		if ( !chunkResolutionMap.isEmpty() && chunkResolutionMap.containsKey( chunk ) )
+		if ( !chunkResolutions.add( Arrays.asList( chunk.getIndex(), resolution[ 0 ], resolution[ 1 ], resolution[ 2 ] ) ) )
 		{
-			int[] resolution = chunkResolutionMap.get( chunk );
+			LOGGER.debug( "chunk already processed" );
+			return;
+		}
+
+		createCallable( chunk, resolution, level );
+	}
+
+	private void createCallable( Chunk chunk, int[] resolution, int level )
+	{
+		final long[] chunkOffset = partitioner.getChunkOffset( chunk );
+
+		// the chunk overlaps its neighbors by the cube size of the level
+		final Chunk volumeChunk = partitioner.getChunk( chunkOffset, resolution );
+		int[] volumeDimension = new int[] { ( int ) volumeChunk.getVolume().dimension( 0 ), ( int ) volumeChunk.getVolume().dimension( 1 ),
+				( int ) volumeChunk.getVolume().dimension( 2 ) };
+
+		ChunkTask task;
 
-			if ( resolution[ 0 ] == cubeSize[ 0 ] && resolution[ 1 ] == cubeSize[ 1 ] && resolution[ 2 ] == cubeSize[ 2 ] )
+		// labels read by the block service, null if the task does not need them
+		CompletableFuture< long[] > labels = null;
+
+		// the mesh may have been generated before, by this or by other
+		// extraction: the task just gives it
+		final SimpleMesh cachedMesh = MeshCache.getInstance().get( getDatasetId(), criterion, foregroundValue, partitionSize, getChunkKey( chunk ), resolution );
+		if ( cachedMesh != null )
+		{
+			task = new ChunkTask( () -> cachedMesh, chunk, resolution, level, true );
+		}
+		else if ( blockService != null )
+		{
+			final LabelBlockService service = blockService;
+			final MeshDiskCache disk = diskCache;
+			final float normalization = getNormalization();
+			final CompletableFuture< long[] > chunkLabelsFuture = new CompletableFuture< long[] >();
+			labels = chunkLabelsFuture;
+			task = new ChunkTask( () -> {
+				// the task is executed when the labels are ready
+				final long[] chunkLabels = chunkLabelsFuture.join();
+				try
+				{
+					MarchingCubesCallable callable = new MarchingCubesCallable( chunkLabels, volumeDimension, volumeChunk.getOffset(), resolution, criterion, foregroundValue );
+					callable.setNormalization( normalization );
+					callable.setIndexedOutput( true );
+					SimpleMesh mesh = callable.call();
+					if ( disk != null )
+					{
+						disk.put( criterion, foregroundValue, partitionSize, chunkOffset, resolution, mesh );
+					}
+					return mesh;
+				}
+				finally
+				{
+					service.release( chunkLabels );
+				}
+			}, chunk, resolution, level, false );
+		}
+		else
+		{
+			MarchingCubesCallable callable;
+			if ( blockReader == null )
+			{
+				callable = new MarchingCubesCallable( volumeChunk.getVolume(), volumeDimension, volumeChunk.getOffset(), resolution, criterion, foregroundValue, true );
+			}
+			else
+			{
+				callable = new MarchingCubesCallable( blockReader, getDatasetPosition( volumeChunk ), volumeDimension, volumeChunk.getOffset(), resolution, criterion, foregroundValue );
+			}
+			callable.setNormalization( getNormalization() );
+			callable.setIndexedOutput( true );
+			if ( diskCache == null )
+			{
+				task = new ChunkTask( callable, chunk, resolution, level, false );
+			}
+			else
+			{
+				// the disk is read in the task, not while scheduling
+				final MeshDiskCache disk = diskCache;
+				task = new ChunkTask( () -> {
+					SimpleMesh mesh = disk.get( criterion, foregroundValue, partitionSize, chunkOffset, resolution );
+					if ( mesh == null )
+					{
+						mesh = callable.call();
+						disk.put( criterion, foregroundValue, partitionSize, chunkOffset, resolution, mesh );
+					}
+					return mesh;
+				}, chunk, resolution, level, false );
+			}
+		}
+
+		partitioner.acquireChunk( chunk );
+		pendingResults.incrementAndGet();
+		tasks.add( task );
+
+		final ChunkTask scheduledTask = task;
+		if ( labels != null )
+		{
+			final CompletableFuture< long[] > chunkLabels = labels;
+			final long[] datasetPosition = getDatasetPosition( volumeChunk );
+			submissions.add( () -> executeWhenRead( scheduledTask, chunkLabels, datasetPosition, volumeDimension ) );
+		}
+		else
+		{
+			// the coarser levels run first
+			submissions.add( () -> session.execute( scheduledTask, level ) );
+		}
+	}
+
+	/**
+	 * Submit the tasks scheduled to the executor. It is called without the
+	 * lock of the extractor: the submission waits while the queue of the
+	 * executor is full, and the workers need the lock to schedule the
+	 * neighbors of their chunks, so waiting with the lock would stop them.
+	 * 
+	 * The tasks submitted and not delivered are limited to the results
+	 * requested by the subscriber and one task for each thread of the
+	 * executor, the others wait until more results are requested (see
+	 * {@link #deliverResults()}), so the results do not pile up when the
+	 * subscriber is slow.
+	 */
+	private void submitScheduledTasks()
+	{
+		final long threads = MeshingExecutor.getInstance().getThreads();
+		while ( !cancelled )
+		{
+			final long requested = demand.get();
+			final long limit = requested > Long.MAX_VALUE - threads ? Long.MAX_VALUE : requested + threads;
+			final long submitted = outstanding.get();
+			if ( submitted >= limit )
 			{
-				LOGGER.debug( "chunk already processed" );
 				return;
 			}
+
+			if ( !outstanding.compareAndSet( submitted, submitted + 1 ) )
+			{
+				continue;
+			}
+
+			final Runnable submission = submissions.poll();
+			if ( submission == null )
+			{
+				outstanding.decrementAndGet();
+				// a task scheduled while the room was taken is submitted here
+				if ( submissions.isEmpty() )
+				{
+					return;
+				}
+				continue;
+			}
+
+			try
+			{
+				submission.run();
+			}
+			catch ( RuntimeException e )
+			{
+				// interrupted while waiting for the executor
+				outstanding.decrementAndGet();
+				throw e;
+			}
 		}
+	}
+
+	/**
+	 * Request the labels of the chunk of the task to the block service, and
+	 * execute the task when they are ready. If the mesh is in the disk cache,
+	 * the labels are not requested.
+	 * 
+	 * @param task
+	 *            task of the chunk
+	 * @param labels
+	 *            receives the labels, read by the task
+	 * @param min
+	 *            position of the chunk in the dataset
+	 * @param size
+	 *            size of the chunk
+	 */
+	private void executeWhenRead( ChunkTask task, CompletableFuture< long[] > labels, long[] min, int[] size )
+	{
+		final LabelBlockService service = blockService;
+		final MeshDiskCache disk = diskCache;
+		final long[] chunkOffset = partitioner.getChunkOffset( task.chunk );
+
+		// the disk is read in a task of the extraction, not while scheduling
+		final CompletableFuture< SimpleMesh > storedMesh = disk == null ? CompletableFuture.completedFuture( null )
+				: CompletableFuture.supplyAsync( () -> disk.get( criterion, foregroundValue, partitionSize, chunkOffset, task.resolution ),
+						runnable -> session.execute( runnable, task.level ) );
 
-		createCallable( chunk );
+		storedMesh.whenComplete( ( mesh, diskError ) -> {
+			if ( mesh != null )
+			{
+				task.complete( mesh );
+				return;
+			}
+
+			// never in the scheduling thread, even if the cells were cached
+			service.read( min, size ).whenCompleteAsync( ( chunkLabels, error ) -> {
+				if ( error != null )
+				{
+					task.fail( error );
+				}
+				else if ( task.isCancelled() || cancelled )
+				{
+					service.release( chunkLabels );
+				}
+				else
+				{
+					labels.complete( chunkLabels );
+					session.execute( task, task.level );
+				}
+			}, service::executeCompletion );
+		} );
+	}
+
+	/**
+	 * @return position of the volume of the chunk in the label dataset
+	 */
+	private long[] getDatasetPosition( Chunk volumeChunk )
+	{
+		return new long[] { volumeChunk.getVolume().min( 0 ) - volumeLabels.min( 0 ),
+				volumeChunk.getVolume().min( 1 ) - volumeLabels.min( 1 ), volumeChunk.getVolume().min( 2 ) - volumeLabels.min( 2 ) };
+	}
+
+	/**
+	 * @return key of the chunk in the grid, see
+	 *         {@link ChunkGrid#key(long, long, long)}
+	 */
+	private long getChunkKey( Chunk chunk )
+	{
+		final long[] offset = partitioner.getChunkOffset( chunk );
+		return ChunkGrid.key( offset[ 0 ], offset[ 1 ], offset[ 2 ] );
 	}
 
-	private void createCallable( Chunk chunk )
+	/**
+	 * Partition the volume in chunks of whole cells.
+	 * 
+	 * @param cellDimensions
+	 *            x, y, z dimensions of the storage cells
+	 */
+	private void partitionVolume( int[] cellDimensions )
 	{
-		int[] volumeDimension = new int[] { ( int ) chunk.getVolume().dimension( 0 ), ( int ) chunk.getVolume().dimension( 1 ),
-				( int ) chunk.getVolume().dimension( 2 ) };
+		partitionSize = generatePartitionSize( cellDimensions );
 
-		MarchingCubesCallable callable = new MarchingCubesCallable( chunk.getVolume(), volumeDimension, chunk.getOffset(), cubeSize, criterion, foregroundValue, true );
-		Future< SimpleMesh > result = executor.submit( callable );
+		// the last chunk goes until the end of the volume
+		nCellsX = ( int ) Math.max( 1, ( volumeLabels.dimension( 0 ) - 1 ) / partitionSize[ 0 ] );
+		nCellsY = ( int ) Math.max( 1, ( volumeLabels.dimension( 1 ) - 1 ) / partitionSize[ 1 ] );
+		nCellsZ = ( int ) Math.max( 1, ( volumeLabels.dimension( 2 ) - 1 ) / partitionSize[ 2 ] );
 
-		resultMeshMap.put( result, chunk );
-		chunkResolutionMap.put( chunk, new int[] { cubeSize[ 0 ], cubeSize[ 1 ], cubeSize[ 2 ] } );
+		partitioner = new VolumePartitioner( volumeLabels, partitionSize, cubeSize );
+		partitioner.setMaxChunks( maxChunks );
 	}
 
-	private void generatePartitionSize()
+	/**
+	 * Choose the size of the chunks. A chunk is made of whole cells, and of
+	 * whole cubes of {@value #MAX_CUBE_SIZE} voxels, so the cubes of a chunk
+	 * continue the ones of its neighbors. Starting from one cell, the chunk
+	 * grows in its smallest direction while the labels of the largest chunk
+	 * (with the overlap) fit in {@value #CHUNK_BYTES_PROPERTY} bytes and the
+	 * volume still has {@value #CHUNKS_PER_THREAD} chunks for each thread of
+	 * the executor. The last chunk in each direction goes until the end of
+	 * the volume, so it is the largest one.
+	 * 
+	 * @param cellDimensions
+	 *            x, y, z dimensions of the storage cells
+	 * @return x, y, z size of the chunks
+	 */
+	private int[] generatePartitionSize( int[] cellDimensions )
 	{
-		for ( int i = 0; i < partitionSize.length; i++ )
+		final long maxVoxels = Long.getLong( CHUNK_BYTES_PROPERTY, DEFAULT_CHUNK_BYTES ) / Long.BYTES;
+		final long minChunks = ( long ) MeshingExecutor.getInstance().getThreads() * CHUNKS_PER_THREAD;
+
+		final long[] dimensions = new long[ 3 ];
+		final int[] step = new int[ 3 ];
+		final int[] size = new int[ 3 ];
+		for ( int i = 0; i < size.length; i++ )
 		{
-			partitionSize[ i ] = ( int ) ( ( volumeLabels.max( i ) - volumeLabels.min( i ) ) + 1 ) / MAX_CUBE_SIZE;
+			dimensions[ i ] = volumeLabels.dimension( i );
+			step[ i ] = leastCommonMultiple( Math.max( 1, cellDimensions[ i ] ), MAX_CUBE_SIZE );
+			size[ i ] = ( int ) Math.min( step[ i ], dimensions[ i ] );
 		}
 
-		LOGGER.trace( "division: {}, {}, {}", partitionSize[ 0 ], partitionSize[ 1 ], partitionSize[ 2 ] );
+		LOGGER.trace( "cells: {}, {}, {}", cellDimensions[ 0 ], cellDimensions[ 1 ], cellDimensions[ 2 ] );
 
-		for ( int i = 0; i < partitionSize.length; i++ )
+		while ( true )
 		{
-			partitionSize[ i ] = partitionSize[ i ] >= 7 ? 7 * MAX_CUBE_SIZE : partitionSize[ i ] * MAX_CUBE_SIZE;
+			int direction = -1;
+			for ( int i = 0; i < size.length; i++ )
+			{
+				if ( size[ i ] == dimensions[ i ] || ( direction >= 0 && size[ i ] >= size[ direction ] ) )
+				{
+					continue;
+				}
+
+				final int[] grown = size.clone();
+				grown[ i ] = ( int ) Math.min( size[ i ] + step[ i ], dimensions[ i ] );
+
+				long voxels = 1;
+				long chunks = 1;
+				for ( int j = 0; j < grown.length; j++ )
+				{
+					final long n = Math.max( 1, ( dimensions[ j ] - 1 ) / grown[ j ] );
+					// the last chunk takes the remainder of the volume
+					final long last = dimensions[ j ] - ( n - 1 ) * grown[ j ];
+					voxels *= last + MAX_CUBE_SIZE;
+					chunks *= n;
+				}
+
+				if ( voxels <= maxVoxels && chunks >= minChunks )
+				{
+					direction = i;
+				}
+			}
+
+			if ( direction < 0 )
+			{
+				break;
+			}
+
+			size[ direction ] = ( int ) Math.min( size[ direction ] + step[ direction ], dimensions[ direction ] );
 		}
 
-		LOGGER.trace( "partition size: {}, {}, {}", partitionSize[ 0 ], partitionSize[ 1 ], partitionSize[ 2 ] );
+		LOGGER.info( "final partition size: {}, {}, {}", size[ 0 ], size[ 1 ], size[ 2 ] );
+		return size;
+	}
 
-		for ( int i = 0; i < partitionSize.length; i++ )
+	private static int leastCommonMultiple( int a, int b )
+	{
+		int gcd = a;
+		int remainder = b;
+		while ( remainder != 0 )
 		{
-			partitionSize[ i ] = ( partitionSize[ i ] == 0 ) ? 1 : partitionSize[ i ];
+			final int next = gcd % remainder;
+			gcd = remainder;
+			remainder = next;
 		}
 
-		LOGGER.info( "final partition size: {}, {}, {}", partitionSize[ 0 ], partitionSize[ 1 ], partitionSize[ 2 ] );
+		return a / gcd * b;
 	}
 
 	/**
-	 * this method convert the viewer mesh into the scenery mesh
+	 * this method convert the viewer mesh into the scenery mesh. The vertices
+	 * are already normalized by the marching cubes and the normals were
+	 * calculated with them, so the buffers are used as they are. The triangles
+	 * of indexed meshes (the ones extracted by the chunk tasks) are the
+	 * indices of the scenery mesh.
 	 * 
 	 * @param mesh
 	 *            mesh information to be converted in a mesh for scenery
@@ -362,28 +1266,122 @@ public class MeshExtractor
 	 */
 	public void updateMesh( SimpleMesh mesh, Mesh sceneryMesh )
 	{
-		float[] verticesArray = new float[ mesh.getNumberOfVertices() * 3 ];
+		sceneryMesh.setVertices( mesh.getVertices() );
 
-		float[][] vertices = mesh.getVertices();
-		int v = 0;
-		for ( int i = 0; i < mesh.getNumberOfVertices(); i++ )
+		if ( mesh.getNormals() != null )
 		{
-			verticesArray[ v++ ] = vertices[ i ][ 0 ];
-			verticesArray[ v++ ] = vertices[ i ][ 1 ];
-			verticesArray[ v++ ] = vertices[ i ][ 2 ];
+			sceneryMesh.setNormals( mesh.getNormals() );
 		}
 
+		if ( mesh.isIndexed() )
+		{
+			sceneryMesh.setIndices( mesh.getTriangles() );
+		}
+		else
+		{
+			// the scenery mesh may have shown an indexed mesh of other level
+			sceneryMesh.setIndices( IntBuffer.allocate( 0 ) );
+		}
+	}
+
+	/**
+	 * @return value that divides all the vertex coordinates, so the volume is
+	 *         between 0 and 1
+	 */
+	public float getNormalization()
+	{
 		final float maxX = volumeLabels.dimension( 0 ) - 1;
 		final float maxY = volumeLabels.dimension( 1 ) - 1;
 		final float maxZ = volumeLabels.dimension( 2 ) - 1;
 
-		float maxAxisVal = Math.max( maxX, Math.max( maxY, maxZ ) );
-		// omp parallel for
-		for ( int i = 0; i < verticesArray.length; i++ )
+		return Math.max( maxX, Math.max( maxY, maxZ ) );
+	}
+
+	/**
+	 * Task that generates the mesh of a chunk and tells the extractor when
+	 * it finishes.
+	 */
+	private class ChunkTask extends FutureTask< SimpleMesh >
+	{
+		final Chunk chunk;
+
+		final int[] resolution;
+
+		/** refinement level of the mesh */
+		final int level;
+
+		final long submitTime;
+
+		volatile long startTime;
+
+		volatile long endTime;
+
+		/** true if the mesh comes from the {@link MeshCache} */
+		final boolean cached;
+
+		ChunkTask( Callable< SimpleMesh > callable, Chunk chunk, int[] resolution, int level, boolean cached )
+		{
+			super( callable );
+			this.chunk = chunk;
+			this.resolution = resolution;
+			this.level = level;
+			this.cached = cached;
+			this.submitTime = System.nanoTime();
+			this.startTime = submitTime;
+		}
+
+		@Override
+		public void run()
+		{
+			startTime = System.nanoTime();
+			super.run();
+		}
+
+		/**
+		 * Finish the task with a mesh obtained without running it.
+		 */
+		void complete( SimpleMesh mesh )
+		{
+			set( mesh );
+		}
+
+		/**
+		 * Finish the task with an error, without running it.
+		 */
+		void fail( Throwable error )
+		{
+			setException( error );
+		}
+
+		@Override
+		protected void done()
+		{
+			endTime = System.nanoTime();
+			taskDone( this );
+		}
+	}
+
+	/**
+	 * Keeps the results for {@link MeshExtractor#next()}.
+	 */
+	private static class IteratorSubscriber implements ChunkMeshSubscriber
+	{
+		final BlockingQueue< ChunkMeshResult > results = new LinkedBlockingQueue< ChunkMeshResult >();
+
+		@Override
+		public void onSubscribe( ChunkMeshSubscription subscription )
+		{
+			subscription.request( Long.MAX_VALUE );
+		}
+
+		@Override
+		public void onNext( ChunkMeshResult result )
 		{
-			verticesArray[ i ] /= maxAxisVal;
+			results.add( result );
 		}
 
-		sceneryMesh.setVertices( FloatBuffer.wrap( verticesArray ) );
+		@Override
+		public void onComplete()
+		{}
 	}
 }
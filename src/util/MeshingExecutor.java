@@ -0,0 +1,310 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread pool shared by all the mesh extractions of the process. Each
+ * extraction submits its tasks through its own {@link Session}, and the
+ * workers take the tasks of the sessions in turns, so a big neuron does not
+ * delay the meshes of the others.
+ *
+ * The number of threads and the maximum number of tasks waiting are given by
+ * the system properties {@value #THREADS_PROPERTY} (default: number of
+ * processors) and {@value #QUEUE_SIZE_PROPERTY} (default
+ * {@value #DEFAULT_QUEUE_SIZE}). When the queue is full, the submission waits
+ * for a free place, except when it is done by one of the workers (e.g. the
+ * neighbors of a chunk), so the workers never wait for each other.
+ *
+ * Inside a session, the tasks with the lowest priority value run first, and
+ * the tasks with the same priority run in the order they were submitted.
+ *
+ * @author vleite
+ *
+ */
+public class MeshingExecutor
+{
+	/** logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger( MeshingExecutor.class );
+
+	public static final String THREADS_PROPERTY = "marchingCubes.threads";
+
+	public static final String QUEUE_SIZE_PROPERTY = "marchingCubes.queueSize";
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private static MeshingExecutor instance = null;
+
+	private final ThreadPoolExecutor pool;
+
+	/** maximum number of tasks waiting, for submissions out of the workers */
+	private final int queueSize;
+
+	/** sessions with tasks waiting, in the order they will be served */
+	private final Queue< Session > waitingSessions;
+
+	/** number of tasks waiting in all the sessions */
+	private final AtomicInteger queueDepth;
+
+	/**
+	 * number of tasks of the sessions running, the runnables of the pool left
+	 * by {@link Session#cancel()} are not counted
+	 */
+	private final AtomicInteger activeTasks;
+
+	/** number of tasks of the sessions executed */
+	private final AtomicLong completedTasks;
+
+	/**
+	 * @return the executor of the process, created in the first call
+	 */
+	public static synchronized MeshingExecutor getInstance()
+	{
+		if ( instance == null )
+		{
+			final int threads = Integer.getInteger( THREADS_PROPERTY, Runtime.getRuntime().availableProcessors() );
+			final int queueSize = Integer.getInteger( QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE );
+			instance = new MeshingExecutor( threads, queueSize );
+		}
+
+		return instance;
+	}
+
+	private MeshingExecutor( final int threads, final int queueSize )
+	{
+		LOGGER.info( "meshing executor with {} threads and queue size {}", threads, queueSize );
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ThreadFactory threadFactory = runnable -> {
+			final Thread thread = new Worker( runnable, "mesh-worker-" + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		};
+
+		// each runnable in the pool runs the next task of the sessions, the
+		// limit of tasks waiting is kept by the sessions
+		pool = new ThreadPoolExecutor( threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue< Runnable >(), threadFactory );
+		this.queueSize = queueSize;
+
+		waitingSessions = new ArrayDeque< Session >();
+		queueDepth = new AtomicInteger();
+		activeTasks = new AtomicInteger();
+		completedTasks = new AtomicLong();
+	}
+
+	/**
+	 * @return a new session to submit the tasks of an extraction
+	 */
+	public Session newSession()
+	{
+		return new Session();
+	}
+
+	/**
+	 * @return number of threads that execute the tasks
+	 */
+	public int getThreads()
+	{
+		return pool.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return number of tasks waiting to be executed
+	 */
+	public int getQueueDepth()
+	{
+		return queueDepth.get();
+	}
+
+	/**
+	 * @return number of tasks being executed
+	 */
+	public int getActiveTasks()
+	{
+		return activeTasks.get();
+	}
+
+	/**
+	 * @return number of tasks executed since the creation of the executor
+	 */
+	public long getCompletedTasks()
+	{
+		return completedTasks.get();
+	}
+
+	/**
+	 * Run the next task of the session at the head of the waiting sessions.
+	 * The session goes to the end of the line if it still has tasks.
+	 */
+	private void runNext()
+	{
+		final Runnable task;
+		synchronized ( waitingSessions )
+		{
+			final Session session = waitingSessions.poll();
+			if ( session == null )
+			{
+				// the tasks were removed by Session.cancel()
+				return;
+			}
+
+			task = session.tasks.poll().task;
+			if ( !session.tasks.isEmpty() )
+			{
+				waitingSessions.add( session );
+			}
+
+			queueDepth.decrementAndGet();
+			waitingSessions.notifyAll();
+		}
+
+		activeTasks.incrementAndGet();
+		try
+		{
+			task.run();
+		}
+		finally
+		{
+			activeTasks.decrementAndGet();
+			completedTasks.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Tasks of one extraction. It can be used as the executor of an
+	 * {@link java.util.concurrent.ExecutorCompletionService}.
+	 */
+	public class Session implements Executor
+	{
+		private final Queue< PrioritizedTask > tasks = new PriorityQueue< PrioritizedTask >();
+
+		/** number of tasks submitted, keeps the order of the same priority */
+		private long submitted = 0;
+
+		private Session()
+		{}
+
+		@Override
+		public void execute( final Runnable task )
+		{
+			execute( task, 0 );
+		}
+
+		/**
+		 * Submit a task that runs before the tasks of the session with a
+		 * higher priority value.
+		 * 
+		 * @param task
+		 *            task to be executed
+		 * @param priority
+		 *            priority of the task, the lowest runs first
+		 */
+		public void execute( final Runnable task, final int priority )
+		{
+			synchronized ( waitingSessions )
+			{
+				while ( queueDepth.get() >= queueSize && !( Thread.currentThread() instanceof Worker ) )
+				{
+					try
+					{
+						waitingSessions.wait();
+					}
+					catch ( InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException( "interrupted waiting for the meshing queue", e );
+					}
+				}
+
+				if ( tasks.isEmpty() )
+				{
+					waitingSessions.add( this );
+				}
+				tasks.add( new PrioritizedTask( task, priority, submitted++ ) );
+				queueDepth.incrementAndGet();
+			}
+
+			pool.execute( MeshingExecutor.this::runNext );
+
+			if ( LOGGER.isTraceEnabled() )
+			{
+				LOGGER.trace( "meshing queue depth: " + getQueueDepth() + " active tasks: " + getActiveTasks() );
+			}
+		}
+
+		/**
+		 * Remove the tasks of the session that did not start yet. The tasks
+		 * already running are not affected.
+		 */
+		public void cancel()
+		{
+			synchronized ( waitingSessions )
+			{
+				queueDepth.addAndGet( -tasks.size() );
+				tasks.clear();
+				waitingSessions.remove( this );
+				waitingSessions.notifyAll();
+			}
+		}
+
+		/**
+		 * @return number of tasks of the session waiting to be executed
+		 */
+		public int getPendingTasks()
+		{
+			synchronized ( waitingSessions )
+			{
+				return tasks.size();
+			}
+		}
+	}
+
+	/** task waiting in a session */
+	private static class PrioritizedTask implements Comparable< PrioritizedTask >
+	{
+		final Runnable task;
+
+		final int priority;
+
+		final long order;
+
+		PrioritizedTask( final Runnable task, final int priority, final long order )
+		{
+			this.task = task;
+			this.priority = priority;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo( final PrioritizedTask other )
+		{
+			if ( priority != other.priority )
+			{
+				return Integer.compare( priority, other.priority );
+			}
+
+			return Long.compare( order, other.order );
+		}
+	}
+
+	/** thread of the pool */
+	private static class Worker extends Thread
+	{
+		Worker( final Runnable runnable, final String name )
+		{
+			super( runnable, name );
+		}
+	}
+}
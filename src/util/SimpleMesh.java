@@ -1,24 +1,61 @@
 package util;
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
 /**
  * the primary structure used to pass around the components of a mesh
  */
 public class SimpleMesh
 {
+	/** faces of the volume, used by {@link #getBoundaryFaces()} */
+	public static final int FACE_MIN_X = 1;
+
+	public static final int FACE_MAX_X = 2;
+
+	public static final int FACE_MIN_Y = 4;
+
+	public static final int FACE_MAX_Y = 8;
+
+	public static final int FACE_MIN_Z = 16;
+
+	public static final int FACE_MAX_Z = 32;
+
 	/**
 	 * the number of vertices and normals
 	 */
 	private int numberOfVertices;
 
 	/**
-	 * the vertices positions as an array of points
+	 * the vertices positions, x, y and z of each vertex in sequence
+	 */
+	private FloatBuffer vertices;
+
+	/**
+	 * the normal of each vertex, x, y and z in sequence
+	 */
+	private FloatBuffer normals;
+
+	/**
+	 * the number of triangles
+	 */
+	private int numberOfTriangles;
+
+	/**
+	 * three vertex indices for each triangle, null if the mesh is not
+	 * indexed (each three vertices form a triangle)
 	 */
-	private float[][] vertices;
+	private IntBuffer triangles;
+
+	/** faces of the volume touched by the mesh */
+	private int boundaryFaces;
 
-	SimpleMesh( int vertexCount, float[][] verticesArray, int trianglesCount, int[] trianglesArray )
+	SimpleMesh( int vertexCount, FloatBuffer verticesArray, int trianglesCount, IntBuffer trianglesArray )
 	{
 		numberOfVertices = vertexCount;
 		vertices = verticesArray;
+		numberOfTriangles = trianglesCount;
+		triangles = trianglesArray;
 	}
 
 	public SimpleMesh()
@@ -34,13 +71,69 @@ public class SimpleMesh
 		numberOfVertices = nVertices;
 	}
 
-	public float[][] getVertices()
+	public FloatBuffer getVertices()
 	{
 		return vertices;
 	}
 
-	public void setVertices( float[][] verticesArray )
+	public void setVertices( FloatBuffer verticesArray )
 	{
 		vertices = verticesArray;
 	}
+
+	public FloatBuffer getNormals()
+	{
+		return normals;
+	}
+
+	public void setNormals( FloatBuffer normalsArray )
+	{
+		normals = normalsArray;
+	}
+
+	public int getNumberOfTriangles()
+	{
+		return numberOfTriangles;
+	}
+
+	public void setNumberOfTriangles( int nTriangles )
+	{
+		numberOfTriangles = nTriangles;
+	}
+
+	public IntBuffer getTriangles()
+	{
+		return triangles;
+	}
+
+	public void setTriangles( IntBuffer trianglesArray )
+	{
+		triangles = trianglesArray;
+	}
+
+	/**
+	 * @return the faces of the volume the mesh reaches, a combination of
+	 *         {@link #FACE_MIN_X}, {@link #FACE_MAX_X}, {@link #FACE_MIN_Y},
+	 *         {@link #FACE_MAX_Y}, {@link #FACE_MIN_Z} and
+	 *         {@link #FACE_MAX_Z}. The neighbor volumes behind these faces
+	 *         may continue the mesh.
+	 */
+	public int getBoundaryFaces()
+	{
+		return boundaryFaces;
+	}
+
+	public void setBoundaryFaces( int faces )
+	{
+		boundaryFaces = faces;
+	}
+
+	/**
+	 * @return true if the vertices are shared between triangles through
+	 *         {@link #getTriangles()}
+	 */
+	public boolean isIndexed()
+	{
+		return triangles != null;
+	}
 }
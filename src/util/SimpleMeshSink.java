@@ -0,0 +1,190 @@
+package util;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Vertex sink that stores the vertices in world coordinates, ready to be
+ * used by scenery. The transformation from cubes to world (chunk offset,
+ * cube size and normalization) is applied when each vertex is written, so
+ * the buffers are given to the mesh without other copies or passes.
+ *
+ * The normals are calculated when the mesh is complete, in the thread that
+ * generated it: each vertex gets the sum of the normals of its triangles
+ * weighted by their areas, so the indexed meshes are smooth and the others
+ * have one normal per triangle.
+ *
+ * @author vleite
+ */
+public class SimpleMeshSink implements VertexSink
+{
+	/** vertices in world coordinates, x, y and z of each vertex in sequence */
+	private GrowableFloatArray vertices;
+
+	/** three vertex indices for each triangle */
+	private GrowableIntArray triangles;
+
+	/** the offset in cubes, added to the vertices before the scaling */
+	private final float[] translation;
+
+	/** size of the cube in each direction */
+	private final float[] scale;
+
+	/** all the coordinates are divided by this value */
+	private final float normalization;
+
+	private boolean indexed;
+
+	/**
+	 * Creates a sink that gives the vertices in voxel coordinates.
+	 */
+	public SimpleMeshSink()
+	{
+		this( 1 );
+	}
+
+	/**
+	 * Creates a sink that divides all the vertex coordinates by the given
+	 * value.
+	 *
+	 * @param normalization
+	 *            usually the biggest dimension of the volume, to keep the
+	 *            mesh between 0 and 1
+	 */
+	public SimpleMeshSink( final float normalization )
+	{
+		this.normalization = normalization;
+		this.translation = new float[ 3 ];
+		this.scale = new float[ 3 ];
+		this.indexed = false;
+	}
+
+	@Override
+	public void begin( final int[] offset, final int[] cubeSize, final boolean indexed )
+	{
+		for ( int i = 0; i < 3; i++ )
+		{
+			// the offset is given in whole cubes
+			translation[ i ] = offset[ i ] / cubeSize[ i ];
+			scale[ i ] = cubeSize[ i ];
+		}
+
+		this.indexed = indexed;
+		vertices = new GrowableFloatArray();
+		triangles = indexed ? new GrowableIntArray() : null;
+	}
+
+	@Override
+	public int addVertex( final float x, final float y, final float z )
+	{
+		final int index = vertices.size() / 3;
+		vertices.add( ( x + translation[ 0 ] ) * scale[ 0 ] / normalization );
+		vertices.add( ( y + translation[ 1 ] ) * scale[ 1 ] / normalization );
+		vertices.add( ( z + translation[ 2 ] ) * scale[ 2 ] / normalization );
+
+		return index;
+	}
+
+	@Override
+	public void addTriangle( final int v1, final int v2, final int v3 )
+	{
+		triangles.add( v1 );
+		triangles.add( v2 );
+		triangles.add( v3 );
+	}
+
+	@Override
+	public SimpleMesh end()
+	{
+		final SimpleMesh mesh = new SimpleMesh();
+		mesh.setNumberOfVertices( vertices.size() / 3 );
+		mesh.setVertices( vertices.toFloatBuffer() );
+
+		if ( indexed )
+		{
+			mesh.setNumberOfTriangles( triangles.size() / 3 );
+			mesh.setTriangles( triangles.toIntBuffer() );
+		}
+		else
+		{
+			mesh.setNumberOfTriangles( vertices.size() / 9 );
+		}
+
+		mesh.setNormals( calculateNormals( mesh ) );
+
+		// the buffers belong to the mesh now
+		vertices = null;
+		triangles = null;
+
+		return mesh;
+	}
+
+	/**
+	 * Calculates the normal of each vertex of the mesh, adding the normals of
+	 * the triangles that use the vertex. The normal of a triangle (v1, v2,
+	 * v3) is (v2 - v1) x (v3 - v1), its length is twice the area of the
+	 * triangle, so bigger triangles have more weight.
+	 *
+	 * @param mesh
+	 *            mesh with the vertices and, if indexed, the triangles
+	 * @return the normalized normals, x, y and z of each vertex in sequence
+	 */
+	private static FloatBuffer calculateNormals( final SimpleMesh mesh )
+	{
+		final FloatBuffer v = mesh.getVertices();
+		final IntBuffer t = mesh.getTriangles();
+		final float[] normals = new float[ mesh.getNumberOfVertices() * 3 ];
+
+		for ( int triangle = 0; triangle < mesh.getNumberOfTriangles(); triangle++ )
+		{
+			final int i1, i2, i3;
+			if ( t != null )
+			{
+				i1 = t.get( triangle * 3 ) * 3;
+				i2 = t.get( triangle * 3 + 1 ) * 3;
+				i3 = t.get( triangle * 3 + 2 ) * 3;
+			}
+			else
+			{
+				i1 = triangle * 9;
+				i2 = i1 + 3;
+				i3 = i1 + 6;
+			}
+
+			final float ax = v.get( i2 ) - v.get( i1 );
+			final float ay = v.get( i2 + 1 ) - v.get( i1 + 1 );
+			final float az = v.get( i2 + 2 ) - v.get( i1 + 2 );
+			final float bx = v.get( i3 ) - v.get( i1 );
+			final float by = v.get( i3 + 1 ) - v.get( i1 + 1 );
+			final float bz = v.get( i3 + 2 ) - v.get( i1 + 2 );
+
+			final float nx = ay * bz - az * by;
+			final float ny = az * bx - ax * bz;
+			final float nz = ax * by - ay * bx;
+
+			addNormal( normals, i1, nx, ny, nz );
+			addNormal( normals, i2, nx, ny, nz );
+			addNormal( normals, i3, nx, ny, nz );
+		}
+
+		for ( int i = 0; i < normals.length; i += 3 )
+		{
+			final float length = ( float ) Math.sqrt( normals[ i ] * normals[ i ] + normals[ i + 1 ] * normals[ i + 1 ] + normals[ i + 2 ] * normals[ i + 2 ] );
+			if ( length > 0 )
+			{
+				normals[ i ] /= length;
+				normals[ i + 1 ] /= length;
+				normals[ i + 2 ] /= length;
+			}
+		}
+
+		return FloatBuffer.wrap( normals );
+	}
+
+	private static void addNormal( final float[] normals, final int i, final float nx, final float ny, final float nz )
+	{
+		normals[ i ] += nx;
+		normals[ i + 1 ] += ny;
+		normals[ i + 2 ] += nz;
+	}
+}
@@ -0,0 +1,50 @@
+package util;
+
+/**
+ * Receives the vertices and triangles created by the marching cubes. The
+ * vertices are given in the grid of cubes (cube units, relative to the
+ * chunk) and the sink decides how to transform and to store them.
+ *
+ * @author vleite
+ */
+public interface VertexSink
+{
+	/**
+	 * Called before a new mesh is generated.
+	 *
+	 * @param offset
+	 *            offset of the chunk, in voxels
+	 * @param cubeSize
+	 *            size of the cube, in voxels
+	 * @param indexed
+	 *            if true, triangles are given by {@link #addTriangle}, if
+	 *            false, each three vertices form a triangle
+	 */
+	void begin( int[] offset, int[] cubeSize, boolean indexed );
+
+	/**
+	 * Add a vertex.
+	 *
+	 * @param x
+	 *            position on x, in cubes
+	 * @param y
+	 *            position on y, in cubes
+	 * @param z
+	 *            position on z, in cubes
+	 * @return index of the vertex
+	 */
+	int addVertex( float x, float y, float z );
+
+	/**
+	 * Add a triangle formed by three vertices already added, only used on
+	 * indexed meshes.
+	 */
+	void addTriangle( int v1, int v2, int v3 );
+
+	/**
+	 * Called when the mesh is complete.
+	 *
+	 * @return the mesh with all the vertices and triangles received
+	 */
+	SimpleMesh end();
+}
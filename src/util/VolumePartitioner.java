@@ -32,7 +32,14 @@ public class VolumePartitioner
 	/** Minimum size of each partition the partition */
 	private final int[] partitionSize;
 
-	private static List< Chunk > chunks;
+	/** default maximum number of chunks kept by the partitioner */
+	public static final int DEFAULT_MAX_CHUNKS = 4096;
+
+	/** number of chunks in each direction */
+	private final long[] gridSize;
+
+	/** chunks already created */
+	private final ChunkGrid chunks;
 
 	/**
 	 * Constructor - initialize parameters
@@ -42,7 +49,12 @@ public class VolumePartitioner
 		this.volumeLabels = volumeLabels;
 		this.partitionSize = partitionSize;
 		this.OVERLAP = cubeSize;
-		VolumePartitioner.chunks = new ArrayList< Chunk >();
+		this.gridSize = new long[ 3 ];
+		for ( int i = 0; i < gridSize.length; i++ )
+		{
+			gridSize[ i ] = ( volumeLabels.dimension( i ) + partitionSize[ i ] - 1 ) / partitionSize[ i ];
+		}
+		this.chunks = new ChunkGrid( DEFAULT_MAX_CHUNKS );
 
 		if ( LOGGER.isTraceEnabled() )
 		{
@@ -55,6 +67,18 @@ public class VolumePartitioner
 		this.OVERLAP = cubeSize;
 	}
 
+	/**
+	 * Define the maximum number of chunks kept. Above it, the chunks that are
+	 * not in use are removed.
+	 * 
+	 * @param maxChunks
+	 *            maximum number of chunks
+	 */
+	public void setMaxChunks( int maxChunks )
+	{
+		chunks.setCapacity( maxChunks );
+	}
+
 	/**
 	 * Method to partitioning the data in small chunks.
 	 * 
@@ -62,50 +86,18 @@ public class VolumePartitioner
 	 */
 	public List< Chunk > dataPartitioning()
 	{
-		for ( long bx = volumeLabels.min( 0 ); ( bx + partitionSize[ 0 ] ) <= volumeLabels.max( 0 ); bx += partitionSize[ 0 ] )
+		final List< Chunk > partitions = new ArrayList< Chunk >();
+		for ( long z = 0; z < gridSize[ 2 ]; z++ )
 		{
-			for ( long by = volumeLabels.min( 1 ); ( by + partitionSize[ 1 ] ) <= volumeLabels.max( 1 ); by += partitionSize[ 1 ] )
+			for ( long y = 0; y < gridSize[ 1 ]; y++ )
 			{
-				for ( long bz = volumeLabels.min( 2 ); ( bz + partitionSize[ 2 ] ) <= volumeLabels.max( 2 ); bz += partitionSize[ 2 ] )
+				for ( long x = 0; x < gridSize[ 0 ]; x++ )
 				{
-					long[] begin = new long[] { bx, by, bz };
-					long[] end = new long[] { begin[ 0 ] + partitionSize[ 0 ],
-							begin[ 1 ] + partitionSize[ 1 ],
-							begin[ 2 ] + partitionSize[ 2 ] };
-
-					if ( LOGGER.isTraceEnabled() )
-					{
-						LOGGER.trace( "begin: " + bx + " " + by + " " + bz );
-						LOGGER.trace( "end: " + end[ 0 ] + " " + end[ 1 ] + " " + end[ 2 ] );
-					}
-
-					for ( int i = 0; i < begin.length; i++ )
-					{
-						if ( begin[ i ] - OVERLAP[ i ] >= 0 )
-						{
-							begin[ i ] -= OVERLAP[ i ];
-						}
-
-						if ( volumeLabels.max( i ) - end[ i ] < partitionSize[ i ] )
-						{
-							end[ i ] = volumeLabels.max( i );
-						}
-					}
-
-					final Chunk chunk = new Chunk();
-					chunk.setVolume( Views.interval( volumeLabels, begin, end ) );
-					chunk.setOffset( new int[] { ( int ) ( begin[ 0 ] ), ( int ) ( begin[ 1 ] ), ( int ) ( begin[ 2 ] ) } );
-					chunks.add( chunk );
-
-					if ( LOGGER.isDebugEnabled() )
-					{
-						LOGGER.debug( "partition begins at: " + begin[ 0 ] + " " + begin[ 1 ] + " " + begin[ 2 ] );
-						LOGGER.debug( "partition ends at: " + end[ 0 ] + " " + end[ 1 ] + " " + end[ 2 ] );
-					}
+					partitions.add( getChunk( new long[] { x, y, z } ) );
 				}
 			}
 		}
-		return chunks;
+		return partitions;
 	}
 
 	/**
@@ -119,16 +111,90 @@ public class VolumePartitioner
 	 */
 	public Chunk getChunk( Localizable location )
 	{
-		for ( int i = 0; i < chunks.size(); i++ )
-		{
-			if ( chunks.get( i ).contains( location ) ) { return chunks.get( i ); }
-		}
+		return getChunk( getVolumeOffset( location ) );
+	}
 
-		long[] offset = getVolumeOffset( location );
+	/**
+	 * Return the chunk in the given position of the grid of chunks. If the
+	 * chunk does not exist yet, it is created.
+	 * 
+	 * @param offset
+	 *            position of the chunk in the grid, in chunks
+	 * @return the chunk
+	 */
+	public Chunk getChunk( long[] offset )
+	{
+		return chunks.get( ChunkGrid.key( offset[ 0 ], offset[ 1 ], offset[ 2 ] ), this::createChunk );
+	}
+
+	/**
+	 * Return a chunk in the given position of the grid of chunks, with the
+	 * overlap needed by a cube size different from the one of the
+	 * partitioner. This chunk is not kept by the partitioner, it is created
+	 * at each call.
+	 * 
+	 * @param offset
+	 *            position of the chunk in the grid, in chunks
+	 * @param overlap
+	 *            number of voxels that the chunk overlaps its neighbors
+	 * @return the chunk
+	 */
+	public Chunk getChunk( long[] offset, int[] overlap )
+	{
+		return createChunk( offset, overlap );
+	}
 
-		int xWidth = ( int ) volumeLabels.dimension( 0 );
-		int xyWidth = ( int ) ( xWidth * volumeLabels.dimension( 1 ) );
-		int index = ( int ) ( offset[ 0 ] + offset[ 1 ] * xWidth + offset[ 2 ] * xyWidth );
+	/**
+	 * Return the position of the chunk in the grid of chunks.
+	 * 
+	 * @param chunk
+	 *            chunk created by this partitioner
+	 * @return x, y, z position, in chunks
+	 */
+	public long[] getChunkOffset( Chunk chunk )
+	{
+		long index = chunk.getIndex();
+		final long z = index / ( gridSize[ 0 ] * gridSize[ 1 ] );
+		index -= z * gridSize[ 0 ] * gridSize[ 1 ];
+		final long y = index / gridSize[ 0 ];
+		return new long[] { index - y * gridSize[ 0 ], y, z };
+	}
+
+	/**
+	 * The chunk is in use and must be kept until it is released, see
+	 * {@link #releaseChunk(Chunk)}.
+	 */
+	public void acquireChunk( Chunk chunk )
+	{
+		final long[] offset = getChunkOffset( chunk );
+		chunks.acquire( ChunkGrid.key( offset[ 0 ], offset[ 1 ], offset[ 2 ] ) );
+	}
+
+	/**
+	 * The chunk is not in use anymore, so it can be removed.
+	 */
+	public void releaseChunk( Chunk chunk )
+	{
+		final long[] offset = getChunkOffset( chunk );
+		chunks.release( ChunkGrid.key( offset[ 0 ], offset[ 1 ], offset[ 2 ] ) );
+	}
+
+	/**
+	 * Index of the chunk, unique in the grid of chunks.
+	 */
+	private int getChunkIndex( long[] offset )
+	{
+		return ( int ) ( offset[ 0 ] + gridSize[ 0 ] * ( offset[ 1 ] + gridSize[ 1 ] * offset[ 2 ] ) );
+	}
+
+	private Chunk createChunk( long[] offset )
+	{
+		return createChunk( offset, OVERLAP );
+	}
+
+	private Chunk createChunk( long[] offset, int[] overlap )
+	{
+		int index = getChunkIndex( offset );
 
 		long[] begin = new long[] { offset[ 0 ] * partitionSize[ 0 ],
 				offset[ 1 ] * partitionSize[ 1 ],
@@ -139,9 +205,9 @@ public class VolumePartitioner
 
 		for ( int i = 0; i < begin.length; i++ )
 		{
-			if ( begin[ i ] - OVERLAP[ i ] >= 0 )
+			if ( begin[ i ] - overlap[ i ] >= 0 )
 			{
-				begin[ i ] -= OVERLAP[ i ];
+				begin[ i ] -= overlap[ i ];
 			}
 
 			if ( volumeLabels.max( i ) - end[ i ] < partitionSize[ i ] )
@@ -154,7 +220,6 @@ public class VolumePartitioner
 		chunk.setVolume( Views.interval( volumeLabels, begin, end ) );
 		chunk.setOffset( new int[] { ( int ) ( begin[ 0 ] ), ( int ) ( begin[ 1 ] ), ( int ) ( ( begin[ 2 ] ) ) } );
 		chunk.setIndex( index );
-		chunks.add( chunk );
 
 		if ( LOGGER.isDebugEnabled() )
 		{
@@ -186,7 +251,7 @@ public class VolumePartitioner
 			}
 		}
 
-		LOGGER.info( "volume offset: " + offset[ 0 ] + " " + offset[ 1 ] + " " + offset[ 2 ] );
+		LOGGER.debug( "volume offset: {}, {}, {}", offset[ 0 ], offset[ 1 ], offset[ 2 ] );
 		return offset;
 	}
 }